@@ -0,0 +1,329 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Benchmarks of each phase of
+ * {@link XlsxTemplate#compileAndStreamTemplate(String, String, String, OutputStream)}
+ * on a {@link SyntheticTemplate}.
+ *
+ * Every phase runs on a fresh copy of the template, prepared up to the
+ * previous phase outside the measurement. The copies come from a
+ * {@link TemplateCache}, as in a long-lived process. The formula memo is
+ * disabled, so recalculateAll evaluates the formulas every time, and so is
+ * the image cache, so the SVG images are rasterized every time.
+ *
+ * Build and run with:
+ *   mvn -P jmh clean package
+ *   java -jar target/benchmarks.jar [JMH options]
+ * The main method adds the GC profiler, which reports the allocation rate
+ * next to the throughput. JMH counts the allocations of the preparation of
+ * each invocation too; copyTemplate measures the copy alone, to subtract it
+ * from the other phases. The size of the template is set with
+ * -p rows=... -p dataCols=... -p formulaDensity=...
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompileBenchmark {
+    private static final String STYLES = "{\"hl\": {\"backgroundColor\": [255, 255, 0]},"
+        + " \"b\": {\"fontBold\": true, \"border\": {\"color\": [[0, 0, 0]], \"style\": [\"THIN\", \"THIN\"]}}}";
+
+    private static final String SVG = "<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"400\" height=\"200\">"
+        + "<rect width=\"400\" height=\"200\" fill=\"#36c\"/><circle cx=\"100\" cy=\"100\" r=\"80\" fill=\"#fc0\"/>"
+        + "<text x=\"200\" y=\"110\" font-size=\"32\">HIGH-TOOL</text></svg>";
+
+    /**
+     * The template and the requests, shared by all the invocations.
+     */
+    @State(Scope.Benchmark)
+    public static class Model {
+        @Param({"1000", "10000"})
+        public int rows;
+
+        @Param({"10"})
+        public int dataCols;
+
+        @Param({"0.5", "2"})
+        public double formulaDensity;
+
+        File templateFile;
+        TemplateCache cache;
+        String dataJson;
+        JsonObject dataChunk;
+        JsonObject styles;
+        JsonObject stylesChunk;
+        JsonArray pngChunks;
+        JsonArray svgChunks;
+
+        private long memoBudget;
+        private long imageBudget;
+
+        @Setup(Level.Trial)
+        public void setUp() throws IOException {
+            SyntheticTemplate template = new SyntheticTemplate(rows, dataCols, formulaDensity);
+            templateFile = File.createTempFile("benchmark", ".xlsx");
+            try (OutputStream stream = new FileOutputStream(templateFile)) {
+                template.write(stream);
+            }
+            cache = new TemplateCache(1L << 30, 1);
+
+            JsonArray data = template.dataChunk(1);
+            dataJson = data.toString();
+            dataChunk = data.getJsonObject(0);
+            styles = read(STYLES).readObject();
+            stylesChunk = read("{\"type\": \"styles\", \"target\": [\"Calc\", [0, 0]], \"data\": ["
+                + "{\"style\": \"hl\", \"targets\": [[[0, 0], [" + (template.getFormulaCols() - 1) + ", " + (rows - 1) + "]]]},"
+                + "{\"style\": \"b\", \"targets\": [[[0, 0], [16383, 0]], [[0, 0], [0, 1048575]]]}]}").readObject();
+            pngChunks = imageChunks("png", Base64.getEncoder().encodeToString(png()));
+            svgChunks = imageChunks("svg", Base64.getEncoder().encodeToString(SVG.getBytes(StandardCharsets.UTF_8)));
+
+            memoBudget = FormulaMemo.getDefault().getByteBudget();
+            imageBudget = ImageCache.getDefault().getByteBudget();
+            FormulaMemo.getDefault().setByteBudget(0);
+            ImageCache.getDefault().setByteBudget(0);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            FormulaMemo.getDefault().setByteBudget(memoBudget);
+            ImageCache.getDefault().setByteBudget(imageBudget);
+            cache.clear();
+            Files.deleteIfExists(templateFile.toPath());
+        }
+
+        XlsxTemplate newTemplate() throws IOException {
+            return new XlsxTemplate(templateFile.getPath(), cache);
+        }
+
+        private static JsonArray imageChunks(String format, String base64) {
+            return read("[{\"type\": \"imageBase64\", \"target\": [\"Output\", [2, 2], [8, 14]], \"data\": [\""
+                + format + "\", \"" + base64 + "\"]}]").readArray();
+        }
+
+        private static byte[] png() throws IOException {
+            BufferedImage image = new BufferedImage(400, 200, BufferedImage.TYPE_INT_ARGB);
+            Graphics2D graphics = image.createGraphics();
+            graphics.setColor(new Color(0x3366cc));
+            graphics.fillRect(0, 0, 400, 200);
+            graphics.setColor(new Color(0xffcc00));
+            graphics.fillOval(20, 20, 160, 160);
+            graphics.dispose();
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ImageIO.write(image, "png", bytes);
+            return bytes.toByteArray();
+        }
+    }
+
+    /**
+     * A fresh copy of the template.
+     */
+    @State(Scope.Thread)
+    public static class Fresh {
+        XlsxTemplate template;
+
+        @Setup(Level.Invocation)
+        public void setUp(Model model) throws IOException {
+            template = model.newTemplate();
+        }
+    }
+
+    /**
+     * A fresh copy with the styles parsed.
+     */
+    @State(Scope.Thread)
+    public static class Styled {
+        XlsxTemplate template;
+
+        @Setup(Level.Invocation)
+        public void setUp(Model model) throws IOException {
+            template = model.newTemplate();
+            template.parseStylesObject(model.styles);
+        }
+    }
+
+    /**
+     * A fresh copy with the styles parsed and the data written.
+     */
+    @State(Scope.Thread)
+    public static class Written {
+        XlsxTemplate template;
+
+        @Setup(Level.Invocation)
+        public void setUp(Model model) throws IOException, TranscoderException {
+            template = model.newTemplate();
+            template.parseStylesObject(model.styles);
+            template.compileChunk(model.stylesChunk);
+            template.compileChunk(model.dataChunk);
+        }
+    }
+
+    /**
+     * A fresh copy ready to be written out.
+     */
+    @State(Scope.Thread)
+    public static class Recalculated {
+        XlsxTemplate template;
+
+        @Setup(Level.Invocation)
+        public void setUp(Model model) throws IOException, TranscoderException {
+            template = model.newTemplate();
+            template.parseStylesObject(model.styles);
+            template.compileChunk(model.stylesChunk);
+            template.compileChunk(model.dataChunk);
+            template.recalculateAll();
+        }
+    }
+
+    @Benchmark
+    public XlsxTemplate copyTemplate(Model model) throws IOException {
+        return model.newTemplate();
+    }
+
+    @Benchmark
+    public JsonArray parseJson(Model model) {
+        try (JsonReader reader = read(model.dataJson)) {
+            return reader.readArray();
+        }
+    }
+
+    @Benchmark
+    public XlsxTemplate parseStylesObject(Model model, Fresh fresh) {
+        fresh.template.parseStylesObject(model.styles);
+        return fresh.template;
+    }
+
+    @Benchmark
+    public XlsxTemplate populateTextSheet(Model model, Styled styled) throws IOException, TranscoderException {
+        styled.template.compileChunk(model.dataChunk);
+        return styled.template;
+    }
+
+    @Benchmark
+    public XlsxTemplate applyStyleToSheet(Model model, Styled styled) throws IOException, TranscoderException {
+        styled.template.compileChunk(model.stylesChunk);
+        return styled.template;
+    }
+
+    @Benchmark
+    public XlsxTemplate addImagePng(Model model, Fresh fresh) throws IOException, TranscoderException {
+        fresh.template.compileTemplate(model.pngChunks);
+        return fresh.template;
+    }
+
+    @Benchmark
+    public XlsxTemplate addImageSvg(Model model, Fresh fresh) throws IOException, TranscoderException {
+        fresh.template.compileTemplate(model.svgChunks);
+        return fresh.template;
+    }
+
+    @Benchmark
+    public XlsxTemplate recalculateAll(Written written) {
+        written.template.recalculateAll();
+        return written.template;
+    }
+
+    @Benchmark
+    public long streamWorkbook(Recalculated recalculated) throws IOException {
+        CountingOutputStream stream = new CountingOutputStream();
+        recalculated.template.streamWorkbook(stream);
+        return stream.count;
+    }
+
+    private static JsonReader read(String json) {
+        return Json.createReader(new StringReader(json));
+    }
+
+    /**
+     * Discards what is written, only counting it.
+     */
+    private static final class CountingOutputStream extends OutputStream {
+        long count;
+
+        @Override
+        public void write(int b) {
+            count += 1;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+            count += len;
+        }
+    }
+
+    /**
+     * Runs the benchmarks selected by the JMH command line options with the
+     * GC profiler.
+     */
+    public static void main(String[] args) throws Exception {
+        Options options = new OptionsBuilder()
+            .parent(new CommandLineOptions(args))
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+}
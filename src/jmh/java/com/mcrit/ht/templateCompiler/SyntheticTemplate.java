@@ -0,0 +1,150 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Generates templates shaped as the HIGH-TOOL models for the benchmarks.
+ *
+ * The "Data" sheet holds a block of numbers. Each row of the "Calc" sheet has
+ * formulas reading the same row of "Data": for every data column, the
+ * formula density gives the number of formulas, which cycle through an
+ * arithmetic formula, a SUM over the row, an IF and a running total down the
+ * column. The "Output" sheet sums the columns of "Calc".
+ */
+final class SyntheticTemplate {
+    private final int rows;
+    private final int dataCols;
+    private final int formulaCols;
+
+    /**
+     * @param rows Rows of the data and of the formulas.
+     * @param dataCols Columns of the data.
+     * @param formulaDensity Formulas per data cell.
+     */
+    SyntheticTemplate(int rows, int dataCols, double formulaDensity) {
+        this.rows = rows;
+        this.dataCols = dataCols;
+        this.formulaCols = Math.max(1, (int) Math.round(dataCols * formulaDensity));
+    }
+
+    int getRows() {
+        return rows;
+    }
+
+    int getDataCols() {
+        return dataCols;
+    }
+
+    int getFormulaCols() {
+        return formulaCols;
+    }
+
+    /**
+     * Writes the template, with the cached values of all the formulas.
+     */
+    void write(OutputStream stream) throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet data = workbook.createSheet("Data");
+        XSSFSheet calc = workbook.createSheet("Calc");
+        XSSFSheet output = workbook.createSheet("Output");
+
+        String lastDataCol = CellReference.convertNumToColString(dataCols - 1);
+        for (int r = 0; r < rows; r++) {
+            XSSFRow dataRow = data.createRow(r);
+            for (int c = 0; c < dataCols; c++) {
+                dataRow.createCell(c).setCellValue(value(r, c, 0));
+            }
+
+            int excelRow = r + 1;
+            XSSFRow calcRow = calc.createRow(r);
+            for (int c = 0; c < formulaCols; c++) {
+                String a = "Data!" + CellReference.convertNumToColString(c % dataCols) + excelRow;
+                String b = "Data!" + CellReference.convertNumToColString((c + 1) % dataCols) + excelRow;
+                String formula;
+                switch (c % 4) {
+                    case 0:
+                        formula = a + "*" + b + "+1";
+                        break;
+                    case 1:
+                        formula = "SUM(Data!A" + excelRow + ":" + lastDataCol + excelRow + ")";
+                        break;
+                    case 2:
+                        formula = "IF(" + a + ">0," + b + "/" + a + ",0)";
+                        break;
+                    default:
+                        String self = CellReference.convertNumToColString(c);
+                        formula = r == 0 ? a : self + r + "+" + a;
+                }
+                calcRow.createCell(c).setCellFormula(formula);
+            }
+        }
+
+        XSSFRow outputRow = output.createRow(0);
+        for (int c = 0; c < formulaCols; c++) {
+            String col = CellReference.convertNumToColString(c);
+            outputRow.createCell(c).setCellFormula("SUM(Calc!" + col + "1:" + col + rows + ")");
+        }
+
+        XSSFFormulaEvaluator.evaluateAllFormulaCells(workbook);
+        workbook.write(stream);
+    }
+
+    /**
+     * @param seed Changes every value, to get different data sets.
+     * @return The data chunk of a request writing the whole "Data" block.
+     */
+    JsonArray dataChunk(int seed) {
+        JsonArrayBuilder block = Json.createArrayBuilder();
+        for (int r = 0; r < rows; r++) {
+            JsonArrayBuilder row = Json.createArrayBuilder();
+            for (int c = 0; c < dataCols; c++) {
+                row.add(value(r, c, seed));
+            }
+            block.add(row);
+        }
+        return Json.createArrayBuilder()
+            .add(Json.createObjectBuilder()
+                .add("target", Json.createArrayBuilder().add("Data").add(Json.createArrayBuilder().add(0).add(0)))
+                .add("data", block))
+            .build();
+    }
+
+    private static double value(int row, int col, int seed) {
+        return ((row * 31 + col * 17 + seed * 7) % 1000) / 10.0 - 10;
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * Reads data chunks in the compact binary format and writes them into the
+ * template, as an alternative to the JSON data array for dense numeric
+ * blocks.
+ *
+ * The stream starts with the ASCII magic "HTXB" and a version byte (1),
+ * followed by frames until EOF. All the numbers are little-endian:
+ *
+ *   int32   length of the rest of the frame, in bytes
+ *   byte    target kind: 0 = sheet index, 1 = sheet name
+ *   int32   sheet index, or int32 length + UTF-8 sheet name
+ *   int32   column of the upper left cell
+ *   int32   row of the upper left cell
+ *   int32   rows
+ *   int32   columns
+ *   byte    type: 0 = numeric, 1 = mixed
+ *   int32   length + UTF-8 name of the style, length 0 for none
+ *   mixed only: int32 number of strings, then each string as
+ *           int32 length + UTF-8
+ *   for each row:
+ *     float64[columns]  values
+ *     mixed only: int32[columns] index in the strings of the value of each
+ *           cell, or -1 to use the float64 value
+ *
+ * A NaN value leaves the cell untouched.
+ */
+final class BinaryChunkReader {
+    static final byte[] MAGIC = {'H', 'T', 'X', 'B'};
+    static final byte VERSION = 1;
+
+    static final byte TARGET_INDEX = 0;
+    static final byte TARGET_NAME = 1;
+    static final byte TYPE_NUMERIC = 0;
+    static final byte TYPE_MIXED = 1;
+
+    private final XlsxTemplate template;
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+    private long frameRemaining;
+
+    private double[] values = new double[0];
+    private int[] stringRefs = new int[0];
+
+    BinaryChunkReader(XlsxTemplate template, ReadableByteChannel channel) {
+        this.template = template;
+        this.channel = channel;
+    }
+
+    /**
+     * Tells whether a stream holds binary chunks, without consuming it.
+     *
+     * @param data A stream that supports mark and reset.
+     */
+    static boolean hasMagic(InputStream data) throws IOException {
+        data.mark(MAGIC.length);
+        try {
+            for (byte expected : MAGIC) {
+                if (data.read() != expected) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            data.reset();
+        }
+    }
+
+    /**
+     * Reads all the frames into the template.
+     */
+    void read() throws IOException {
+        frameRemaining = MAGIC.length + 1;
+        ByteBuffer preamble = fill(MAGIC.length + 1, false);
+        for (byte expected : MAGIC) {
+            if (preamble.get() != expected) {
+                throw new IOException("The binary data does not start with HTXB.");
+            }
+        }
+        byte version = preamble.get();
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary data version " + version + ".");
+        }
+
+        while (true) {
+            frameRemaining = 4;
+            ByteBuffer length = fill(4, true);
+            if (length == null) {
+                break;
+            }
+            frameRemaining = length.getInt() & 0xFFFFFFFFL;
+            readFrame();
+            if (frameRemaining != 0) {
+                throw new IOException("The frame length does not match its content.");
+            }
+        }
+    }
+
+    private void readFrame() throws IOException {
+        XSSFSheet sheet;
+        byte targetKind = fill(1, false).get();
+        switch (targetKind) {
+            case TARGET_INDEX:
+                sheet = template.getWorkbook().getSheetAt(fill(4, false).getInt());
+                break;
+            case TARGET_NAME:
+                String name = readString();
+                sheet = template.getWorkbook().getSheet(name);
+                if (sheet == null) {
+                    throw new IllegalArgumentException("Sheet with name " + name + " not found.");
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Invalid target kind " + targetKind + ". Must be 0 (index) or 1 (name).");
+        }
+
+        ByteBuffer dimensions = fill(17, false);
+        int originCol = dimensions.getInt();
+        int originRow = dimensions.getInt();
+        int rows = dimensions.getInt();
+        int cols = dimensions.getInt();
+        byte type = dimensions.get();
+        if (type != TYPE_NUMERIC && type != TYPE_MIXED) {
+            throw new IllegalArgumentException("Invalid chunk type " + type + ". Must be 0 (numeric) or 1 (mixed).");
+        }
+        if (rows < 0 || cols < 0 || cols > SpreadsheetVersion.EXCEL2007.getMaxColumns()) {
+            throw new IllegalArgumentException("Invalid chunk size " + rows + "x" + cols + ".");
+        }
+        if (originRow < 0 || originCol < 0
+                || (long) originRow + rows > SpreadsheetVersion.EXCEL2007.getMaxRows()
+                || (long) originCol + cols > SpreadsheetVersion.EXCEL2007.getMaxColumns()) {
+            throw new IllegalArgumentException("Invalid chunk position (" + originCol + ", " + originRow + ") for its size "
+                + rows + "x" + cols + ".");
+        }
+
+        XSSFCellStyle style = template.getStyle(readString());
+
+        String[] strings = new String[0];
+        int[] stringIndexes = null;
+        if (type == TYPE_MIXED) {
+            int count = fill(4, false).getInt();
+            // Every string takes at least its length.
+            if (count < 0 || count > frameRemaining / 4) {
+                throw new IllegalArgumentException("Invalid number of strings " + count + ".");
+            }
+            strings = new String[count];
+            for (int i = 0; i < strings.length; i++) {
+                strings[i] = readString();
+            }
+            stringIndexes = template.internStrings(strings);
+        }
+
+        if (values.length < cols) {
+            values = new double[cols];
+            stringRefs = new int[cols];
+        }
+
+        long written = 0;
+        for (int j = 0; j < rows; j++) {
+            fill(cols * 8, false).asDoubleBuffer().get(values, 0, cols);
+            if (type == TYPE_MIXED) {
+                fill(cols * 4, false).asIntBuffer().get(stringRefs, 0, cols);
+                for (int k = 0; k < cols; k++) {
+                    if (stringRefs[k] < -1 || stringRefs[k] >= strings.length) {
+                        throw new IllegalArgumentException("Invalid string reference " + stringRefs[k] + " in a chunk with "
+                            + strings.length + " strings.");
+                    }
+                }
+            }
+
+            Row row = template.getOrCreateRow(sheet, originRow + j);
+            for (int k = 0; k < cols; k++) {
+                boolean isString = type == TYPE_MIXED && stringRefs[k] >= 0;
+                if (!isString && Double.isNaN(values[k])) {
+                    continue;
+                }
+
+                Cell cell = template.getOrCreateCell(row, originCol + k);
+                if (isString) {
+                    template.setStringValue(cell, strings[stringRefs[k]], stringIndexes == null ? -1 : stringIndexes[stringRefs[k]]);
+                } else {
+                    cell.setCellValue(values[k]);
+                }
+                if (style != null) {
+                    cell.setCellStyle(style);
+                }
+                written += 1;
+            }
+        }
+        template.markWritten(sheet, originRow, originCol, rows, cols);
+        template.getMetrics().addCellsWritten(written);
+    }
+
+    private String readString() throws IOException {
+        int length = fill(4, false).getInt();
+        ByteBuffer bytes = fill(length, false);
+        return new String(bytes.array(), bytes.position(), length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads exactly count bytes of the current frame.
+     *
+     * @param allowEof true if the stream may cleanly end before these bytes.
+     * @return A buffer positioned at the bytes read, or null on a clean EOF.
+     */
+    private ByteBuffer fill(int count, boolean allowEof) throws IOException {
+        if (count < 0 || count > frameRemaining) {
+            throw new IOException("The frame is shorter than its content.");
+        }
+        if (buffer.capacity() < count) {
+            buffer = ByteBuffer.allocate(count).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        buffer.clear();
+        buffer.limit(count);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer) < 0) {
+                if (allowEof && buffer.position() == 0) {
+                    return null;
+                }
+                throw new EOFException("Unexpected end of the binary data.");
+            }
+        }
+        buffer.flip();
+        frameRemaining -= count;
+        return buffer;
+    }
+}
@@ -0,0 +1,325 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.PrintStream;
+import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Timings and counters of a compilation, written as JSON lines on a side
+ * channel, so the host can collect them without reading the document
+ * stream.
+ *
+ * The channel is set with the system property htxlsx.metrics: "stderr", or
+ * the path of a file the lines are appended to. Without it nothing is
+ * measured. Every line is a JSON object with a "metric" key, which tells it
+ * apart from the status lines of {@link TemplateWorker}, and the number of
+ * the compilation in the process:
+ *
+ *   {"metric": "phase", "compilation": 3, "phase": "data",
+ *    "millis": 12.5, "allocatedBytes": 5242880}
+ *   {"metric": "failure", "compilation": 3, "sheet": "Calc", "cell": "B7",
+ *    "row": 6, "col": 1, "formula": "A7/C7", "error": "..."}
+ *   {"metric": "compilation", "compilation": 3, "template": "t.xlsx",
+ *    "engine": "dom", "status": "ok", "millis": 80.1, "allocatedBytes": 41943040,
+ *    "cellsWritten": 120000, "stylesCreated": 4, "imagesAdded": 2,
+ *    "imagesTranscoded": 1, "formulasEvaluated": 5000,
+ *    "formulasPlanned": 3000, "formulasReused": 0, "formulasSkipped": 0,
+ *    "failures": 0}
+ *
+ * The phases are load, styles, data, result, recalculate and write. The
+ * status of a compilation is "ok", "error" if it threw, or "fallback" if
+ * the patch engine handed it to the DOM engine, which measures it again. The
+ * allocated bytes are those of the compiling thread, so the work done on
+ * the image, recalculation and compression pools is not included; the
+ * recalculate and write phases, which run mostly on those pools, have no
+ * allocatedBytes. They are -1 if the JVM can not measure them.
+ */
+final class CompileMetrics {
+    static final String SINK_PROPERTY = "htxlsx.metrics";
+
+    // Phases whose allocations happen on other threads.
+    private static final Set<String> POOLED_PHASES = new HashSet<>(Arrays.asList("recalculate", "write"));
+
+    private static final AtomicLong COMPILATIONS = new AtomicLong();
+    private static final com.sun.management.ThreadMXBean THREADS = getAllocationBean();
+    private static volatile PrintStream sink = openSink(System.getProperty(SINK_PROPERTY));
+
+    /**
+     * Metrics of the compilations that are not measured. Its counters are
+     * never written.
+     */
+    static final CompileMetrics DISABLED = new CompileMetrics(0, null, null);
+
+    private final long compilation;
+    private final String template;
+    private final String engine;
+    private final long start;
+    private final long startAllocated;
+    private boolean finished;
+
+    private long cellsWritten;
+    private long stylesCreated;
+    private long imagesAdded;
+    private long imagesTranscoded;
+    private long formulasEvaluated;
+    private long formulasPlanned;
+    private long formulasReused;
+    private long formulasSkipped;
+    private long failures;
+
+    private CompileMetrics(long compilation, String template, String engine) {
+        this.compilation = compilation;
+        this.template = template;
+        this.engine = engine;
+        this.start = System.nanoTime();
+        this.startAllocated = allocatedBytes();
+        this.finished = compilation == 0;
+    }
+
+    /**
+     * Starts measuring a compilation.
+     *
+     * @param template Path of the template, or null if unknown.
+     * @param engine "dom" or "patch".
+     * @return The metrics, or {@link #DISABLED} if there is no channel.
+     */
+    static CompileMetrics start(String template, String engine) {
+        return sink == null ? DISABLED : new CompileMetrics(COMPILATIONS.incrementAndGet(), template, engine);
+    }
+
+    /**
+     * Sends the lines to a stream instead of the channel of the system
+     * property. Null stops measuring.
+     */
+    static void setSink(PrintStream stream) {
+        sink = stream;
+    }
+
+    static boolean isConfigured() {
+        return sink != null;
+    }
+
+    private static PrintStream openSink(String target) {
+        if (target == null || target.isEmpty()) {
+            return null;
+        }
+        if ("stderr".equals(target)) {
+            return System.err;
+        }
+        try {
+            return new PrintStream(new FileOutputStream(target, true), true, "UTF-8");
+        } catch (FileNotFoundException | UnsupportedEncodingException e) {
+            throw new IllegalStateException("Unable to open the metrics file " + target + ".", e);
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean getAllocationBean() {
+        try {
+            ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+            if (bean instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()
+                    && ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemoryEnabled()) {
+                return (com.sun.management.ThreadMXBean) bean;
+            }
+        } catch (LinkageError e) {
+            // Not a HotSpot JVM.
+        }
+        return null;
+    }
+
+    private static long allocatedBytes() {
+        return THREADS == null ? -1 : THREADS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    boolean isEnabled() {
+        return compilation != 0;
+    }
+
+    /**
+     * @return true once the summary has been written, or if the metrics are
+     * disabled.
+     */
+    boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * Work measured as a phase, with its result.
+     */
+    interface Step<T, E1 extends Exception, E2 extends Exception> {
+        T run() throws E1, E2;
+    }
+
+    /**
+     * Work measured as a phase, without a result.
+     */
+    interface Action<E1 extends Exception, E2 extends Exception> {
+        void run() throws E1, E2;
+    }
+
+    /**
+     * Runs a step and writes the line of its phase, even if it throws.
+     *
+     * @return The result of the step.
+     */
+    <T, E1 extends Exception, E2 extends Exception> T time(String phase, Step<T, E1, E2> step) throws E1, E2 {
+        if (!isEnabled()) {
+            return step.run();
+        }
+        long phaseStart = System.nanoTime();
+        long phaseStartAllocated = POOLED_PHASES.contains(phase) ? 0 : allocatedBytes();
+        try {
+            return step.run();
+        } finally {
+            JsonObjectBuilder line = line("phase")
+                .add("phase", phase)
+                .add("millis", millisSince(phaseStart));
+            if (!POOLED_PHASES.contains(phase)) {
+                line.add("allocatedBytes", allocatedSince(phaseStartAllocated));
+            }
+            write(line);
+        }
+    }
+
+    /**
+     * Same as {@link #time(String, Step)}, for a step without a result.
+     */
+    <E1 extends Exception, E2 extends Exception> void time(String phase, Action<E1, E2> action) throws E1, E2 {
+        this.<Void, E1, E2>time(phase, () -> {
+            action.run();
+            return null;
+        });
+    }
+
+    void addCellsWritten(long cells) {
+        cellsWritten += cells;
+    }
+
+    void addStylesCreated(long styles) {
+        stylesCreated += styles;
+    }
+
+    void addImagesAdded(long images) {
+        imagesAdded += images;
+    }
+
+    void addImagesTranscoded(long images) {
+        imagesTranscoded += images;
+    }
+
+    /**
+     * Adds the counters of a recalculation.
+     */
+    void addFormulas(FormulaRecalculator recalculator, int evaluated) {
+        formulasEvaluated += evaluated;
+        formulasPlanned += recalculator.getPlanned();
+        formulasReused += recalculator.getReused();
+        formulasSkipped += recalculator.getSkipped();
+    }
+
+    /**
+     * Writes a formula that could not be evaluated, with its coordinates.
+     */
+    void failure(FormulaRecalculator.Failure failure) {
+        failures += 1;
+        if (!isEnabled()) {
+            return;
+        }
+        RuntimeException cause = failure.getCause();
+        write(line("failure")
+            .add("sheet", failure.getSheetName())
+            .add("cell", new CellReference(failure.getRow(), failure.getCol()).formatAsString())
+            .add("row", failure.getRow())
+            .add("col", failure.getCol())
+            .add("formula", failure.getFormula())
+            .add("error", cause.getClass().getName() + ": " + (cause.getMessage() != null ? cause.getMessage() : "")));
+    }
+
+    /**
+     * Writes the summary of the compilation. Later calls do nothing.
+     *
+     * @param status "ok", "error" or "fallback".
+     */
+    void finish(String status) {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        JsonObjectBuilder line = line("compilation");
+        if (template != null) {
+            line.add("template", template);
+        }
+        write(line
+            .add("engine", engine)
+            .add("status", status)
+            .add("millis", millisSince(start))
+            .add("allocatedBytes", allocatedSince(startAllocated))
+            .add("cellsWritten", cellsWritten)
+            .add("stylesCreated", stylesCreated)
+            .add("imagesAdded", imagesAdded)
+            .add("imagesTranscoded", imagesTranscoded)
+            .add("formulasEvaluated", formulasEvaluated)
+            .add("formulasPlanned", formulasPlanned)
+            .add("formulasReused", formulasReused)
+            .add("formulasSkipped", formulasSkipped)
+            .add("failures", failures));
+    }
+
+    private JsonObjectBuilder line(String metric) {
+        return Json.createObjectBuilder()
+            .add("metric", metric)
+            .add("compilation", compilation);
+    }
+
+    private static void write(JsonObjectBuilder line) {
+        PrintStream stream = sink;
+        if (stream != null) {
+            // A single println keeps the lines of concurrent compilations whole.
+            stream.println(line.build().toString());
+        }
+    }
+
+    private static double millisSince(long start) {
+        return Math.round((System.nanoTime() - start) / 1e3) / 1e3;
+    }
+
+    private static long allocatedSince(long startAllocated) {
+        return startAllocated < 0 ? -1 : allocatedBytes() - startAllocated;
+    }
+}
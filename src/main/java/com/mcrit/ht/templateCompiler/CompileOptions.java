@@ -0,0 +1,244 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+
+/**
+ * Options of a single compilation.
+ *
+ * As JSON, the valid keys are:
+ * evaluation : string, "all" (default) evaluates every formula affected by
+ * the data; "demand" only those read, directly or not, by the output sheets,
+ * and marks the workbook to be recalculated when opened.
+ * outputSheets : string, regular expression found in the name of the output
+ * sheets. Defaults to "Output".
+ * result : string, "xlsx" (default) returns the compiled workbook; "json" and
+ * "binary" only return the values of some regions, as described in
+ * {@link ValuesWriter}. With "demand" evaluation, only the formulas those
+ * regions read are evaluated.
+ * regions : array with the regions returned in the "json" and "binary"
+ * results. Each region is a defined name, or an array
+ * [sheet name or index, [col1, row1], [col2, row2]]. Defaults to the used
+ * range of every output sheet.
+ * streamingWindow : int, when positive, the rows added after the last row of
+ * a data-only sheet, one that holds no formulas and is not read by any, are
+ * streamed to temporary files, keeping at most this many rows of each sheet
+ * in memory. Such rows must be written in ascending order and styled before
+ * their data. Only used with the "xlsx" result. Defaults to 0, disabled.
+ * engine : string, "dom" (default) compiles in the POI object model. "patch"
+ * copies the template and only rewrites the XML of the sheets written, as
+ * described in {@link SheetXmlPatcher}. No formula is evaluated: the
+ * workbook is recalculated when opened. Only text chunks without styles can
+ * be patched; other data, the "json" and "binary" results, and the scenarios
+ * of a {@link TemplateBatch} use "dom".
+ * compression : deflate level of the xlsx, an integer from 0 (store) to 9, or
+ * one of "store", "fast", "default" and "best". Defaults to "default". The
+ * rows streamed with streamingWindow are always compressed at the default
+ * level.
+ * strings : string, "shared" (default) writes the text of the chunks to the
+ * shared strings of the workbook, once for each distinct value; "inline"
+ * writes it into each cell, which saves the lookup and keeps the shared
+ * strings small when most values are different, as ids or free text. The
+ * rows streamed with streamingWindow, the "patch" engine and the scenarios
+ * of a {@link TemplateBatch} always inline their text.
+ */
+public class CompileOptions {
+    public enum Evaluation {
+        ALL, DEMAND
+    }
+
+    public enum Result {
+        XLSX, JSON, BINARY
+    }
+
+    public enum Engine {
+        DOM, PATCH
+    }
+
+    public enum Strings {
+        SHARED, INLINE
+    }
+
+    private static final Pattern DEFAULT_OUTPUT_SHEETS = Pattern.compile("Output");
+
+    private Evaluation evaluation = Evaluation.ALL;
+    private Pattern outputSheets = DEFAULT_OUTPUT_SHEETS;
+    private Result result = Result.XLSX;
+    private JsonArray regions;
+    private int streamingWindow;
+    private Engine engine = Engine.DOM;
+    private int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+    private Strings strings = Strings.SHARED;
+
+    /**
+     * @param options JSON object with the keys described in the class.
+     * @return The options, with defaults for the missing keys.
+     */
+    public static CompileOptions fromJson(JsonObject options) {
+        CompileOptions result = new CompileOptions();
+        for (String key : options.keySet()) {
+            switch (key) {
+                case "evaluation":
+                    result.setEvaluation(Evaluation.valueOf(options.getString(key).toUpperCase()));
+                    break;
+                case "outputSheets":
+                    result.setOutputSheets(Pattern.compile(options.getString(key)));
+                    break;
+                case "result":
+                    result.setResult(Result.valueOf(options.getString(key).toUpperCase()));
+                    break;
+                case "regions":
+                    result.setRegions(options.getJsonArray(key));
+                    break;
+                case "streamingWindow":
+                    result.setStreamingWindow(options.getInt(key));
+                    break;
+                case "engine":
+                    result.setEngine(Engine.valueOf(options.getString(key).toUpperCase()));
+                    break;
+                case "compression":
+                    result.setCompressionLevel(parseCompressionLevel(options.get(key)));
+                    break;
+                case "strings":
+                    result.setStrings(Strings.valueOf(options.getString(key).toUpperCase()));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown compile option " + key + ".");
+            }
+        }
+        return result;
+    }
+
+    private static int parseCompressionLevel(JsonValue level) {
+        if (level.getValueType() != JsonValue.ValueType.STRING) {
+            return ((JsonNumber) level).intValue();
+        }
+        switch (((JsonString) level).getString()) {
+            case "store":
+                return Deflater.NO_COMPRESSION;
+            case "fast":
+                return Deflater.BEST_SPEED;
+            case "default":
+                return Deflater.DEFAULT_COMPRESSION;
+            case "best":
+                return Deflater.BEST_COMPRESSION;
+            default:
+                throw new IllegalArgumentException("Unknown compression " + ((JsonString) level).getString() + ".");
+        }
+    }
+
+    public Evaluation getEvaluation() {
+        return evaluation;
+    }
+
+    public CompileOptions setEvaluation(Evaluation evaluation) {
+        this.evaluation = evaluation;
+        return this;
+    }
+
+    public Pattern getOutputSheets() {
+        return outputSheets;
+    }
+
+    public CompileOptions setOutputSheets(Pattern outputSheets) {
+        this.outputSheets = outputSheets;
+        return this;
+    }
+
+    public Result getResult() {
+        return result;
+    }
+
+    public CompileOptions setResult(Result result) {
+        this.result = result;
+        return this;
+    }
+
+    /**
+     * @return The regions of a values result, or null for the output sheets.
+     */
+    public JsonArray getRegions() {
+        return regions;
+    }
+
+    public CompileOptions setRegions(JsonArray regions) {
+        this.regions = regions;
+        return this;
+    }
+
+    /**
+     * @return Rows of each data-only sheet kept in memory, or 0 if they are
+     * not streamed.
+     */
+    public int getStreamingWindow() {
+        return streamingWindow;
+    }
+
+    public CompileOptions setStreamingWindow(int streamingWindow) {
+        this.streamingWindow = streamingWindow;
+        return this;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    public CompileOptions setEngine(Engine engine) {
+        this.engine = engine;
+        return this;
+    }
+
+    /**
+     * @return Deflate level of the xlsx, from 0 to 9, or -1 for the default.
+     */
+    public int getCompressionLevel() {
+        return compressionLevel;
+    }
+
+    public CompileOptions setCompressionLevel(int compressionLevel) {
+        if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel + ".");
+        }
+        this.compressionLevel = compressionLevel;
+        return this;
+    }
+
+    public Strings getStrings() {
+        return strings;
+    }
+
+    public CompileOptions setStrings(Strings strings) {
+        this.strings = strings;
+        return this;
+    }
+}
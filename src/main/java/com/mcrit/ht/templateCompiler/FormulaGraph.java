@@ -0,0 +1,582 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.FormulaParseException;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.ptg.AbstractFunctionPtg;
+import org.apache.poi.ss.formula.ptg.Area2DPtgBase;
+import org.apache.poi.ss.formula.ptg.Area3DPxg;
+import org.apache.poi.ss.formula.ptg.AreaPtgBase;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPxg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Pxg3D;
+import org.apache.poi.ss.formula.ptg.Ref3DPxg;
+import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.formula.ptg.RefPtgBase;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Dependency graph of the formula cells of a template.
+ *
+ * Every formula cell is a node with its parsed tokens and the ranges it
+ * reads. The reverse index finds the formulas reading a given block of
+ * cells, so the cells affected by the data of a request can be found without
+ * looking at the rest of the workbook. The graph is immutable once built and
+ * can be shared by all the compilations of a template.
+ */
+final class FormulaGraph {
+    /** Uses a function that changes on every evaluation, such as NOW. */
+    static final byte VOLATILE = 1;
+    /** Reads cells that cannot be known before evaluation, as INDIRECT does. */
+    static final byte DYNAMIC = 2;
+    /** The template has no cached value for the cell. */
+    static final byte UNCACHED = 4;
+
+    private static final Set<String> VOLATILE_FUNCTIONS = new HashSet<>(Arrays.asList(
+        "RAND", "RANDBETWEEN", "NOW", "TODAY", "CELL", "INFO"));
+    private static final Set<String> DYNAMIC_FUNCTIONS = new HashSet<>(Arrays.asList(
+        "INDIRECT", "OFFSET"));
+
+    private static final int MAX_NAME_DEPTH = 8;
+
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+
+    // Areas are indexed by bands of rows; the tall ones by bands of columns
+    // and the ones that are both tall and wide are kept in a plain list.
+    private static final int ROW_BAND_SHIFT = 6;
+    private static final int COL_BAND_SHIFT = 2;
+    private static final int MAX_BANDS = 64;
+
+    private final long id = NEXT_ID.incrementAndGet();
+    private final int size;
+    private final int[] nodeSheet;
+    private final int[] nodeRow;
+    private final int[] nodeCol;
+    private final Ptg[][] tokens;
+    private final byte[] flags;
+    private final HashMap<Long, Integer> nodeByCell;
+
+    // Precedents of node n are ranges precedentStart[n] to
+    // precedentStart[n + 1] - 1, with 5 ints per range in precedents.
+    private final int[] precedentStart;
+    private final int[] precedents;
+
+    private final HashMap<Long, int[]> cellDependents;
+    private final HashMap<Long, int[]> rowBands;
+    private final HashMap<Long, int[]> colBands;
+    private final int[] largeAreas;
+    private final int[] areaNode;
+
+    private FormulaGraph(Builder builder) {
+        size = builder.nodeSheet.size();
+        nodeSheet = builder.nodeSheet.toArray();
+        nodeRow = builder.nodeRow.toArray();
+        nodeCol = builder.nodeCol.toArray();
+        tokens = Arrays.copyOf(builder.tokens, size);
+        flags = Arrays.copyOf(builder.flags, size);
+        nodeByCell = builder.nodeByCell;
+        precedentStart = builder.precedentStart.toArray();
+        precedents = builder.precedents.toArray();
+        cellDependents = freeze(builder.cellDependents);
+        rowBands = freeze(builder.rowBands);
+        colBands = freeze(builder.colBands);
+        largeAreas = builder.largeAreas.toArray();
+        areaNode = builder.areaNode.toArray();
+    }
+
+    static long cellKey(int sheet, int row, int col) {
+        return ((long) sheet << 34) | ((long) row << 14) | col;
+    }
+
+    private static long bandKey(int sheet, int band) {
+        return ((long) sheet << 32) | band;
+    }
+
+    /**
+     * Parses all the formulas of a workbook. The workbook is only read.
+     */
+    static FormulaGraph build(XSSFWorkbook workbook) {
+        Builder builder = new Builder(workbook);
+        for (int sheetIndex = 0; sheetIndex < workbook.getNumberOfSheets(); sheetIndex++) {
+            XSSFSheet sheet = workbook.getSheetAt(sheetIndex);
+            for (int rowIndex = sheet.getFirstRowNum(); rowIndex <= sheet.getLastRowNum(); rowIndex++) {
+                XSSFRow row = sheet.getRow(rowIndex);
+                if (row == null) {
+                    continue;
+                }
+                for (int colIndex = Math.max(row.getFirstCellNum(), 0); colIndex < row.getLastCellNum(); colIndex++) {
+                    XSSFCell cell = row.getCell(colIndex);
+                    if (cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA) {
+                        builder.addNode(sheetIndex, cell);
+                    }
+                }
+            }
+        }
+        return new FormulaGraph(builder);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * @return A number that identifies the graph, and so the template it was
+     * built from, among all the graphs of the process.
+     */
+    long getId() {
+        return id;
+    }
+
+    /**
+     * @return The node of a formula cell, or -1 if the cell had no formula
+     * in the template.
+     */
+    int nodeAt(int sheet, int row, int col) {
+        Integer node = nodeByCell.get(cellKey(sheet, row, col));
+        return node == null ? -1 : node;
+    }
+
+    int getSheet(int node) {
+        return nodeSheet[node];
+    }
+
+    int getRow(int node) {
+        return nodeRow[node];
+    }
+
+    int getCol(int node) {
+        return nodeCol[node];
+    }
+
+    /**
+     * @return The parsed formula, or null if POI could not parse it.
+     */
+    Ptg[] getTokens(int node) {
+        return tokens[node];
+    }
+
+    boolean hasFlag(int node, byte flag) {
+        return (flags[node] & flag) != 0;
+    }
+
+    /**
+     * Finds the formulas that must be evaluated again after writing into
+     * some ranges: those reading the ranges, directly or through other
+     * formulas, plus the ones that are always evaluated (volatile, dynamic or
+     * without a cached value) and the formulas depending on them.
+     *
+     * @param written Ranges whose values changed.
+     * @return The dirty nodes.
+     */
+    BitSet dependentsOf(Iterable<SheetRange> written) {
+        BitSet dirty = new BitSet(size);
+        IntList pending = new IntList();
+
+        for (int node = 0; node < size; node++) {
+            if (flags[node] != 0) {
+                dirty.set(node);
+                pending.add(node);
+            }
+        }
+        for (SheetRange range : written) {
+            collectNodesIn(range, dirty, pending);
+            collectReaders(range.sheet, range.firstRow, range.firstCol, range.lastRow, range.lastCol, dirty, pending);
+        }
+
+        for (int i = 0; i < pending.size(); i++) {
+            int node = pending.get(i);
+            collectReaders(nodeSheet[node], nodeRow[node], nodeCol[node], nodeRow[node], nodeCol[node], dirty, pending);
+        }
+        return dirty;
+    }
+
+    /**
+     * Finds the formulas read by some others, directly or through other
+     * formulas. The references of the dynamic formulas are not known, so
+     * their precedents are only partially followed.
+     *
+     * @param roots Nodes whose precedents are looked for.
+     * @return The roots and all their precedent nodes.
+     */
+    BitSet precedentsOf(BitSet roots) {
+        BitSet found = (BitSet) roots.clone();
+        IntList pending = new IntList();
+        for (int node = roots.nextSetBit(0); node >= 0; node = roots.nextSetBit(node + 1)) {
+            pending.add(node);
+        }
+
+        IntList precedentNodes = new IntList();
+        for (int i = 0; i < pending.size(); i++) {
+            precedentNodes.clear();
+            precedentNodes(pending.get(i), precedentNodes);
+            for (int j = 0; j < precedentNodes.size(); j++) {
+                int node = precedentNodes.get(j);
+                if (!found.get(node)) {
+                    found.set(node);
+                    pending.add(node);
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds the formulas placed inside a range. Writing a value into a
+     * formula cell only replaces its cached value, so the formula is still
+     * there and must be evaluated again.
+     */
+    private void collectNodesIn(SheetRange range, BitSet found, IntList added) {
+        IntList inside = new IntList();
+        nodesIn(range.sheet, range.firstRow, range.firstCol, range.lastRow, range.lastCol, inside);
+        for (int i = 0; i < inside.size(); i++) {
+            int node = inside.get(i);
+            if (!found.get(node)) {
+                found.set(node);
+                added.add(node);
+            }
+        }
+    }
+
+    /**
+     * Adds to out the formulas read by a node, once per range that holds
+     * them. Dynamic references are not included.
+     */
+    void precedentNodes(int node, IntList out) {
+        for (int range = precedentStart[node]; range < precedentStart[node + 1]; range++) {
+            int offset = range * 5;
+            nodesIn(precedents[offset], precedents[offset + 1], precedents[offset + 2],
+                precedents[offset + 3], precedents[offset + 4], out);
+        }
+    }
+
+    /**
+     * Adds to out the ranges read by a node. Dynamic references are not
+     * included.
+     */
+    void precedentRanges(int node, List<SheetRange> out) {
+        for (int range = precedentStart[node]; range < precedentStart[node + 1]; range++) {
+            int offset = range * 5;
+            out.add(new SheetRange(precedents[offset], precedents[offset + 1], precedents[offset + 2],
+                precedents[offset + 3], precedents[offset + 4]));
+        }
+    }
+
+    /**
+     * Adds to out the formulas placed inside a block of cells.
+     */
+    void nodesIn(int sheet, int firstRow, int firstCol, int lastRow, int lastCol, IntList out) {
+        long cells = (long) (lastRow - firstRow + 1) * (lastCol - firstCol + 1);
+        if (cells <= size) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    Integer node = nodeByCell.get(cellKey(sheet, row, col));
+                    if (node != null) {
+                        out.add(node);
+                    }
+                }
+            }
+        } else {
+            for (int node = 0; node < size; node++) {
+                if (nodeSheet[node] == sheet
+                        && nodeRow[node] >= firstRow && nodeRow[node] <= lastRow
+                        && nodeCol[node] >= firstCol && nodeCol[node] <= lastCol) {
+                    out.add(node);
+                }
+            }
+        }
+    }
+
+    /**
+     * Tells whether a sheet holds no formulas and no formula reads it, so its
+     * values are not needed to evaluate the workbook. A dynamic formula may
+     * read any sheet, so no sheet is data-only if there is one.
+     */
+    boolean isDataOnly(int sheet) {
+        for (int node = 0; node < size; node++) {
+            if (nodeSheet[node] == sheet || (flags[node] & DYNAMIC) != 0) {
+                return false;
+            }
+        }
+
+        IntList readers = new IntList();
+        collectReaders(sheet, 0, 0, SpreadsheetVersion.EXCEL2007.getLastRowIndex(),
+            SpreadsheetVersion.EXCEL2007.getLastColumnIndex(), new BitSet(size), readers);
+        return readers.size() == 0;
+    }
+
+    /**
+     * Adds to found the nodes, not yet in it, that read any cell of a block.
+     */
+    private void collectReaders(int sheet, int firstRow, int firstCol, int lastRow, int lastCol, BitSet found, IntList added) {
+        long cells = (long) (lastRow - firstRow + 1) * (lastCol - firstCol + 1);
+        if (cells <= cellDependents.size()) {
+            for (int row = firstRow; row <= lastRow; row++) {
+                for (int col = firstCol; col <= lastCol; col++) {
+                    addAll(cellDependents.get(cellKey(sheet, row, col)), found, added);
+                }
+            }
+        } else {
+            for (Map.Entry<Long, int[]> entry : cellDependents.entrySet()) {
+                long key = entry.getKey();
+                int row = (int) (key >>> 14) & 0xFFFFF;
+                int col = (int) key & 0x3FFF;
+                if ((int) (key >>> 34) == sheet && row >= firstRow && row <= lastRow && col >= firstCol && col <= lastCol) {
+                    addAll(entry.getValue(), found, added);
+                }
+            }
+        }
+
+        collectAreaReaders(rowBands, sheet, firstRow >> ROW_BAND_SHIFT, lastRow >> ROW_BAND_SHIFT,
+            sheet, firstRow, firstCol, lastRow, lastCol, found, added);
+        collectAreaReaders(colBands, sheet, firstCol >> COL_BAND_SHIFT, lastCol >> COL_BAND_SHIFT,
+            sheet, firstRow, firstCol, lastRow, lastCol, found, added);
+        collectAreaReaders(largeAreas, sheet, firstRow, firstCol, lastRow, lastCol, found, added);
+    }
+
+    private void collectAreaReaders(HashMap<Long, int[]> bands, int bandSheet, int firstBand, int lastBand,
+            int sheet, int firstRow, int firstCol, int lastRow, int lastCol, BitSet found, IntList added) {
+        if (lastBand - firstBand + 1 <= bands.size()) {
+            for (int band = firstBand; band <= lastBand; band++) {
+                int[] areas = bands.get(bandKey(bandSheet, band));
+                if (areas != null) {
+                    collectAreaReaders(areas, sheet, firstRow, firstCol, lastRow, lastCol, found, added);
+                }
+            }
+        } else {
+            for (Map.Entry<Long, int[]> entry : bands.entrySet()) {
+                long key = entry.getKey();
+                int band = (int) key;
+                if ((int) (key >>> 32) == bandSheet && band >= firstBand && band <= lastBand) {
+                    collectAreaReaders(entry.getValue(), sheet, firstRow, firstCol, lastRow, lastCol, found, added);
+                }
+            }
+        }
+    }
+
+    private void collectAreaReaders(int[] areas, int sheet, int firstRow, int firstCol, int lastRow, int lastCol,
+            BitSet found, IntList added) {
+        for (int area : areas) {
+            int node = areaNode[area];
+            if (found.get(node)) {
+                continue;
+            }
+            int offset = area * 5;
+            if (precedents[offset] == sheet
+                    && precedents[offset + 1] <= lastRow && precedents[offset + 3] >= firstRow
+                    && precedents[offset + 2] <= lastCol && precedents[offset + 4] >= firstCol) {
+                found.set(node);
+                added.add(node);
+            }
+        }
+    }
+
+    private static void addAll(int[] nodes, BitSet found, IntList added) {
+        if (nodes == null) {
+            return;
+        }
+        for (int node : nodes) {
+            if (!found.get(node)) {
+                found.set(node);
+                added.add(node);
+            }
+        }
+    }
+
+    private static HashMap<Long, int[]> freeze(HashMap<Long, IntList> lists) {
+        HashMap<Long, int[]> frozen = new HashMap<>(lists.size() * 2);
+        for (Map.Entry<Long, IntList> entry : lists.entrySet()) {
+            frozen.put(entry.getKey(), entry.getValue().toArray());
+        }
+        return frozen;
+    }
+
+    private static final class Builder {
+        private final XSSFWorkbook workbook;
+        private final XSSFEvaluationWorkbook parsingWorkbook;
+
+        private final IntList nodeSheet = new IntList(1024);
+        private final IntList nodeRow = new IntList(1024);
+        private final IntList nodeCol = new IntList(1024);
+        private Ptg[][] tokens = new Ptg[1024][];
+        private byte[] flags = new byte[1024];
+        private final HashMap<Long, Integer> nodeByCell = new HashMap<>();
+
+        private final IntList precedentStart = new IntList(1024);
+        private final IntList precedents = new IntList(4096);
+
+        private final HashMap<Long, IntList> cellDependents = new HashMap<>();
+        private final HashMap<Long, IntList> rowBands = new HashMap<>();
+        private final HashMap<Long, IntList> colBands = new HashMap<>();
+        private final IntList largeAreas = new IntList();
+        private final IntList areaNode = new IntList();
+
+        Builder(XSSFWorkbook workbook) {
+            this.workbook = workbook;
+            this.parsingWorkbook = XSSFEvaluationWorkbook.create(workbook);
+            precedentStart.add(0);
+        }
+
+        void addNode(int sheetIndex, XSSFCell cell) {
+            int node = nodeSheet.size();
+            nodeSheet.add(sheetIndex);
+            nodeRow.add(cell.getRowIndex());
+            nodeCol.add(cell.getColumnIndex());
+            nodeByCell.put(cellKey(sheetIndex, cell.getRowIndex(), cell.getColumnIndex()), node);
+            if (node == tokens.length) {
+                tokens = Arrays.copyOf(tokens, node * 2);
+                flags = Arrays.copyOf(flags, node * 2);
+            }
+
+            if (!cell.getCTCell().isSetV()) {
+                flags[node] |= UNCACHED;
+            }
+
+            try {
+                Ptg[] ptgs = FormulaParser.parse(cell.getCellFormula(), parsingWorkbook, FormulaType.CELL, sheetIndex);
+                tokens[node] = ptgs;
+                addPrecedents(node, sheetIndex, ptgs, 0);
+            } catch (FormulaParseException e) {
+                // Left to POI on evaluation; its precedents are unknown.
+                flags[node] |= DYNAMIC;
+            }
+
+            precedentStart.add(precedents.size() / 5);
+        }
+
+        private void addPrecedents(int node, int sheetIndex, Ptg[] ptgs, int depth) {
+            for (Ptg ptg : ptgs) {
+                if (ptg instanceof RefPtg) {
+                    RefPtgBase ref = (RefPtgBase) ptg;
+                    addRange(node, sheetIndex, ref.getRow(), ref.getColumn(), ref.getRow(), ref.getColumn());
+                } else if (ptg instanceof Area2DPtgBase) {
+                    AreaPtgBase area = (AreaPtgBase) ptg;
+                    addRange(node, sheetIndex, area.getFirstRow(), area.getFirstColumn(), area.getLastRow(), area.getLastColumn());
+                } else if (ptg instanceof Ref3DPxg) {
+                    Ref3DPxg ref = (Ref3DPxg) ptg;
+                    for (int sheet : sheetsOf(node, ref)) {
+                        addRange(node, sheet, ref.getRow(), ref.getColumn(), ref.getRow(), ref.getColumn());
+                    }
+                } else if (ptg instanceof Area3DPxg) {
+                    Area3DPxg area = (Area3DPxg) ptg;
+                    for (int sheet : sheetsOf(node, area)) {
+                        addRange(node, sheet, area.getFirstRow(), area.getFirstColumn(), area.getLastRow(), area.getLastColumn());
+                    }
+                } else if (ptg instanceof NamePtg) {
+                    EvaluationName name = parsingWorkbook.getName((NamePtg) ptg);
+                    if (depth >= MAX_NAME_DEPTH || name == null || !name.hasFormula()) {
+                        flags[node] |= DYNAMIC;
+                    } else {
+                        addPrecedents(node, sheetIndex, name.getNameDefinition(), depth + 1);
+                    }
+                } else if (ptg instanceof NameXPxg) {
+                    flags[node] |= DYNAMIC;
+                } else if (ptg instanceof AbstractFunctionPtg) {
+                    String function = ((AbstractFunctionPtg) ptg).getName();
+                    if (VOLATILE_FUNCTIONS.contains(function)) {
+                        flags[node] |= VOLATILE;
+                    } else if (DYNAMIC_FUNCTIONS.contains(function)) {
+                        flags[node] |= DYNAMIC;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The sheets of a 3D reference, empty if it is external.
+         */
+        private int[] sheetsOf(int node, Pxg3D ref) {
+            if (ref.getExternalWorkbookNumber() > 0) {
+                return new int[0];
+            }
+            int first = workbook.getSheetIndex(ref.getSheetName());
+            int last = ref.getLastSheetName() == null ? first : workbook.getSheetIndex(ref.getLastSheetName());
+            if (first < 0 || last < 0) {
+                flags[node] |= DYNAMIC;
+                return new int[0];
+            }
+
+            int[] sheets = new int[Math.abs(last - first) + 1];
+            for (int i = 0; i < sheets.length; i++) {
+                sheets[i] = Math.min(first, last) + i;
+            }
+            return sheets;
+        }
+
+        private void addRange(int node, int sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+            int range = precedents.size() / 5;
+            precedents.add(sheet);
+            precedents.add(firstRow);
+            precedents.add(firstCol);
+            precedents.add(lastRow);
+            precedents.add(lastCol);
+
+            if (firstRow == lastRow && firstCol == lastCol) {
+                cellDependents.computeIfAbsent(cellKey(sheet, firstRow, firstCol), key -> new IntList(2)).add(node);
+                return;
+            }
+
+            // Areas are looked up by their position in precedents.
+            while (areaNode.size() < range) {
+                areaNode.add(-1);
+            }
+            areaNode.add(node);
+
+            int firstRowBand = firstRow >> ROW_BAND_SHIFT;
+            int lastRowBand = lastRow >> ROW_BAND_SHIFT;
+            int firstColBand = firstCol >> COL_BAND_SHIFT;
+            int lastColBand = lastCol >> COL_BAND_SHIFT;
+            if (lastRowBand - firstRowBand < MAX_BANDS) {
+                for (int band = firstRowBand; band <= lastRowBand; band++) {
+                    rowBands.computeIfAbsent(bandKey(sheet, band), key -> new IntList(4)).add(range);
+                }
+            } else if (lastColBand - firstColBand < MAX_BANDS) {
+                for (int band = firstColBand; band <= lastColBand; band++) {
+                    colBands.computeIfAbsent(bandKey(sheet, band), key -> new IntList(4)).add(range);
+                }
+            } else {
+                largeAreas.add(range);
+            }
+        }
+    }
+}
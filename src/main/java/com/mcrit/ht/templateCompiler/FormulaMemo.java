@@ -0,0 +1,273 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Cache of formula results shared by the compilations of a long-lived
+ * process.
+ *
+ * The results of a region, a group of formulas of one sheet, are keyed by
+ * the formula graph of their template and by a SHA-256 fingerprint of every
+ * value the region reads, directly or through other formulas. A later
+ * compilation of the same template that feeds the region the same values
+ * takes its results from the cache instead of evaluating it. Regions that
+ * read volatile or dynamic formulas are never cached. The cache is bounded
+ * by an estimate of the size of the results it keeps and evicts the least
+ * recently used regions first.
+ *
+ * The default instance is configured with the system property
+ * htxlsx.formulaMemo.bytes.
+ */
+public class FormulaMemo {
+    public static final String BUDGET_PROPERTY = "htxlsx.formulaMemo.bytes";
+
+    private static final long DEFAULT_BUDGET = 32L << 20;
+
+    private static final FormulaMemo DEFAULT = new FormulaMemo(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+
+    private final LruCache<String, ValueEval[]> regions;
+
+    /**
+     * @param byteBudget Maximum estimated size of the cached results, in
+     * bytes. Zero disables the cache.
+     */
+    public FormulaMemo(long byteBudget) {
+        this.regions = new LruCache<>(byteBudget, FormulaMemo::weigh, null);
+    }
+
+    public static FormulaMemo getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Computes the key of a region from the values it reads now.
+     *
+     * @param nodes Nodes of the region, in ascending order.
+     * @return The key, or null if the region can not be cached.
+     */
+    String fingerprint(XSSFWorkbook workbook, FormulaGraph graph, int[] nodes) {
+        if (regions.getBudget() <= 0) {
+            return null;
+        }
+
+        BitSet region = new BitSet(graph.size());
+        for (int node : nodes) {
+            region.set(node);
+        }
+        BitSet closure = graph.precedentsOf(region);
+
+        Fingerprint fingerprint = new Fingerprint();
+        fingerprint.putLong(graph.getId());
+        fingerprint.putInt(nodes.length);
+        for (int node : nodes) {
+            fingerprint.putInt(node);
+        }
+
+        List<SheetRange> ranges = new ArrayList<>();
+        Set<SheetRange> seen = new HashSet<>();
+        for (int node = closure.nextSetBit(0); node >= 0; node = closure.nextSetBit(node + 1)) {
+            if (graph.hasFlag(node, FormulaGraph.VOLATILE) || graph.hasFlag(node, FormulaGraph.DYNAMIC)) {
+                return null;
+            }
+            ranges.clear();
+            graph.precedentRanges(node, ranges);
+            for (SheetRange range : ranges) {
+                if (seen.add(range)) {
+                    putValues(workbook, graph, range, fingerprint);
+                }
+            }
+        }
+        return fingerprint.finish();
+    }
+
+    /**
+     * Adds the values of the plain cells of a range. The formulas are left
+     * out: the values they read are part of the fingerprint too, or they
+     * keep the value cached in the template.
+     */
+    private static void putValues(XSSFWorkbook workbook, FormulaGraph graph, SheetRange range, Fingerprint fingerprint) {
+        XSSFSheet sheet = workbook.getSheetAt(range.sheet);
+        int lastRow = Math.min(range.lastRow, sheet.getLastRowNum());
+        for (int rowIndex = range.firstRow; rowIndex <= lastRow; rowIndex++) {
+            XSSFRow row = sheet.getRow(rowIndex);
+            if (row == null) {
+                continue;
+            }
+            int lastCol = Math.min(range.lastCol, row.getLastCellNum() - 1);
+            for (int colIndex = Math.max(range.firstCol, row.getFirstCellNum()); colIndex <= lastCol; colIndex++) {
+                XSSFCell cell = row.getCell(colIndex);
+                if (cell == null || cell.getCellType() == Cell.CELL_TYPE_BLANK
+                        || graph.nodeAt(range.sheet, rowIndex, colIndex) >= 0) {
+                    continue;
+                }
+                fingerprint.putInt(range.sheet);
+                fingerprint.putInt(rowIndex);
+                fingerprint.putInt(colIndex);
+                fingerprint.putInt(cell.getCellType());
+                switch (cell.getCellType()) {
+                    case Cell.CELL_TYPE_NUMERIC:
+                        fingerprint.putLong(Double.doubleToLongBits(cell.getNumericCellValue()));
+                        break;
+                    case Cell.CELL_TYPE_STRING:
+                        fingerprint.putString(cell.getRichStringCellValue().getString());
+                        break;
+                    case Cell.CELL_TYPE_BOOLEAN:
+                        fingerprint.putInt(cell.getBooleanCellValue() ? 1 : 0);
+                        break;
+                    case Cell.CELL_TYPE_ERROR:
+                        fingerprint.putInt(cell.getErrorCellValue());
+                        break;
+                    default:
+                        fingerprint.putString(cell.getRawValue());
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The results of a region, in the order of its nodes, or null if
+     * they are not cached.
+     */
+    ValueEval[] get(String key) {
+        return regions.get(key);
+    }
+
+    /**
+     * @param values Results of the nodes of the region. They are shared and
+     * must not be modified.
+     */
+    void put(String key, ValueEval[] values) {
+        regions.put(key, values);
+    }
+
+    private static long weigh(ValueEval[] values) {
+        long weight = 64 + 8L * values.length;
+        for (ValueEval value : values) {
+            weight += value instanceof StringEval ? 56 + 2L * ((StringEval) value).getStringValue().length() : 24;
+        }
+        return weight;
+    }
+
+    public void setByteBudget(long byteBudget) {
+        regions.setBudget(byteBudget);
+    }
+
+    public long getByteBudget() {
+        return regions.getBudget();
+    }
+
+    /**
+     * @return Estimated size in bytes of the cached results.
+     */
+    public long getSize() {
+        return regions.getWeight();
+    }
+
+    public long getHits() {
+        return regions.getHits();
+    }
+
+    public long getMisses() {
+        return regions.getMisses();
+    }
+
+    public long getEvictions() {
+        return regions.getEvictions();
+    }
+
+    public void clear() {
+        regions.clear();
+    }
+
+    /**
+     * SHA-256 of a sequence of primitive values, buffered to avoid a call to
+     * the digest for each of them.
+     */
+    private static final class Fingerprint {
+        private final MessageDigest digest;
+        private final ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+        Fingerprint() {
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                // Every Java platform is required to support SHA-256.
+                throw new IllegalStateException(e);
+            }
+        }
+
+        void putInt(int value) {
+            reserve(4);
+            buffer.putInt(value);
+        }
+
+        void putLong(long value) {
+            reserve(8);
+            buffer.putLong(value);
+        }
+
+        void putString(String value) {
+            byte[] bytes = value == null ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+            putInt(bytes.length);
+            flush();
+            digest.update(bytes);
+        }
+
+        String finish() {
+            flush();
+            return Base64.getEncoder().encodeToString(digest.digest());
+        }
+
+        private void reserve(int bytes) {
+            if (buffer.remaining() < bytes) {
+                flush();
+            }
+        }
+
+        private void flush() {
+            digest.update(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+    }
+}
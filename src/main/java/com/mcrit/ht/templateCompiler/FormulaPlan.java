@@ -0,0 +1,347 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.Arrays;
+
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.AddPtg;
+import org.apache.poi.ss.formula.ptg.DividePtg;
+import org.apache.poi.ss.formula.ptg.IntPtg;
+import org.apache.poi.ss.formula.ptg.MultiplyPtg;
+import org.apache.poi.ss.formula.ptg.NumberPtg;
+import org.apache.poi.ss.formula.ptg.ParenthesisPtg;
+import org.apache.poi.ss.formula.ptg.PercentPtg;
+import org.apache.poi.ss.formula.ptg.PowerPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.ptg.Ref3DPxg;
+import org.apache.poi.ss.formula.ptg.RefPtg;
+import org.apache.poi.ss.formula.ptg.RefPtgBase;
+import org.apache.poi.ss.formula.ptg.SubtractPtg;
+import org.apache.poi.ss.formula.ptg.UnaryMinusPtg;
+import org.apache.poi.ss.formula.ptg.UnaryPlusPtg;
+import org.apache.poi.ss.usermodel.Cell;
+
+/**
+ * Evaluation of many copies of one relative formula at once.
+ *
+ * Templates repeat the same formula down a column, every copy reading the
+ * cells of its own row. The copies whose tokens only differ in the position
+ * of their relative references share a plan, identified by its key. The cells
+ * read by each reference are gathered into a double[] with one element per
+ * copy, and every operator runs over whole columns in a tight loop.
+ *
+ * Only references to single cells, numeric constants and the arithmetic
+ * operators are supported, following the rules of the POI operators: blank
+ * cells read as 0, the error of the left operand wins over the right one, a
+ * zero result is +0 except for a subtraction, and a result that is not
+ * finite is #NUM!. A copy that reads text, a boolean or a formula without a
+ * value yet is left for POI to evaluate.
+ */
+final class FormulaPlan {
+    private static final byte LOAD = 0;
+    private static final byte CONSTANT = 1;
+    private static final byte ADD = 2;
+    private static final byte SUBTRACT = 3;
+    private static final byte MULTIPLY = 4;
+    private static final byte DIVIDE = 5;
+    private static final byte POWER = 6;
+    private static final byte NEGATE = 7;
+    private static final byte PERCENT = 8;
+
+    /** Error code of a value that is not an error; 0 is #NULL!. */
+    private static final int NO_ERROR = -1;
+
+    // Sheet of a reference without one: the sheet of the copy.
+    private static final int OWN_SHEET = -1;
+
+    private final String key;
+    private final byte[] ops;
+    private final double[] constants;
+    // For each LOAD, 5 ints: sheet, row, 1 if the row is relative, column,
+    // 1 if the column is relative. Relative positions are offsets from the
+    // cell of the copy.
+    private final int[] references;
+    private final int depth;
+
+    private FormulaPlan(String key, byte[] ops, double[] constants, int[] references, int depth) {
+        this.key = key;
+        this.ops = ops;
+        this.constants = constants;
+        this.references = references;
+        this.depth = depth;
+    }
+
+    /**
+     * @return The plan of a node, or null if its formula uses something
+     * plans do not support.
+     */
+    static FormulaPlan compile(FormulaGraph graph, GraphEvaluationWorkbook view, int node) {
+        Ptg[] tokens = graph.getTokens(node);
+        if (tokens == null || tokens.length == 0) {
+            return null;
+        }
+
+        StringBuilder key = new StringBuilder();
+        byte[] ops = new byte[tokens.length];
+        double[] constants = new double[tokens.length];
+        IntList references = new IntList();
+        int count = 0;
+        int height = 0;
+        int depth = 0;
+
+        for (Ptg token : tokens) {
+            byte op;
+            if (token instanceof RefPtg || token instanceof Ref3DPxg) {
+                int sheet = OWN_SHEET;
+                if (token instanceof Ref3DPxg) {
+                    Ref3DPxg ref = (Ref3DPxg) token;
+                    if (ref.getExternalWorkbookNumber() > 0 || ref.getLastSheetName() != null) {
+                        return null;
+                    }
+                    sheet = view.getSheetIndex(ref.getSheetName());
+                    if (sheet < 0) {
+                        return null;
+                    }
+                }
+                RefPtgBase ref = (RefPtgBase) token;
+                int row = ref.isRowRelative() ? ref.getRow() - graph.getRow(node) : ref.getRow();
+                int col = ref.isColRelative() ? ref.getColumn() - graph.getCol(node) : ref.getColumn();
+                references.add(sheet);
+                references.add(row);
+                references.add(ref.isRowRelative() ? 1 : 0);
+                references.add(col);
+                references.add(ref.isColRelative() ? 1 : 0);
+                key.append('L').append(sheet)
+                    .append(ref.isRowRelative() ? 'r' : 'R').append(row)
+                    .append(ref.isColRelative() ? 'c' : 'C').append(col);
+                op = LOAD;
+            } else if (token instanceof IntPtg || token instanceof NumberPtg) {
+                constants[count] = token instanceof IntPtg ? ((IntPtg) token).getValue() : ((NumberPtg) token).getValue();
+                key.append('K').append(Double.doubleToLongBits(constants[count]));
+                op = CONSTANT;
+            } else if (token instanceof ParenthesisPtg || token instanceof UnaryPlusPtg) {
+                // UnaryPlusPtg only changes text operands, which are left to POI.
+                continue;
+            } else if (token instanceof AddPtg) {
+                op = ADD;
+            } else if (token instanceof SubtractPtg) {
+                op = SUBTRACT;
+            } else if (token instanceof MultiplyPtg) {
+                op = MULTIPLY;
+            } else if (token instanceof DividePtg) {
+                op = DIVIDE;
+            } else if (token instanceof PowerPtg) {
+                op = POWER;
+            } else if (token instanceof UnaryMinusPtg) {
+                op = NEGATE;
+            } else if (token instanceof PercentPtg) {
+                op = PERCENT;
+            } else {
+                return null;
+            }
+
+            if (op == LOAD || op == CONSTANT) {
+                height += 1;
+                depth = Math.max(depth, height);
+            } else if (op != NEGATE && op != PERCENT) {
+                height -= 1;
+                key.append('O').append(op);
+            } else {
+                key.append('O').append(op);
+            }
+            if (height < 1) {
+                return null;
+            }
+            ops[count++] = op;
+        }
+        if (height != 1) {
+            return null;
+        }
+        return new FormulaPlan(key.toString(), Arrays.copyOf(ops, count), Arrays.copyOf(constants, count),
+            references.toArray(), depth);
+    }
+
+    /**
+     * @return A string equal for the plans that can evaluate each other's
+     * nodes.
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Evaluates the copies of the formula in some nodes. The copies this
+     * plan can not evaluate keep a null result.
+     *
+     * @param nodes Nodes sharing the key of the plan.
+     * @param results Results by node, where the new ones are stored.
+     * @return The number of nodes evaluated.
+     */
+    int evaluate(FormulaGraph graph, GraphEvaluationWorkbook view, int[] nodes, ValueEval[] results) {
+        int n = nodes.length;
+        double[][] values = new double[depth][n];
+        int[][] errors = new int[depth][n];
+        boolean[] unsupported = new boolean[n];
+
+        int top = -1;
+        int reference = 0;
+        for (int i = 0; i < ops.length; i++) {
+            switch (ops[i]) {
+                case LOAD:
+                    top += 1;
+                    load(graph, view, reference, nodes, values[top], errors[top], unsupported);
+                    reference += 5;
+                    break;
+                case CONSTANT:
+                    top += 1;
+                    Arrays.fill(values[top], constants[i]);
+                    Arrays.fill(errors[top], NO_ERROR);
+                    break;
+                case NEGATE:
+                case PERCENT:
+                    unary(ops[i], values[top], errors[top]);
+                    break;
+                default:
+                    binary(ops[i], values[top - 1], errors[top - 1], values[top], errors[top]);
+                    top -= 1;
+            }
+        }
+
+        int evaluated = 0;
+        for (int j = 0; j < n; j++) {
+            if (!unsupported[j]) {
+                results[nodes[j]] = errors[0][j] != NO_ERROR ? ErrorEval.valueOf(errors[0][j]) : new NumberEval(values[0][j]);
+                evaluated += 1;
+            }
+        }
+        return evaluated;
+    }
+
+    /**
+     * Reads the cells of one reference for every copy.
+     */
+    private void load(FormulaGraph graph, GraphEvaluationWorkbook view, int reference, int[] nodes,
+            double[] values, int[] errors, boolean[] unsupported) {
+        int sheet = references[reference];
+        int row = references[reference + 1];
+        boolean rowRelative = references[reference + 2] != 0;
+        int col = references[reference + 3];
+        boolean colRelative = references[reference + 4] != 0;
+
+        for (int j = 0; j < nodes.length; j++) {
+            int node = nodes[j];
+            EvaluationCell cell = view.getCell(sheet == OWN_SHEET ? graph.getSheet(node) : sheet,
+                rowRelative ? graph.getRow(node) + row : row,
+                colRelative ? graph.getCol(node) + col : col);
+            errors[j] = NO_ERROR;
+            values[j] = 0.0;
+            if (cell == null) {
+                continue;
+            }
+            switch (cell.getCellType()) {
+                case Cell.CELL_TYPE_NUMERIC:
+                    values[j] = cell.getNumericCellValue();
+                    break;
+                case Cell.CELL_TYPE_BLANK:
+                    break;
+                case Cell.CELL_TYPE_ERROR:
+                    errors[j] = cell.getErrorCellValue();
+                    break;
+                default:
+                    unsupported[j] = true;
+            }
+        }
+    }
+
+    private static void unary(byte op, double[] values, int[] errors) {
+        for (int j = 0; j < values.length; j++) {
+            if (errors[j] != NO_ERROR) {
+                continue;
+            }
+            if (values[j] == 0.0) {
+                values[j] = 0.0;
+            } else if (op == NEGATE) {
+                values[j] = -values[j];
+            } else {
+                values[j] = values[j] / 100;
+            }
+        }
+    }
+
+    /**
+     * Applies an operator, leaving the result in the left operand.
+     */
+    private static void binary(byte op, double[] left, int[] leftErrors, double[] right, int[] rightErrors) {
+        int n = left.length;
+        switch (op) {
+            case ADD:
+                for (int j = 0; j < n; j++) {
+                    left[j] += right[j];
+                }
+                break;
+            case SUBTRACT:
+                for (int j = 0; j < n; j++) {
+                    left[j] -= right[j];
+                }
+                break;
+            case MULTIPLY:
+                for (int j = 0; j < n; j++) {
+                    left[j] *= right[j];
+                }
+                break;
+            case DIVIDE:
+                for (int j = 0; j < n; j++) {
+                    left[j] /= right[j];
+                }
+                break;
+            default:
+                for (int j = 0; j < n; j++) {
+                    left[j] = Math.pow(left[j], right[j]);
+                }
+        }
+
+        for (int j = 0; j < n; j++) {
+            if (leftErrors[j] != NO_ERROR) {
+                continue;
+            }
+            if (rightErrors[j] != NO_ERROR) {
+                leftErrors[j] = rightErrors[j];
+            } else if (op == DIVIDE && right[j] == 0.0) {
+                leftErrors[j] = ErrorEval.DIV_ZERO.getErrorCode();
+            } else if (left[j] == 0.0) {
+                // Excel turns -0 into +0, except for a subtraction.
+                if (op != SUBTRACT) {
+                    left[j] = 0.0;
+                }
+            } else if (Double.isNaN(left[j]) || Double.isInfinite(left[j])) {
+                leftErrors[j] = ErrorEval.NUM_ERROR.getErrorCode();
+            }
+        }
+    }
+}
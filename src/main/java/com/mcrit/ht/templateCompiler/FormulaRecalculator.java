@@ -0,0 +1,588 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.poi.ss.formula.IStabilityClassifier;
+import org.apache.poi.ss.formula.WorkbookEvaluator;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Evaluates again the formulas affected by a compilation and stores the
+ * results as their cached values, leaving every other formula with the value
+ * it had in the template.
+ *
+ * The dirty formulas are split in levels: a formula is in the level after
+ * the last of the dirty formulas it reads. The formulas of a level do not
+ * depend on each other, so large levels are evaluated on a ForkJoinPool,
+ * every task with its own evaluator. The pool is shared by all the
+ * compilations of the process, apart from the common pool. Its size is set
+ * with the system property htxlsx.formulaThreads and defaults to the number
+ * of processors. Formulas with dynamic references, those
+ * in a cycle and everything depending on them can not be placed in a level;
+ * they are evaluated last, in workbook order, by a single evaluator. The
+ * results are the same as with a single evaluator, whatever the number of
+ * threads.
+ *
+ * Within a level, the copies of a relative formula repeated in many cells are
+ * evaluated together by a {@link FormulaPlan} when it supports them, and by
+ * POI otherwise.
+ *
+ * The workbook is only read while evaluating; the results are written back
+ * once all the formulas have been evaluated. A formula that fails to evaluate
+ * keeps its cached value and is reported in {@link #getFailures()}.
+ *
+ * With a {@link FormulaMemo}, the dirty formulas of some sheets form one
+ * region per sheet. A region whose inputs match an earlier evaluation takes
+ * its results from the memo and is not evaluated; the others are stored in it
+ * once evaluated without failures.
+ */
+final class FormulaRecalculator {
+    static final String THREADS_PROPERTY = "htxlsx.formulaThreads";
+
+    /** Smallest number of formulas worth a task of their own. */
+    private static final int MIN_TASK_SIZE = 64;
+    /** Smallest number of copies of a formula worth a plan. */
+    private static final int MIN_PLAN_SIZE = 8;
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private static final ForkJoinPool POOL = new ForkJoinPool(
+        Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())),
+        forkJoinPool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(forkJoinPool);
+            thread.setName("formula-eval-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        },
+        null, false);
+
+    private final XSSFWorkbook workbook;
+    private final FormulaGraph graph;
+    private final ForkJoinPool pool;
+    private final List<Failure> failures = new ArrayList<>();
+    private int skipped;
+    private BitSet evaluated = new BitSet();
+    private FormulaMemo memo;
+    private BitSet memoSheets;
+    private int reused;
+    private int planned;
+
+    FormulaRecalculator(XSSFWorkbook workbook, FormulaGraph graph) {
+        this(workbook, graph, POOL);
+    }
+
+    FormulaRecalculator(XSSFWorkbook workbook, FormulaGraph graph, ForkJoinPool pool) {
+        this.workbook = workbook;
+        this.graph = graph;
+        this.pool = pool;
+    }
+
+    /**
+     * Reuses the results of the formulas of some sheets when they read the
+     * same values as in an earlier evaluation of the same template.
+     *
+     * @param sheets Indexes of the sheets whose formulas are memoized.
+     */
+    void setMemo(FormulaMemo memo, BitSet sheets) {
+        this.memo = memo;
+        this.memoSheets = sheets;
+    }
+
+    /**
+     * @param written Ranges whose values were written by the compilation.
+     * @return Number of formulas evaluated.
+     */
+    int recalculate(Iterable<SheetRange> written) {
+        BitSet dirty = graph.dependentsOf(written);
+        skipped = 0;
+        return evaluate(dirty, dirty);
+    }
+
+    /**
+     * Same as {@link #recalculate(Iterable)}, but only evaluates the dirty
+     * formulas read by some roots. The other dirty formulas keep a stale
+     * cached value, unless a dynamic reference reaches them.
+     *
+     * @param roots Nodes whose value is wanted.
+     * @return Number of formulas evaluated.
+     */
+    int recalculate(Iterable<SheetRange> written, BitSet roots) {
+        BitSet dirty = graph.dependentsOf(written);
+        BitSet wanted = graph.precedentsOf(roots);
+        wanted.and(dirty);
+        skipped = dirty.cardinality() - wanted.cardinality();
+        return evaluate(dirty, wanted);
+    }
+
+    /**
+     * Evaluates every formula of the workbook.
+     *
+     * @return Number of formulas evaluated.
+     */
+    int recalculateAll() {
+        BitSet all = new BitSet(graph.size());
+        all.set(0, graph.size());
+        skipped = 0;
+        return evaluate(all, all);
+    }
+
+    /**
+     * @return The formulas the last recalculation evaluated or tried to.
+     */
+    BitSet getEvaluated() {
+        return evaluated;
+    }
+
+    /**
+     * @return Number of dirty formulas left stale by the last recalculation.
+     */
+    int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * @return Number of formulas whose result the last recalculation took
+     * from the memo.
+     */
+    int getReused() {
+        return reused;
+    }
+
+    /**
+     * @return Number of formulas the last recalculation evaluated with a
+     * {@link FormulaPlan}.
+     */
+    int getPlanned() {
+        return planned;
+    }
+
+    /**
+     * @return The formulas that failed in the last recalculation, in
+     * workbook order.
+     */
+    List<Failure> getFailures() {
+        return Collections.unmodifiableList(failures);
+    }
+
+    /**
+     * @param dirty Formulas whose cached value can not be used.
+     * @param wanted Dirty formulas to evaluate.
+     */
+    private int evaluate(BitSet dirty, BitSet wanted) {
+        failures.clear();
+        evaluated = wanted;
+        ValueEval[] results = new ValueEval[graph.size()];
+        Failure[] nodeFailures = new Failure[graph.size()];
+        GraphEvaluationWorkbook view = new GraphEvaluationWorkbook(workbook, graph, dirty, results);
+
+        // Memoized regions are looked up before anything is evaluated; their
+        // results then look like plain values to the rest of the formulas.
+        BitSet pending = wanted;
+        List<Region> missed = new ArrayList<>();
+        reused = 0;
+        for (Region region : findRegions(wanted)) {
+            ValueEval[] values = memo.get(region.key);
+            if (values == null) {
+                missed.add(region);
+                continue;
+            }
+            if (pending == wanted) {
+                pending = (BitSet) wanted.clone();
+            }
+            for (int i = 0; i < region.nodes.length; i++) {
+                results[region.nodes[i]] = values[i];
+                pending.clear(region.nodes[i]);
+            }
+            reused += region.nodes.length;
+        }
+        Schedule schedule = new Schedule(pending);
+
+        // Small levels run one after the other on the calling thread, sharing
+        // an evaluator; its cache stays valid because results never change.
+        WorkbookEvaluator serial = newEvaluator(view);
+        planned = 0;
+        for (int level = 0; level < schedule.levelCount(); level++) {
+            int[] nodes = evaluatePlans(view, schedule.order,
+                schedule.levelStart.get(level), schedule.levelStart.get(level + 1), results);
+            if (nodes.length < 2 * MIN_TASK_SIZE || pool.getParallelism() < 2) {
+                evaluateNodes(serial, view, nodes, 0, nodes.length, results, nodeFailures);
+            } else {
+                pool.invoke(new LevelTask(view, nodes, 0, nodes.length, results, nodeFailures));
+            }
+        }
+        evaluateNodes(serial, view, schedule.tail, 0, schedule.tail.length, results, nodeFailures);
+
+        for (Region region : missed) {
+            region.store(results);
+        }
+
+        int evaluated = 0;
+        for (int node = wanted.nextSetBit(0); node >= 0; node = wanted.nextSetBit(node + 1)) {
+            if (results[node] != null) {
+                setCachedValue(getFormulaCell(node), results[node]);
+                evaluated += 1;
+            } else if (nodeFailures[node] != null) {
+                failures.add(nodeFailures[node]);
+            }
+        }
+        return evaluated;
+    }
+
+    /**
+     * @return The memoizable regions of the wanted formulas: those of each
+     * memoized sheet, if the memo can fingerprint them.
+     */
+    private List<Region> findRegions(BitSet wanted) {
+        if (memo == null) {
+            return Collections.emptyList();
+        }
+
+        IntList[] bySheet = new IntList[workbook.getNumberOfSheets()];
+        for (int node = wanted.nextSetBit(0); node >= 0; node = wanted.nextSetBit(node + 1)) {
+            int sheet = graph.getSheet(node);
+            if (memoSheets.get(sheet)) {
+                if (bySheet[sheet] == null) {
+                    bySheet[sheet] = new IntList();
+                }
+                bySheet[sheet].add(node);
+            }
+        }
+
+        List<Region> regions = new ArrayList<>();
+        for (IntList nodes : bySheet) {
+            if (nodes != null) {
+                int[] regionNodes = nodes.toArray();
+                String key = memo.fingerprint(workbook, graph, regionNodes);
+                if (key != null) {
+                    regions.add(new Region(key, regionNodes));
+                }
+            }
+        }
+        return regions;
+    }
+
+    /**
+     * The wanted formulas of a memoized sheet.
+     */
+    private final class Region {
+        final String key;
+        final int[] nodes;
+
+        Region(String key, int[] nodes) {
+            this.key = key;
+            this.nodes = nodes;
+        }
+
+        /**
+         * Adds the results of the region to the memo, unless some formula
+         * failed or was not evaluated.
+         */
+        void store(ValueEval[] results) {
+            ValueEval[] values = new ValueEval[nodes.length];
+            for (int i = 0; i < nodes.length; i++) {
+                values[i] = results[nodes[i]];
+                if (values[i] == null) {
+                    return;
+                }
+            }
+            memo.put(key, values);
+        }
+    }
+
+    /**
+     * Evaluates with a {@link FormulaPlan} the nodes of a level that share it
+     * with enough others.
+     *
+     * @return The nodes left for POI to evaluate.
+     */
+    private int[] evaluatePlans(GraphEvaluationWorkbook view, int[] nodes, int from, int to, ValueEval[] results) {
+        Map<String, FormulaPlan> plans = new HashMap<>();
+        Map<String, IntList> copies = new HashMap<>();
+        IntList left = new IntList();
+        for (int i = from; i < to; i++) {
+            int node = nodes[i];
+            FormulaPlan plan = getFormulaCell(node) == null ? null : FormulaPlan.compile(graph, view, node);
+            if (plan == null) {
+                left.add(node);
+                continue;
+            }
+            plans.putIfAbsent(plan.getKey(), plan);
+            copies.computeIfAbsent(plan.getKey(), key -> new IntList()).add(node);
+        }
+
+        for (Map.Entry<String, IntList> entry : copies.entrySet()) {
+            int[] group = entry.getValue().toArray();
+            if (group.length >= MIN_PLAN_SIZE) {
+                planned += plans.get(entry.getKey()).evaluate(graph, view, group, results);
+            }
+            for (int node : group) {
+                if (results[node] == null) {
+                    left.add(node);
+                }
+            }
+        }
+        return left.toArray();
+    }
+
+    private WorkbookEvaluator newEvaluator(GraphEvaluationWorkbook view) {
+        return new WorkbookEvaluator(view, IStabilityClassifier.TOTALLY_IMMUTABLE, UDFFinder.DEFAULT);
+    }
+
+    private void evaluateNodes(WorkbookEvaluator evaluator, GraphEvaluationWorkbook view, int[] nodes,
+            int from, int to, ValueEval[] results, Failure[] nodeFailures) {
+        for (int i = from; i < to; i++) {
+            int node = nodes[i];
+            XSSFCell cell = getFormulaCell(node);
+            if (cell == null) {
+                continue;
+            }
+            try {
+                ValueEval result = evaluator.evaluate(view.getCell(graph.getSheet(node), graph.getRow(node), graph.getCol(node)));
+                checkResult(result);
+                results[node] = result;
+            } catch (RuntimeException e) {
+                nodeFailures[node] = new Failure(cell, e);
+            }
+        }
+    }
+
+    private final class LevelTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final GraphEvaluationWorkbook view;
+        private final int[] nodes;
+        private final int from;
+        private final int to;
+        private final ValueEval[] results;
+        private final Failure[] nodeFailures;
+
+        LevelTask(GraphEvaluationWorkbook view, int[] nodes, int from, int to, ValueEval[] results, Failure[] nodeFailures) {
+            this.view = view;
+            this.nodes = nodes;
+            this.from = from;
+            this.to = to;
+            this.results = results;
+            this.nodeFailures = nodeFailures;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from < 2 * MIN_TASK_SIZE) {
+                evaluateNodes(newEvaluator(view), view, nodes, from, to, results, nodeFailures);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            ForkJoinTask.invokeAll(
+                new LevelTask(view, nodes, from, middle, results, nodeFailures),
+                new LevelTask(view, nodes, middle, to, results, nodeFailures));
+        }
+    }
+
+    /**
+     * Levels of the wanted formulas, by Kahn's algorithm on the edges between
+     * wanted formulas.
+     */
+    private final class Schedule {
+        /** Nodes of every level, one level after the other. */
+        final int[] order;
+        /** Start of each level in order, plus the end of the last one. */
+        final IntList levelStart = new IntList();
+        /** Nodes evaluated after the levels, in workbook order. */
+        final int[] tail;
+
+        Schedule(BitSet wanted) {
+            int size = graph.size();
+            int[] pendingPrecedents = new int[size];
+            IntList edgeFrom = new IntList();
+            IntList edgeTo = new IntList();
+            IntList precedents = new IntList();
+
+            for (int node = wanted.nextSetBit(0); node >= 0; node = wanted.nextSetBit(node + 1)) {
+                precedents.clear();
+                graph.precedentNodes(node, precedents);
+                for (int i = 0; i < precedents.size(); i++) {
+                    int precedent = precedents.get(i);
+                    if (wanted.get(precedent)) {
+                        edgeFrom.add(precedent);
+                        edgeTo.add(node);
+                        pendingPrecedents[node] += 1;
+                    }
+                }
+            }
+
+            // Dependents of each node, grouped by node.
+            int[] dependentStart = new int[size + 1];
+            for (int i = 0; i < edgeFrom.size(); i++) {
+                dependentStart[edgeFrom.get(i) + 1] += 1;
+            }
+            for (int node = 0; node < size; node++) {
+                dependentStart[node + 1] += dependentStart[node];
+            }
+            int[] dependents = new int[edgeFrom.size()];
+            int[] fill = dependentStart.clone();
+            for (int i = 0; i < edgeFrom.size(); i++) {
+                dependents[fill[edgeFrom.get(i)]++] = edgeTo.get(i);
+            }
+
+            IntList ordered = new IntList(wanted.cardinality());
+            for (int node = wanted.nextSetBit(0); node >= 0; node = wanted.nextSetBit(node + 1)) {
+                if (pendingPrecedents[node] == 0 && !graph.hasFlag(node, FormulaGraph.DYNAMIC)) {
+                    ordered.add(node);
+                }
+            }
+
+            int from = 0;
+            while (from < ordered.size()) {
+                int to = ordered.size();
+                levelStart.add(from);
+                for (int i = from; i < to; i++) {
+                    int node = ordered.get(i);
+                    for (int j = dependentStart[node]; j < dependentStart[node + 1]; j++) {
+                        int dependent = dependents[j];
+                        pendingPrecedents[dependent] -= 1;
+                        if (pendingPrecedents[dependent] == 0 && !graph.hasFlag(dependent, FormulaGraph.DYNAMIC)) {
+                            ordered.add(dependent);
+                        }
+                    }
+                }
+                from = to;
+            }
+            levelStart.add(from);
+            order = ordered.toArray();
+
+            BitSet scheduled = new BitSet(size);
+            for (int node : order) {
+                scheduled.set(node);
+            }
+            BitSet remaining = (BitSet) wanted.clone();
+            remaining.andNot(scheduled);
+            tail = remaining.stream().toArray();
+        }
+
+        int levelCount() {
+            return levelStart.size() - 1;
+        }
+    }
+
+    /**
+     * @return The cell of a node, or null if it no longer holds a formula.
+     */
+    XSSFCell getFormulaCell(int node) {
+        XSSFRow row = workbook.getSheetAt(graph.getSheet(node)).getRow(graph.getRow(node));
+        XSSFCell cell = row == null ? null : row.getCell(graph.getCol(node));
+        return cell != null && cell.getCellType() == Cell.CELL_TYPE_FORMULA ? cell : null;
+    }
+
+    private static void checkResult(ValueEval result) {
+        if (!(result instanceof NumberEval || result instanceof StringEval
+                || result instanceof BoolEval || result instanceof ErrorEval)) {
+            throw new IllegalStateException("Unexpected formula result " + result.getClass().getName() + ".");
+        }
+    }
+
+    /**
+     * Stores the result of a formula as XSSFFormulaEvaluator.evaluateFormulaCell
+     * does, keeping the formula.
+     */
+    static void setCachedValue(XSSFCell cell, ValueEval result) {
+        if (result instanceof NumberEval) {
+            cell.setCellValue(((NumberEval) result).getNumberValue());
+        } else if (result instanceof StringEval) {
+            cell.setCellValue(new XSSFRichTextString(((StringEval) result).getStringValue()));
+        } else if (result instanceof BoolEval) {
+            cell.setCellValue(((BoolEval) result).getBooleanValue());
+        } else {
+            cell.setCellErrorValue((byte) ((ErrorEval) result).getErrorCode());
+        }
+    }
+
+    /**
+     * A formula that could not be evaluated.
+     */
+    static final class Failure {
+        private final String sheetName;
+        private final int row;
+        private final int col;
+        private final String formula;
+        private final RuntimeException cause;
+
+        Failure(XSSFCell cell, RuntimeException cause) {
+            this.sheetName = cell.getSheet().getSheetName();
+            this.row = cell.getRowIndex();
+            this.col = cell.getColumnIndex();
+            this.formula = cell.getCellFormula();
+            this.cause = cause;
+        }
+
+        String getSheetName() {
+            return sheetName;
+        }
+
+        int getRow() {
+            return row;
+        }
+
+        int getCol() {
+            return col;
+        }
+
+        String getFormula() {
+            return formula;
+        }
+
+        RuntimeException getCause() {
+            return cause;
+        }
+
+        @Override
+        public String toString() {
+            String message = cause.getMessage() != null ? cause.getMessage() : "";
+            return sheetName + "!" + new CellReference(row, col).formatAsString() + " =" + formula + ": "
+                + cause.getClass().getName() + ": " + message;
+        }
+    }
+}
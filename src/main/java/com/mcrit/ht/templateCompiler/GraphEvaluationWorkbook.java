@@ -0,0 +1,319 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.BitSet;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.formula.EvaluationCell;
+import org.apache.poi.ss.formula.EvaluationName;
+import org.apache.poi.ss.formula.EvaluationSheet;
+import org.apache.poi.ss.formula.EvaluationWorkbook;
+import org.apache.poi.ss.formula.FormulaParser;
+import org.apache.poi.ss.formula.FormulaParsingWorkbook;
+import org.apache.poi.ss.formula.FormulaType;
+import org.apache.poi.ss.formula.SheetIdentifier;
+import org.apache.poi.ss.formula.eval.BoolEval;
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.formula.eval.NumberEval;
+import org.apache.poi.ss.formula.eval.StringEval;
+import org.apache.poi.ss.formula.eval.ValueEval;
+import org.apache.poi.ss.formula.ptg.NamePtg;
+import org.apache.poi.ss.formula.ptg.NameXPtg;
+import org.apache.poi.ss.formula.ptg.Ptg;
+import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.util.AreaReference;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFEvaluationWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * View of a workbook for the POI evaluator in which only the dirty formulas
+ * are formulas. Every other formula cell looks like a plain cell holding its
+ * cached value, so the evaluator never walks into the parts of the workbook
+ * that did not change. Dirty formulas that already have a result in the
+ * results array look like plain cells holding that result. The formula tokens
+ * come from the {@link FormulaGraph} instead of being parsed again.
+ *
+ * The view never writes to the workbook, so several evaluators can share it
+ * from different threads as long as nothing modifies the workbook meanwhile.
+ *
+ * INDIRECT expects the evaluation workbook to be able to parse references,
+ * so the parsing methods are forwarded too.
+ */
+final class GraphEvaluationWorkbook implements EvaluationWorkbook, FormulaParsingWorkbook {
+    private final XSSFEvaluationWorkbook delegate;
+    private final FormulaGraph graph;
+    private final BitSet dirty;
+    private final ValueEval[] results;
+    private final GraphSheet[] sheets;
+
+    /**
+     * @param dirty Nodes of the graph that must be evaluated.
+     * @param results Results of the nodes already evaluated, by node.
+     */
+    GraphEvaluationWorkbook(XSSFWorkbook workbook, FormulaGraph graph, BitSet dirty, ValueEval[] results) {
+        this.delegate = XSSFEvaluationWorkbook.create(workbook);
+        this.graph = graph;
+        this.dirty = dirty;
+        this.results = results;
+        this.sheets = new GraphSheet[workbook.getNumberOfSheets()];
+        for (int i = 0; i < sheets.length; i++) {
+            sheets[i] = new GraphSheet(i, workbook.getSheetAt(i));
+        }
+    }
+
+    /**
+     * @return The cell as seen by the evaluator, or null if it does not exist.
+     */
+    EvaluationCell getCell(int sheetIndex, int row, int col) {
+        return sheets[sheetIndex].getCell(row, col);
+    }
+
+    private static int typeOf(ValueEval result) {
+        if (result instanceof NumberEval) {
+            return Cell.CELL_TYPE_NUMERIC;
+        } else if (result instanceof StringEval) {
+            return Cell.CELL_TYPE_STRING;
+        } else if (result instanceof BoolEval) {
+            return Cell.CELL_TYPE_BOOLEAN;
+        }
+        return Cell.CELL_TYPE_ERROR;
+    }
+
+    @Override
+    public String getSheetName(int sheetIndex) {
+        return delegate.getSheetName(sheetIndex);
+    }
+
+    @Override
+    public int getSheetIndex(EvaluationSheet sheet) {
+        return ((GraphSheet) sheet).index;
+    }
+
+    @Override
+    public int getSheetIndex(String sheetName) {
+        return delegate.getSheetIndex(sheetName);
+    }
+
+    @Override
+    public EvaluationSheet getSheet(int sheetIndex) {
+        return sheets[sheetIndex];
+    }
+
+    @Override
+    public ExternalSheet getExternalSheet(int externSheetIndex) {
+        return delegate.getExternalSheet(externSheetIndex);
+    }
+
+    @Override
+    public ExternalSheet getExternalSheet(String firstSheetName, String lastSheetName, int externalWorkbookNumber) {
+        return delegate.getExternalSheet(firstSheetName, lastSheetName, externalWorkbookNumber);
+    }
+
+    @Override
+    public int convertFromExternSheetIndex(int externSheetIndex) {
+        return delegate.convertFromExternSheetIndex(externSheetIndex);
+    }
+
+    @Override
+    public ExternalName getExternalName(int externSheetIndex, int externNameIndex) {
+        return delegate.getExternalName(externSheetIndex, externNameIndex);
+    }
+
+    @Override
+    public ExternalName getExternalName(String nameName, String sheetName, int externalWorkbookNumber) {
+        return delegate.getExternalName(nameName, sheetName, externalWorkbookNumber);
+    }
+
+    @Override
+    public EvaluationName getName(NamePtg namePtg) {
+        return delegate.getName(namePtg);
+    }
+
+    @Override
+    public EvaluationName getName(String name, int sheetIndex) {
+        return delegate.getName(name, sheetIndex);
+    }
+
+    @Override
+    public String resolveNameXText(NameXPtg ptg) {
+        return delegate.resolveNameXText(ptg);
+    }
+
+    @Override
+    public Ptg[] getFormulaTokens(EvaluationCell evaluationCell) {
+        GraphCell cell = (GraphCell) evaluationCell;
+        int node = graph.nodeAt(cell.sheet.index, cell.getRowIndex(), cell.getColumnIndex());
+        Ptg[] tokens = node < 0 ? null : graph.getTokens(node);
+        if (tokens == null) {
+            tokens = FormulaParser.parse(cell.cell.getCellFormula(), delegate, FormulaType.CELL, cell.sheet.index);
+        }
+        return tokens;
+    }
+
+    @Override
+    public UDFFinder getUDFFinder() {
+        return delegate.getUDFFinder();
+    }
+
+    @Override
+    public Ptg getNameXPtg(String name, SheetIdentifier sheet) {
+        return delegate.getNameXPtg(name, sheet);
+    }
+
+    @Override
+    public Ptg get3DReferencePtg(CellReference cell, SheetIdentifier sheet) {
+        return delegate.get3DReferencePtg(cell, sheet);
+    }
+
+    @Override
+    public Ptg get3DReferencePtg(AreaReference area, SheetIdentifier sheet) {
+        return delegate.get3DReferencePtg(area, sheet);
+    }
+
+    @Override
+    public int getExternalSheetIndex(String sheetName) {
+        return delegate.getExternalSheetIndex(sheetName);
+    }
+
+    @Override
+    public int getExternalSheetIndex(String workbookName, String sheetName) {
+        return delegate.getExternalSheetIndex(workbookName, sheetName);
+    }
+
+    @Override
+    public SpreadsheetVersion getSpreadsheetVersion() {
+        return delegate.getSpreadsheetVersion();
+    }
+
+    /**
+     * The evaluator keys its caches by sheet, so there is one instance per
+     * sheet for the life of the view.
+     */
+    private final class GraphSheet implements EvaluationSheet {
+        private final int index;
+        private final XSSFSheet sheet;
+
+        GraphSheet(int index, XSSFSheet sheet) {
+            this.index = index;
+            this.sheet = sheet;
+        }
+
+        @Override
+        public EvaluationCell getCell(int rowIndex, int columnIndex) {
+            XSSFRow row = sheet.getRow(rowIndex);
+            if (row == null) {
+                return null;
+            }
+            XSSFCell cell = row.getCell(columnIndex);
+            if (cell == null) {
+                return null;
+            }
+            return new GraphCell(this, cell);
+        }
+    }
+
+    private final class GraphCell implements EvaluationCell {
+        private final GraphSheet sheet;
+        private final XSSFCell cell;
+        private final int type;
+        private final ValueEval result;
+
+        GraphCell(GraphSheet sheet, XSSFCell cell) {
+            this.sheet = sheet;
+            this.cell = cell;
+
+            int cellType = cell.getCellType();
+            int node = cellType == Cell.CELL_TYPE_FORMULA ?
+                graph.nodeAt(sheet.index, cell.getRowIndex(), cell.getColumnIndex()) :
+                -1;
+            if (node < 0) {
+                this.result = null;
+                this.type = cellType;
+            } else if (results[node] != null) {
+                this.result = results[node];
+                this.type = typeOf(result);
+            } else {
+                this.result = null;
+                this.type = dirty.get(node) ? cellType : cell.getCachedFormulaResultType();
+            }
+        }
+
+        @Override
+        public Object getIdentityKey() {
+            return cell;
+        }
+
+        @Override
+        public EvaluationSheet getSheet() {
+            return sheet;
+        }
+
+        @Override
+        public int getRowIndex() {
+            return cell.getRowIndex();
+        }
+
+        @Override
+        public int getColumnIndex() {
+            return cell.getColumnIndex();
+        }
+
+        @Override
+        public int getCellType() {
+            return type;
+        }
+
+        @Override
+        public double getNumericCellValue() {
+            return result != null ? ((NumberEval) result).getNumberValue() : cell.getNumericCellValue();
+        }
+
+        @Override
+        public String getStringCellValue() {
+            return result != null ? ((StringEval) result).getStringValue() : cell.getRichStringCellValue().getString();
+        }
+
+        @Override
+        public boolean getBooleanCellValue() {
+            return result != null ? ((BoolEval) result).getBooleanValue() : cell.getBooleanCellValue();
+        }
+
+        @Override
+        public int getErrorCellValue() {
+            return result != null ? ((ErrorEval) result).getErrorCode() : cell.getErrorCellValue();
+        }
+
+        @Override
+        public int getCachedFormulaResultType() {
+            return cell.getCachedFormulaResultType();
+        }
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.batik.transcoder.TranscoderInput;
+import org.apache.batik.transcoder.TranscoderOutput;
+import org.apache.batik.transcoder.image.PNGTranscoder;
+
+/**
+ * Cache of rasterized SVG images shared by the compilations of a long-lived
+ * process.
+ *
+ * Images are keyed by the SHA-256 of their SVG source, so the same chart or
+ * logo is transcoded once whatever request sends it. The cache is bounded by
+ * the size of the PNG images it keeps and evicts the least recently used
+ * ones first.
+ *
+ * The default instance is configured with the system property
+ * htxlsx.imageCache.bytes.
+ */
+public class ImageCache {
+    public static final String BUDGET_PROPERTY = "htxlsx.imageCache.bytes";
+
+    private static final long DEFAULT_BUDGET = 64L << 20;
+
+    private static final ImageCache DEFAULT = new ImageCache(Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET));
+
+    private final LruCache<String, byte[]> images;
+
+    /**
+     * @param byteBudget Maximum size of the cached PNG images, in bytes. Zero
+     * disables the cache.
+     */
+    public ImageCache(long byteBudget) {
+        this.images = new LruCache<>(byteBudget, image -> image.length, null);
+    }
+
+    public static ImageCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Converts an SVG image to PNG, or returns the PNG of an identical image
+     * converted before.
+     *
+     * @param svg Source of the image.
+     * @return The PNG image. It is shared and must not be modified.
+     * @throws TranscoderException if the SVG can not be rasterized.
+     */
+    byte[] rasterize(byte[] svg) throws TranscoderException {
+        return rasterize(svg, null);
+    }
+
+    /**
+     * Same as {@link #rasterize(byte[])}, counting the images that are
+     * actually transcoded.
+     *
+     * @param transcoded Incremented if the image was not cached, or null.
+     */
+    byte[] rasterize(byte[] svg, AtomicInteger transcoded) throws TranscoderException {
+        String key = digest(svg);
+        byte[] png = images.get(key);
+        if (png == null) {
+            // Use batik to transform svg to png;
+            PNGTranscoder transcoder = new PNGTranscoder();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            transcoder.transcode(new TranscoderInput(new ByteArrayInputStream(svg)), new TranscoderOutput(bos));
+            png = bos.toByteArray();
+            images.put(key, png);
+            if (transcoded != null) {
+                transcoded.incrementAndGet();
+            }
+        }
+        return png;
+    }
+
+    /**
+     * @return The SHA-256 of some bytes, encoded in Base64.
+     */
+    static String digest(byte[] content) {
+        try {
+            return Base64.getEncoder().encodeToString(MessageDigest.getInstance("SHA-256").digest(content));
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256.
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public void setByteBudget(long byteBudget) {
+        images.setBudget(byteBudget);
+    }
+
+    public long getByteBudget() {
+        return images.getBudget();
+    }
+
+    /**
+     * @return Size in bytes of the cached images.
+     */
+    public long getSize() {
+        return images.getWeight();
+    }
+
+    public long getHits() {
+        return images.getHits();
+    }
+
+    public long getMisses() {
+        return images.getMisses();
+    }
+
+    public long getEvictions() {
+        return images.getEvictions();
+    }
+
+    public void clear() {
+        images.clear();
+    }
+}
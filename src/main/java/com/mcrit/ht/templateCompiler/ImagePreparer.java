@@ -0,0 +1,180 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.JsonArray;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.poi.ss.usermodel.Workbook;
+
+/**
+ * Decodes and rasterizes the images of a compilation on a pool of threads,
+ * while the other chunks are written into the workbook.
+ *
+ * Images are submitted as their chunks are found and handed back in the
+ * same order, so they are placed as if they had been handled one by one.
+ * The pool is shared by all the compilations of the process. Its size is
+ * set with the system property htxlsx.imageThreads and defaults to the
+ * number of processors.
+ */
+final class ImagePreparer {
+    static final String THREADS_PROPERTY = "htxlsx.imageThreads";
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())),
+        runnable -> {
+            Thread thread = new Thread(runnable, "image-prepare-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final ImageCache cache;
+    private final List<PreparedImage> submitted = new ArrayList<>();
+    private final AtomicInteger transcoded = new AtomicInteger();
+
+    ImagePreparer(ImageCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Starts preparing the image of an "imageBase64" chunk. The format is
+     * checked right away; decoding and rasterizing errors are thrown by
+     * {@link PreparedImage#getImage()}.
+     *
+     * @param target Target of the chunk.
+     * @param data Data of the chunk: the format and the Base64 image.
+     */
+    void submit(JsonArray target, JsonArray data) {
+        String format = data.getString(0).toLowerCase();
+        int pictureType = getPictureType(format);
+        String base64 = data.getString(1);
+
+        Future<byte[]> image = POOL.submit(() -> {
+            byte[] decoded = Base64.getDecoder().decode(base64);
+            return "svg".equals(format) ? cache.rasterize(decoded, transcoded) : decoded;
+        });
+        submitted.add(new PreparedImage(target, pictureType, image));
+    }
+
+    /**
+     * @return The number of SVG images rasterized so far, without those
+     * found in the cache.
+     */
+    int getTranscoded() {
+        return transcoded.get();
+    }
+
+    /**
+     * @return The images submitted since the last call, in order.
+     */
+    List<PreparedImage> drain() {
+        List<PreparedImage> images = new ArrayList<>(submitted);
+        submitted.clear();
+        return images;
+    }
+
+    private static int getPictureType(String format) {
+        switch (format) {
+            case "dib":
+                return Workbook.PICTURE_TYPE_DIB;
+            case "emf":
+                return Workbook.PICTURE_TYPE_EMF;
+            case "jpeg":
+            case "jpg":
+                return Workbook.PICTURE_TYPE_JPEG;
+            case "pict":
+                return Workbook.PICTURE_TYPE_PICT;
+            case "svg":
+            case "png":
+                return Workbook.PICTURE_TYPE_PNG;
+            case "wmf":
+                return Workbook.PICTURE_TYPE_WMF;
+            default:
+                throw new RuntimeException("The provided format type is not supported.");
+        }
+    }
+
+    /**
+     * An image being prepared, with the place it goes to.
+     */
+    static final class PreparedImage {
+        private final JsonArray target;
+        private final int pictureType;
+        private final Future<byte[]> image;
+
+        PreparedImage(JsonArray target, int pictureType, Future<byte[]> image) {
+            this.target = target;
+            this.pictureType = pictureType;
+            this.image = image;
+        }
+
+        JsonArray getTarget() {
+            return target;
+        }
+
+        /**
+         * @return One of the Workbook.PICTURE_TYPE_* constants.
+         */
+        int getPictureType() {
+            return pictureType;
+        }
+
+        /**
+         * Waits for the image to be ready.
+         *
+         * @return The bytes of the picture, shared with the image cache.
+         */
+        byte[] getImage() throws TranscoderException, IOException {
+            try {
+                return image.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for an image.");
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof TranscoderException) {
+                    throw (TranscoderException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IOException(cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Thread-safe LRU map bounded by the total weight of its values, usually a
+ * size in bytes. Keeps hit, miss and eviction counters for diagnostics.
+ */
+final class LruCache<K, V> {
+    private final LinkedHashMap<K, V> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ToLongFunction<V> weigher;
+    private final Consumer<V> onRemoval;
+
+    private long budget;
+    private long weight;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * @param budget Maximum total weight kept in the cache.
+     * @param weigher Computes the weight of a value. Must be stable.
+     * @param onRemoval Called, under the cache lock, for every value that
+     * leaves the cache. May be null.
+     */
+    LruCache(long budget, ToLongFunction<V> weigher, Consumer<V> onRemoval) {
+        this.budget = budget;
+        this.weigher = weigher;
+        this.onRemoval = onRemoval;
+    }
+
+    synchronized V get(K key) {
+        V value = entries.get(key);
+        if (value == null) {
+            misses += 1;
+        } else {
+            hits += 1;
+        }
+        return value;
+    }
+
+    /**
+     * Adds a value, evicting the least recently used ones until the cache
+     * fits in its budget. Values heavier than the whole budget are not kept.
+     *
+     * @return true if the value was stored.
+     */
+    synchronized boolean put(K key, V value) {
+        long valueWeight = weigher.applyAsLong(value);
+        if (valueWeight > budget) {
+            return false;
+        }
+
+        V previous = entries.put(key, value);
+        weight += valueWeight;
+        if (previous != null) {
+            release(previous);
+        }
+        trim();
+        return true;
+    }
+
+    /**
+     * Removes every entry whose key matches the filter.
+     */
+    synchronized void removeIf(Predicate<K> filter) {
+        Iterator<Map.Entry<K, V>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<K, V> entry = it.next();
+            if (filter.test(entry.getKey())) {
+                it.remove();
+                release(entry.getValue());
+            }
+        }
+    }
+
+    synchronized void clear() {
+        removeIf(key -> true);
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+        trim();
+    }
+
+    synchronized long getBudget() {
+        return budget;
+    }
+
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private void trim() {
+        Iterator<V> it = entries.values().iterator();
+        while (weight > budget && it.hasNext()) {
+            V eldest = it.next();
+            it.remove();
+            evictions += 1;
+            release(eldest);
+        }
+    }
+
+    private void release(V value) {
+        weight -= weigher.applyAsLong(value);
+        if (onRemoval != null) {
+            onRemoval.accept(value);
+        }
+    }
+}
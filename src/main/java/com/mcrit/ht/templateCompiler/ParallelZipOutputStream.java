@@ -0,0 +1,391 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Zip writer that compresses its entries at a chosen level, the large ones
+ * on a pool of threads.
+ *
+ * It extends ZipOutputStream so POI writes a package into it as into its own
+ * stream: the bytes of each entry are captured and, once the entry is
+ * closed, compressed in the background while the next one is written. The
+ * entries are written in order as soon as they are compressed, with their
+ * sizes in the local header. Level 0 stores the entries without
+ * compression. Entries already compressed, such as those copied from
+ * another zip, can be added as they are with
+ * {@link #putCompressedEntry(String, int, long, long, byte[])}.
+ *
+ * A FileOutputStream, such as stdout or a file, is written through its
+ * FileChannel; any other stream is buffered. The pool is shared by all the
+ * compilations of the process. Its size is set with the system property
+ * htxlsx.zipThreads and defaults to the number of processors.
+ *
+ * Once the entries waiting to be written hold more than maxPendingBytes,
+ * putNextEntry and closeEntry wait for the oldest ones to be written. Zip64
+ * extensions are not written: an entry of 2 GB or more, more than 65535
+ * entries or an archive of more than 4 GB fail with an IOException.
+ */
+final class ParallelZipOutputStream extends ZipOutputStream {
+    static final String THREADS_PROPERTY = "htxlsx.zipThreads";
+
+    // Smaller entries are not worth a task.
+    private static final int PARALLEL_THRESHOLD = 1 << 16;
+    private static final long MAX_PENDING_BYTES = 64L << 20;
+    private static final int MAX_ENTRY_SIZE = Integer.MAX_VALUE - 8;
+
+    private static final AtomicInteger THREAD_NUMBER = new AtomicInteger();
+    private static final ExecutorService POOL = Executors.newFixedThreadPool(
+        Math.max(1, Integer.getInteger(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors())),
+        runnable -> {
+            Thread thread = new Thread(runnable, "zip-compress-" + THREAD_NUMBER.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+    private final int level;
+    private final FileChannel channel;
+    private final OutputStream stream;
+    private final int dosTime = toDosTime(System.currentTimeMillis());
+
+    private String entryName;
+    private byte[] entryData = new byte[1 << 16];
+    private int entrySize;
+
+    private final ArrayDeque<PendingEntry> pending = new ArrayDeque<>();
+    private final long maxPendingBytes;
+    private long pendingBytes;
+    private final ByteArrayOutputStream centralDirectory = new ByteArrayOutputStream();
+    private int entries;
+    private long offset;
+    private boolean finished;
+
+    /**
+     * @param out Destination of the archive, closed with this stream.
+     * @param level Deflate level from 0 to 9, or -1 for the default.
+     */
+    ParallelZipOutputStream(OutputStream out, int level) {
+        this(out, level, MAX_PENDING_BYTES);
+    }
+
+    /**
+     * @param maxPendingBytes Size of the entries kept in memory before they
+     * are written, in bytes.
+     */
+    ParallelZipOutputStream(OutputStream out, int level, long maxPendingBytes) {
+        super(out);
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level " + level + ".");
+        }
+        this.level = level;
+        this.maxPendingBytes = maxPendingBytes;
+        if (out instanceof FileOutputStream) {
+            this.channel = ((FileOutputStream) out).getChannel();
+            this.stream = out;
+        } else {
+            this.channel = null;
+            this.stream = out instanceof BufferedOutputStream || out instanceof ByteArrayOutputStream ?
+                out : new BufferedOutputStream(out, 1 << 16);
+        }
+    }
+
+    @Override
+    public void putNextEntry(ZipEntry entry) throws IOException {
+        if (entryName != null) {
+            closeEntry();
+        }
+        entryName = entry.getName();
+        entrySize = 0;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (entryName == null) {
+            throw new IOException("No current zip entry.");
+        }
+        if (len > MAX_ENTRY_SIZE - entrySize) {
+            throw new IOException("The entry " + entryName + " is too large for a zip without zip64 extensions.");
+        }
+        if (entrySize + len > entryData.length) {
+            entryData = Arrays.copyOf(entryData, (int) Math.min(MAX_ENTRY_SIZE,
+                Math.max(entryData.length * 2L, entrySize + len)));
+        }
+        System.arraycopy(b, off, entryData, entrySize, len);
+        entrySize += len;
+    }
+
+    @Override
+    public void closeEntry() throws IOException {
+        if (entryName == null) {
+            return;
+        }
+        String name = entryName;
+        byte[] data = entryData;
+        int size = entrySize;
+        entryName = null;
+
+        if (level == 0 || size >= PARALLEL_THRESHOLD) {
+            // The buffer goes with the entry.
+            entryData = new byte[1 << 16];
+        }
+        if (level != 0 && size >= PARALLEL_THRESHOLD) {
+            addPending(POOL.submit(() -> compress(name, data, size, level)), data.length);
+        } else {
+            CompressedEntry entry = compress(name, data, size, level);
+            addPending(CompletableFuture.completedFuture(entry), entry.data.length);
+        }
+    }
+
+    /**
+     * Adds an entry whose data is already compressed, in order with the
+     * other entries. The entry being written, if any, is closed first.
+     *
+     * @param method ZipEntry.STORED or ZipEntry.DEFLATED.
+     * @param crc CRC-32 of the uncompressed data.
+     * @param size Size of the uncompressed data.
+     * @param data The data, compressed with the method.
+     */
+    void putCompressedEntry(String name, int method, long crc, long size, byte[] data) throws IOException {
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+            throw new IllegalArgumentException("Unsupported compression method " + method + ".");
+        }
+        if (size > 0xFFFFFFFFL) {
+            throw new IOException("The entry " + name + " is too large for a zip without zip64 extensions.");
+        }
+        closeEntry();
+        addPending(CompletableFuture.completedFuture(new CompressedEntry(name, method, (int) size, crc, data, data.length)),
+            data.length);
+    }
+
+    /**
+     * Queues an entry and writes the compressed entries at the head of the
+     * queue, waiting for them while the queue holds too many bytes.
+     */
+    private void addPending(Future<CompressedEntry> entry, int bytes) throws IOException {
+        pending.add(new PendingEntry(entry, bytes));
+        pendingBytes += bytes;
+        writeCompressed(maxPendingBytes);
+    }
+
+    /**
+     * Writes the compressed entries at the head of the queue.
+     *
+     * @param maxBytes Size of the entries that can be left in the queue; the
+     * entries over it are waited for.
+     */
+    private void writeCompressed(long maxBytes) throws IOException {
+        while (!pending.isEmpty() && (pendingBytes > maxBytes || pending.peek().future.isDone())) {
+            PendingEntry head = pending.poll();
+            CompressedEntry entry;
+            try {
+                entry = head.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while compressing.");
+            } catch (ExecutionException e) {
+                throw new IOException("The entry could not be compressed.", e.getCause());
+            } finally {
+                pendingBytes -= head.bytes;
+            }
+            writeEntry(entry);
+        }
+    }
+
+    /**
+     * @return Size of the entries waiting to be written, in bytes.
+     */
+    long getPendingBytes() {
+        return pendingBytes;
+    }
+
+    private void writeEntry(CompressedEntry entry) throws IOException {
+        if (offset > 0xFFFFFFFFL || entries == 0xFFFF) {
+            throw new IOException("The archive is too large for a zip without zip64 extensions.");
+        }
+        byte[] name = entry.name.getBytes(StandardCharsets.UTF_8);
+        int method = entry.method;
+        int version = method == ZipEntry.STORED ? 10 : 20;
+
+        ByteBuffer local = ByteBuffer.allocate(30 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        local.putInt(0x04034b50).putShort((short) version).putShort((short) 0x0800).putShort((short) method)
+            .putInt(dosTime).putInt((int) entry.crc).putInt(entry.length).putInt(entry.size)
+            .putShort((short) name.length).putShort((short) 0).put(name);
+        local.flip();
+
+        ByteBuffer central = ByteBuffer.allocate(46 + name.length).order(ByteOrder.LITTLE_ENDIAN);
+        central.putInt(0x02014b50).putShort((short) 20).putShort((short) version).putShort((short) 0x0800)
+            .putShort((short) method).putInt(dosTime).putInt((int) entry.crc).putInt(entry.length)
+            .putInt(entry.size).putShort((short) name.length).putShort((short) 0).putShort((short) 0)
+            .putShort((short) 0).putShort((short) 0).putInt(0).putInt((int) offset).put(name);
+        centralDirectory.write(central.array(), 0, central.position());
+
+        writeOut(local, ByteBuffer.wrap(entry.data, 0, entry.length));
+        offset += local.capacity() + (long) entry.length;
+        entries += 1;
+    }
+
+    private void writeOut(ByteBuffer... buffers) throws IOException {
+        if (channel == null) {
+            for (ByteBuffer buffer : buffers) {
+                stream.write(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+            }
+            return;
+        }
+        long remaining = 0;
+        for (ByteBuffer buffer : buffers) {
+            remaining += buffer.remaining();
+        }
+        while (remaining > 0) {
+            remaining -= channel.write(buffers);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        closeEntry();
+        writeCompressed(-1);
+        if (offset > 0xFFFFFFFFL) {
+            throw new IOException("The archive is too large for a zip without zip64 extensions.");
+        }
+
+        ByteBuffer end = ByteBuffer.allocate(22).order(ByteOrder.LITTLE_ENDIAN);
+        end.putInt(0x06054b50).putShort((short) 0).putShort((short) 0).putShort((short) entries)
+            .putShort((short) entries).putInt(centralDirectory.size()).putInt((int) offset).putShort((short) 0);
+        end.flip();
+        writeOut(ByteBuffer.wrap(centralDirectory.toByteArray()), end);
+        if (channel == null) {
+            stream.flush();
+        }
+        finished = true;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (channel == null) {
+            stream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            finish();
+        } finally {
+            def.end();
+            stream.close();
+        }
+    }
+
+    private static CompressedEntry compress(String name, byte[] data, int size, int level) {
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, size);
+        if (level == 0) {
+            return new CompressedEntry(name, ZipEntry.STORED, size, crc.getValue(), data, size);
+        }
+
+        Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, size);
+            deflater.finish();
+            byte[] buffer = new byte[Math.max(64, size / 4)];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            return new CompressedEntry(name, ZipEntry.DEFLATED, size, crc.getValue(), buffer, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static int toDosTime(long millis) {
+        Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(millis);
+        return (calendar.get(Calendar.YEAR) - 1980) << 25
+            | (calendar.get(Calendar.MONTH) + 1) << 21
+            | calendar.get(Calendar.DAY_OF_MONTH) << 16
+            | calendar.get(Calendar.HOUR_OF_DAY) << 11
+            | calendar.get(Calendar.MINUTE) << 5
+            | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    private static final class PendingEntry {
+        final Future<CompressedEntry> future;
+        final int bytes;
+
+        PendingEntry(Future<CompressedEntry> future, int bytes) {
+            this.future = future;
+            this.bytes = bytes;
+        }
+    }
+
+    private static final class CompressedEntry {
+        final String name;
+        final int method;
+        // The low 32 bits of the size, as written in the headers.
+        final int size;
+        final long crc;
+        final byte[] data;
+        final int length;
+
+        CompressedEntry(String name, int method, int size, long crc, byte[] data, int length) {
+            this.name = name;
+            this.method = method;
+            this.size = size;
+            this.crc = crc;
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
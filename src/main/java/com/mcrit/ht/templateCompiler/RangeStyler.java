@@ -0,0 +1,367 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCol;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCols;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTRow;
+
+/**
+ * Applies a style to rectangular ranges of a sheet creating as few cells as
+ * possible.
+ *
+ * The targets of a style are first merged into disjoint rectangles. A range
+ * spanning all the rows becomes a column default style and a range spanning
+ * all the columns becomes a row default style, so only the cells that
+ * already exist are touched. Other ranges need a cell for every
+ * position, but a missing cell is only created when the row or column
+ * default would not already show the style.
+ *
+ * Cells created later in a styled row or column must call
+ * {@link #inheritDefault(XSSFCell)}, or they would lose the style the
+ * position showed while empty.
+ */
+final class RangeStyler {
+    static final int LAST_ROW = SpreadsheetVersion.EXCEL2007.getLastRowIndex();
+    static final int LAST_COL = SpreadsheetVersion.EXCEL2007.getLastColumnIndex();
+
+    private final XSSFSheet sheet;
+    private final int sheetIndex;
+    private final BitSet styledRows = new BitSet();
+    private final List<long[]> styledColumns = new ArrayList<>();
+
+    RangeStyler(XSSFSheet sheet, int sheetIndex) {
+        this.sheet = sheet;
+        this.sheetIndex = sheetIndex;
+    }
+
+    /**
+     * Applies a style to several ranges of the sheet. The full columns are
+     * styled first and then the full rows, so the cells of the other ranges
+     * they already cover are not created.
+     *
+     * @param style A style of the workbook of the sheet.
+     * @param targets Ranges, possibly overlapping, to apply it to.
+     * @return The disjoint ranges actually styled.
+     */
+    List<SheetRange> apply(XSSFCellStyle style, List<SheetRange> targets) {
+        long styleIndex = sheet.getWorkbook().getStylesSource().putStyle(style);
+
+        // Merged separately, so a full column is never cut by the other
+        // ranges into blocks of cells.
+        List<SheetRange> columns = new ArrayList<>();
+        List<SheetRange> rows = new ArrayList<>();
+        List<SheetRange> cells = new ArrayList<>();
+        for (SheetRange range : targets) {
+            if (range.firstRow == 0 && range.lastRow == LAST_ROW) {
+                columns.add(range);
+            } else if (range.firstCol == 0 && range.lastCol == LAST_COL) {
+                rows.add(range);
+            } else {
+                cells.add(range);
+            }
+        }
+
+        List<SheetRange> styled = new ArrayList<>();
+        for (SheetRange range : merge(sheetIndex, columns)) {
+            styleColumns(range, styleIndex);
+            styled.add(range);
+        }
+        for (SheetRange range : merge(sheetIndex, rows)) {
+            styleRows(range, styleIndex);
+            styled.add(range);
+        }
+        for (SheetRange range : merge(sheetIndex, cells)) {
+            styleCells(range, styleIndex);
+            styled.add(range);
+        }
+        return styled;
+    }
+
+    /**
+     * @return true if a column default style has been set.
+     */
+    boolean hasStyledColumns() {
+        return !styledColumns.isEmpty();
+    }
+
+    /**
+     * Gives a new cell the style its position showed while it was empty,
+     * when that came from a row or column default set by this instance, as
+     * Excel does when a value is typed there.
+     */
+    void inheritDefault(XSSFCell cell) {
+        long defaultStyle = defaultStyle(cell.getRow(), cell.getColumnIndex());
+        if (defaultStyle >= 0) {
+            cell.getCTCell().setS(defaultStyle);
+        }
+    }
+
+    /**
+     * Same as {@link #inheritDefault(XSSFCell)} for a cell streamed after the
+     * rows of the sheet, which can only show a column default.
+     */
+    void inheritColumnDefault(Cell cell) {
+        long defaultStyle = defaultStyle(null, cell.getColumnIndex());
+        if (defaultStyle >= 0) {
+            cell.setCellStyle(sheet.getWorkbook().getCellStyleAt((int) defaultStyle));
+        }
+    }
+
+    /**
+     * @return The style an empty cell shows because of a row or column
+     * default set by this instance, or -1 if it shows something else.
+     */
+    private long defaultStyle(XSSFRow row, int col) {
+        if (row != null && row.isFormatted()) {
+            return styledRows.get(row.getRowNum()) ? row.getCTRow().getS() : -1;
+        }
+        for (int k = styledColumns.size() - 1; k >= 0; k--) {
+            long[] columns = styledColumns.get(k);
+            if (col >= columns[0] && col <= columns[1]) {
+                return columns[2];
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Turns overlapping and adjacent ranges into disjoint ranges covering
+     * the same cells.
+     *
+     * The rows are swept from top to bottom, cutting them into bands where
+     * the same ranges are active. The columns of the active ranges of a band
+     * are merged into intervals, and each interval grows downwards while the
+     * following bands have the same intervals. Empty ranges are ignored.
+     */
+    static List<SheetRange> merge(int sheet, List<SheetRange> targets) {
+        List<SheetRange> ranges = new ArrayList<>(targets.size());
+        for (SheetRange range : targets) {
+            if (range.firstRow <= range.lastRow && range.firstCol <= range.lastCol) {
+                ranges.add(range);
+            }
+        }
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        int[] bounds = new int[ranges.size() * 2];
+        for (int i = 0; i < ranges.size(); i++) {
+            bounds[2 * i] = ranges.get(i).firstRow;
+            bounds[2 * i + 1] = ranges.get(i).lastRow + 1;
+        }
+        Arrays.sort(bounds);
+        int boundCount = 0;
+        for (int bound : bounds) {
+            if (boundCount == 0 || bounds[boundCount - 1] != bound) {
+                bounds[boundCount++] = bound;
+            }
+        }
+        ranges.sort(Comparator.comparingInt(range -> range.firstRow));
+
+        List<SheetRange> merged = new ArrayList<>();
+        List<SheetRange> active = new ArrayList<>();
+        List<int[]> open = new ArrayList<>();
+        int next = 0;
+        for (int b = 0; b < boundCount - 1; b++) {
+            int top = bounds[b];
+            while (next < ranges.size() && ranges.get(next).firstRow <= top) {
+                active.add(ranges.get(next++));
+            }
+            active.removeIf(range -> range.lastRow < top);
+
+            List<int[]> intervals = columnIntervals(active);
+            if (!sameColumns(open, intervals)) {
+                close(sheet, open, top - 1, merged);
+                for (int[] interval : intervals) {
+                    interval[2] = top;
+                }
+                open = intervals;
+            }
+        }
+        close(sheet, open, bounds[boundCount - 1] - 1, merged);
+        return merged;
+    }
+
+    /**
+     * @return The columns covered by some ranges, as disjoint
+     * {firstCol, lastCol, firstRow} intervals sorted by column.
+     */
+    private static List<int[]> columnIntervals(List<SheetRange> active) {
+        List<SheetRange> byCol = new ArrayList<>(active);
+        byCol.sort(Comparator.comparingInt(range -> range.firstCol));
+
+        List<int[]> intervals = new ArrayList<>();
+        int[] current = null;
+        for (SheetRange range : byCol) {
+            if (current != null && range.firstCol <= current[1] + 1) {
+                current[1] = Math.max(current[1], range.lastCol);
+            } else {
+                current = new int[] {range.firstCol, range.lastCol, 0};
+                intervals.add(current);
+            }
+        }
+        return intervals;
+    }
+
+    private static boolean sameColumns(List<int[]> a, List<int[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (int i = 0; i < a.size(); i++) {
+            if (a.get(i)[0] != b.get(i)[0] || a.get(i)[1] != b.get(i)[1]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void close(int sheet, List<int[]> open, int lastRow, List<SheetRange> merged) {
+        for (int[] interval : open) {
+            merged.add(new SheetRange(sheet, interval[2], interval[0], lastRow, interval[1]));
+        }
+    }
+
+    /**
+     * Sets the style of every cell of a range, creating the cells that do
+     * not exist unless a default set by this instance already shows the
+     * style.
+     */
+    private void styleCells(SheetRange range, long styleIndex) {
+        for (int i = range.firstRow; i <= range.lastRow; i++) {
+            XSSFRow row = sheet.getRow(i);
+            for (int j = range.firstCol; j <= range.lastCol; j++) {
+                XSSFCell cell = row == null ? null : row.getCell(j);
+                if (cell == null) {
+                    if (defaultStyle(row, j) == styleIndex) {
+                        continue;
+                    }
+                    if (row == null) {
+                        row = sheet.createRow(i);
+                    }
+                    cell = row.createCell(j);
+                }
+                cell.getCTCell().setS(styleIndex);
+            }
+        }
+    }
+
+    /**
+     * Sets the default style of the rows of a range spanning all the
+     * columns, and the style of the cells they already have.
+     */
+    private void styleRows(SheetRange range, long styleIndex) {
+        for (int i = range.firstRow; i <= range.lastRow; i++) {
+            XSSFRow row = sheet.getRow(i);
+            if (row == null) {
+                row = sheet.createRow(i);
+            }
+            setRowStyle(row, styleIndex);
+            for (Iterator<Cell> it = row.cellIterator(); it.hasNext();) {
+                ((XSSFCell) it.next()).getCTCell().setS(styleIndex);
+            }
+        }
+    }
+
+    /**
+     * Sets the default style of the columns of a range spanning all the
+     * rows, and the style of the cells that would not show it: the ones that
+     * exist and the empty ones of rows with their own default style.
+     */
+    private void styleColumns(SheetRange range, long styleIndex) {
+        CTCol styled = CTCol.Factory.newInstance();
+        styled.setMin(range.firstCol + 1);
+        styled.setMax(range.lastCol + 1);
+        styled.setStyle(styleIndex);
+
+        CTCols cols = sheet.getCTWorksheet().sizeOfColsArray() == 0
+            ? sheet.getCTWorksheet().addNewCols()
+            : sheet.getCTWorksheet().getColsArray(0);
+        sheet.getColumnHelper().addCleanColIntoCols(cols, styled);
+
+        // The column elements added for the range get the default width of
+        // the sheet, as Excel writes them.
+        double defaultWidth = defaultColumnWidth();
+        for (CTCol col : cols.getColList()) {
+            if (!col.isSetWidth() && col.getMax() > range.firstCol && col.getMin() <= range.lastCol + 1) {
+                col.setWidth(defaultWidth);
+            }
+        }
+        styledColumns.add(new long[] {range.firstCol, range.lastCol, styleIndex});
+
+        boolean allColumns = range.firstCol == 0 && range.lastCol == LAST_COL;
+        for (Row r : sheet) {
+            XSSFRow row = (XSSFRow) r;
+            if (row.isFormatted()) {
+                if (allColumns) {
+                    setRowStyle(row, styleIndex);
+                } else {
+                    for (int j = range.firstCol; j <= range.lastCol; j++) {
+                        row.getCell(j, XSSFRow.CREATE_NULL_AS_BLANK);
+                    }
+                }
+            }
+            for (Iterator<Cell> it = row.cellIterator(); it.hasNext();) {
+                XSSFCell cell = (XSSFCell) it.next();
+                if (cell.getColumnIndex() >= range.firstCol && cell.getColumnIndex() <= range.lastCol) {
+                    cell.getCTCell().setS(styleIndex);
+                }
+            }
+        }
+    }
+
+    private void setRowStyle(XSSFRow row, long styleIndex) {
+        CTRow ctRow = row.getCTRow();
+        ctRow.setS(styleIndex);
+        ctRow.setCustomFormat(true);
+        styledRows.set(row.getRowNum());
+    }
+
+    /**
+     * Width, as stored in the file, of the columns without their own width:
+     * the base width in characters plus the 5 pixels of padding of a
+     * 7 pixels wide digit.
+     */
+    private double defaultColumnWidth() {
+        if (sheet.getCTWorksheet().isSetSheetFormatPr() && sheet.getCTWorksheet().getSheetFormatPr().isSetDefaultColWidth()) {
+            return sheet.getCTWorksheet().getSheetFormatPr().getDefaultColWidth();
+        }
+        return Math.floor((sheet.getDefaultColumnWidth() * 7 + 5) / 7.0 * 256) / 256;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+/**
+ * Rectangular block of cells of one sheet, with inclusive bounds.
+ */
+final class SheetRange {
+    final int sheet;
+    final int firstRow;
+    final int firstCol;
+    final int lastRow;
+    final int lastCol;
+
+    SheetRange(int sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        this.sheet = sheet;
+        this.firstRow = firstRow;
+        this.firstCol = firstCol;
+        this.lastRow = lastRow;
+        this.lastCol = lastCol;
+    }
+
+    boolean contains(int sheet, int row, int col) {
+        return this.sheet == sheet
+            && row >= firstRow && row <= lastRow
+            && col >= firstCol && col <= lastCol;
+    }
+
+    long cellCount() {
+        return (long) (lastRow - firstRow + 1) * (lastCol - firstCol + 1);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof SheetRange)) {
+            return false;
+        }
+        SheetRange range = (SheetRange) other;
+        return sheet == range.sheet && firstRow == range.firstRow && firstCol == range.firstCol
+            && lastRow == range.lastRow && lastCol == range.lastCol;
+    }
+
+    @Override
+    public int hashCode() {
+        return (((sheet * 31 + firstRow) * 31 + firstCol) * 31 + lastRow) * 31 + lastCol;
+    }
+
+    @Override
+    public String toString() {
+        return sheet + "!R" + firstRow + "C" + firstCol + ":R" + lastRow + "C" + lastCol;
+    }
+}
@@ -0,0 +1,912 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
+import javax.json.JsonString;
+import javax.json.JsonValue;
+import javax.xml.XMLConstants;
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLEventFactory;
+import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLEventWriter;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.events.Attribute;
+import javax.xml.stream.events.StartElement;
+import javax.xml.stream.events.XMLEvent;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.util.CellRangeAddress;
+import org.apache.poi.ss.util.CellReference;
+
+/**
+ * Compiles text chunks by patching the XML of the sheets they write, without
+ * building the POI object model of the template.
+ *
+ * The template is copied entry by entry. Only the sheets written and the
+ * workbook part are parsed, with StAX, and written again: the new values are
+ * merged into the rows of the sheet as they are read, and the workbook is
+ * marked to be fully recalculated when opened, since no formula is
+ * evaluated here. The other entries are copied with their compressed bytes,
+ * CRC and sizes, without inflating them, so the time needed depends on the
+ * data written and not on the formulas of the template. Only the entries a
+ * zip without zip64 extensions describes are copied that way; the others
+ * are compressed again.
+ *
+ * A written cell keeps its style and formula, as in
+ * {@link XlsxTemplate#compileChunk(JsonObject)}. Strings are written inline,
+ * so the shared strings are not touched either. Styles and images need the
+ * object model: data with them is left to the DOM engine.
+ */
+final class SheetXmlPatcher {
+    private static final String OFFICE_DOCUMENT = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/officeDocument";
+    private static final String WORKSHEET = "http://schemas.openxmlformats.org/officeDocument/2006/relationships/worksheet";
+    private static final String RELATIONSHIPS = "http://schemas.openxmlformats.org/officeDocument/2006/relationships";
+
+    private static final QName R = new QName("r");
+    private static final QName T = new QName("t");
+    private static final QName REF = new QName("ref");
+    private static final QName SPANS = new QName("spans");
+    private static final QName FULL_CALC_ON_LOAD = new QName("fullCalcOnLoad");
+
+    // Elements that follow calcPr in a workbook part.
+    private static final List<String> AFTER_CALC_PR = Arrays.asList(
+        "oleSize", "customWorkbookViews", "pivotCaches", "smartTagPr", "smartTagTypes",
+        "webPublishing", "fileRecoveryPr", "webPublishObjects", "extLst");
+
+    private static final XMLInputFactory INPUT_FACTORY = XMLInputFactory.newInstance();
+    private static final XMLOutputFactory OUTPUT_FACTORY = XMLOutputFactory.newInstance();
+    private static final XMLEventFactory EVENTS = XMLEventFactory.newInstance();
+
+    static {
+        INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    private final ZipFile template;
+    private final FileChannel file;
+    private String workbookPart;
+    private final List<String> sheetNames = new ArrayList<>();
+    private final List<String> sheetParts = new ArrayList<>();
+    private final HashMap<String, SheetPatch> patches = new HashMap<>();
+    private long cellsWritten;
+
+    private SheetXmlPatcher(ZipFile template, FileChannel file) {
+        this.template = template;
+        this.file = file;
+    }
+
+    /**
+     * Compiles the data with this engine if the options ask for it and the
+     * data allows it.
+     *
+     * @param templatePath Path of the template.
+     * @param data JSON array with the data chunks.
+     * @param options Options of the compilation.
+     * @param stream Destination of the compiled workbook, closed once it has
+     * been written.
+     * @return true if the workbook was written; false if the DOM engine must
+     * be used, in which case nothing was written.
+     */
+    static boolean compile(String templatePath, JsonArray data, CompileOptions options, OutputStream stream) throws IOException {
+        if (options.getEngine() != CompileOptions.Engine.PATCH
+                || options.getResult() != CompileOptions.Result.XLSX
+                || !isPatchable(data)) {
+            return false;
+        }
+
+        CompileMetrics metrics = CompileMetrics.start(templatePath, "patch");
+        String status = "error";
+        try (ZipFile template = new ZipFile(templatePath);
+                FileChannel file = FileChannel.open(Paths.get(templatePath), StandardOpenOption.READ)) {
+            SheetXmlPatcher patcher = new SheetXmlPatcher(template, file);
+            if (!metrics.<Boolean, IOException, XMLStreamException>time("load", patcher::readWorkbook)
+                    || !metrics.time("data", () -> patcher.addChunks(data))) {
+                status = "fallback";
+                return false;
+            }
+            metrics.<IOException, XMLStreamException>time("write", () -> {
+                patcher.write(stream, options.getCompressionLevel());
+                stream.close();
+            });
+            metrics.addCellsWritten(patcher.cellsWritten);
+            status = "ok";
+            return true;
+        } catch (XMLStreamException e) {
+            throw new IOException("The template is not a valid xlsx.", e);
+        } finally {
+            metrics.finish(status);
+        }
+    }
+
+    /**
+     * Same as {@link #compile(String, JsonArray, CompileOptions, OutputStream)},
+     * with the data as UTF-8 bytes. Binary chunks are left to the DOM engine.
+     */
+    static boolean compile(String templatePath, byte[] data, CompileOptions options, OutputStream stream) throws IOException {
+        if (options.getEngine() != CompileOptions.Engine.PATCH
+                || BinaryChunkReader.hasMagic(new ByteArrayInputStream(data))) {
+            return false;
+        }
+        return compile(templatePath, Json.createReader(new ByteArrayInputStream(data)).readArray(), options, stream);
+    }
+
+    /**
+     * @return true if all the chunks are text chunks without style.
+     */
+    private static boolean isPatchable(JsonArray data) {
+        for (JsonValue value : data) {
+            JsonObject chunk = (JsonObject) value;
+            if (!chunk.getString("type", "").isEmpty()
+                    || chunk.containsKey("style") && chunk.get("style").getValueType() != JsonValue.ValueType.NULL) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the workbook part and its sheets.
+     *
+     * @return false if the template has a layout this engine does not know.
+     */
+    private boolean readWorkbook() throws IOException, XMLStreamException {
+        Map<String, String[]> packageRels = readRelationships("_rels/.rels", "");
+        for (String[] rel : packageRels.values()) {
+            if (OFFICE_DOCUMENT.equals(rel[0])) {
+                workbookPart = rel[1];
+            }
+        }
+        if (workbookPart == null || template.getEntry(workbookPart) == null) {
+            return false;
+        }
+
+        int slash = workbookPart.lastIndexOf('/');
+        String folder = workbookPart.substring(0, slash + 1);
+        Map<String, String[]> workbookRels = readRelationships(
+            folder + "_rels/" + workbookPart.substring(slash + 1) + ".rels", workbookPart);
+
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(template.getInputStream(template.getEntry(workbookPart)));
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement() && "sheet".equals(event.asStartElement().getName().getLocalPart())) {
+                    StartElement sheet = event.asStartElement();
+                    Attribute id = sheet.getAttributeByName(new QName(RELATIONSHIPS, "id"));
+                    String[] rel = id == null ? null : workbookRels.get(id.getValue());
+                    sheetNames.add(sheet.getAttributeByName(new QName("name")).getValue());
+                    // Chart sheets can not hold data: writing into one falls back to the DOM.
+                    sheetParts.add(rel != null && WORKSHEET.equals(rel[0]) ? rel[1] : null);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return true;
+    }
+
+    /**
+     * @param source Part the relationships belong to, used to resolve their
+     * targets.
+     * @return The type and part of each relationship, by id.
+     */
+    private Map<String, String[]> readRelationships(String relsPart, String source) throws IOException, XMLStreamException {
+        Map<String, String[]> rels = new HashMap<>();
+        ZipEntry entry = template.getEntry(relsPart);
+        if (entry == null) {
+            return rels;
+        }
+
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(template.getInputStream(entry));
+        try {
+            while (reader.hasNext()) {
+                XMLEvent event = reader.nextEvent();
+                if (event.isStartElement() && "Relationship".equals(event.asStartElement().getName().getLocalPart())) {
+                    StartElement rel = event.asStartElement();
+                    Attribute mode = rel.getAttributeByName(new QName("TargetMode"));
+                    if (mode != null && "External".equals(mode.getValue())) {
+                        continue;
+                    }
+                    String target = URI.create("/" + source).resolve(rel.getAttributeByName(new QName("Target")).getValue()).getPath();
+                    rels.put(rel.getAttributeByName(new QName("Id")).getValue(), new String[] {
+                        rel.getAttributeByName(new QName("Type")).getValue(), target.substring(1)
+                    });
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return rels;
+    }
+
+    /**
+     * Collects the values of the chunks by sheet, row and column. A later
+     * chunk overwrites the cells written by an earlier one.
+     *
+     * @return false if a chunk writes into a sheet this engine can not patch.
+     */
+    private boolean addChunks(JsonArray data) {
+        for (JsonValue value : data) {
+            JsonObject chunk = (JsonObject) value;
+            JsonArray target = chunk.getJsonArray("target");
+            String part = getSheetPart(target);
+            if (part == null) {
+                return false;
+            }
+
+            SheetPatch patch = patches.computeIfAbsent(part, key -> new SheetPatch());
+            int originCol = target.getJsonArray(1).getInt(0);
+            int originRow = target.getJsonArray(1).getInt(1);
+            JsonArray rows = chunk.getJsonArray("data");
+            for (int j = 0; j < rows.size(); j++) {
+                JsonArray row = rows.getJsonArray(j);
+                for (int k = 0; k < row.size(); k++) {
+                    patch.put(originRow + j, originCol + k, row.get(k));
+                    if (row.get(k).getValueType() == JsonValue.ValueType.STRING
+                            || row.get(k).getValueType() == JsonValue.ValueType.NUMBER) {
+                        cellsWritten += 1;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Same lookup as {@link XlsxTemplate#getSheetByNameOrIndex(JsonArray)}.
+     *
+     * @return The part of the sheet, or null if it is not a worksheet.
+     */
+    private String getSheetPart(JsonArray target) {
+        switch (target.get(0).getValueType()) {
+            case STRING:
+                int index = sheetNames.indexOf(target.getString(0));
+                if (index < 0) {
+                    throw new IllegalArgumentException("Sheet with name " + target.getString(0) + " not found.");
+                }
+                return sheetParts.get(index);
+            case NUMBER:
+                if (target.getInt(0) < 0 || target.getInt(0) >= sheetParts.size()) {
+                    throw new IllegalArgumentException("Sheet index (" + target.getInt(0) + ") is out of range (0.." + (sheetParts.size() - 1) + ")");
+                }
+                return sheetParts.get(target.getInt(0));
+            default:
+                throw new RuntimeException("Invalid type in target(0). Must be a integer or a string.");
+        }
+    }
+
+    private void write(OutputStream stream, int compressionLevel) throws IOException, XMLStreamException {
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(stream, compressionLevel);
+        Map<String, RawEntry> rawEntries = RawEntry.readAll(file);
+        byte[] buffer = new byte[1 << 16];
+        Enumeration<? extends ZipEntry> entries = template.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            SheetPatch patch = patches.get(entry.getName());
+            boolean isWorkbook = entry.getName().equals(workbookPart);
+            RawEntry raw = rawEntries.get(entry.getName());
+            if (patch == null && !isWorkbook && raw != null) {
+                zip.putCompressedEntry(entry.getName(), raw.method, raw.crc, raw.size, raw.read(file));
+                continue;
+            }
+
+            zip.putNextEntry(new ZipEntry(entry.getName()));
+            try (InputStream in = template.getInputStream(entry)) {
+                if (patch != null) {
+                    patch.sort();
+                    patchSheet(in, zip, patch);
+                } else if (isWorkbook) {
+                    patchWorkbook(in, zip);
+                } else {
+                    int count;
+                    while ((count = in.read(buffer)) >= 0) {
+                        zip.write(buffer, 0, count);
+                    }
+                }
+            }
+            zip.closeEntry();
+        }
+        zip.close();
+    }
+
+    /**
+     * Copies the workbook part setting fullCalcOnLoad in calcPr, which is
+     * added if missing.
+     */
+    private void patchWorkbook(InputStream in, OutputStream out) throws XMLStreamException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+        int depth = 0;
+        boolean calcPrDone = false;
+        QName root = null;
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                StartElement start = event.asStartElement();
+                depth += 1;
+                if (depth == 1) {
+                    root = start.getName();
+                } else if (depth == 2 && !calcPrDone) {
+                    String name = start.getName().getLocalPart();
+                    if ("calcPr".equals(name)) {
+                        event = withAttribute(start, FULL_CALC_ON_LOAD, "1");
+                        calcPrDone = true;
+                    } else if (AFTER_CALC_PR.contains(name)) {
+                        writeCalcPr(writer, root);
+                        calcPrDone = true;
+                    }
+                }
+            } else if (event.isEndElement()) {
+                if (depth == 1 && !calcPrDone) {
+                    writeCalcPr(writer, root);
+                    calcPrDone = true;
+                }
+                depth -= 1;
+            }
+            writer.add(event);
+        }
+        writer.flush();
+        reader.close();
+    }
+
+    private static void writeCalcPr(XMLEventWriter writer, QName root) throws XMLStreamException {
+        writer.add(EVENTS.createStartElement(root.getPrefix(), root.getNamespaceURI(), "calcPr"));
+        writer.add(EVENTS.createAttribute(FULL_CALC_ON_LOAD, "1"));
+        writer.add(EVENTS.createEndElement(root.getPrefix(), root.getNamespaceURI(), "calcPr"));
+    }
+
+    /**
+     * Copies a sheet merging the values of a patch into its rows, and
+     * growing its dimension to hold them.
+     */
+    private static void patchSheet(InputStream in, OutputStream out, SheetPatch patch) throws XMLStreamException {
+        XMLEventReader reader = INPUT_FACTORY.createXMLEventReader(in);
+        XMLEventWriter writer = OUTPUT_FACTORY.createXMLEventWriter(out, "UTF-8");
+        while (reader.hasNext()) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                StartElement start = event.asStartElement();
+                switch (start.getName().getLocalPart()) {
+                    case "dimension":
+                        event = withAttribute(start, REF, patch.growDimension(start.getAttributeByName(REF)));
+                        break;
+                    case "sheetData":
+                        writer.add(start);
+                        patchSheetData(reader, writer, start.getName(), patch);
+                        continue;
+                    default:
+                }
+            }
+            writer.add(event);
+        }
+        writer.flush();
+        reader.close();
+    }
+
+    /**
+     * Copies the rows of sheetData, up to its end element included, inserting
+     * the new rows and patching the written ones.
+     */
+    private static void patchSheetData(XMLEventReader reader, XMLEventWriter writer, QName sheetData, SheetPatch patch) throws XMLStreamException {
+        int next = 0;
+        int rowNum = -1;
+
+        while (true) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement()) {
+                while (next < patch.size()) {
+                    next = writeRow(writer, sheetData, patch, next);
+                }
+                writer.add(event);
+                return;
+            }
+            if (!event.isStartElement()) {
+                writer.add(event);
+                continue;
+            }
+
+            StartElement row = event.asStartElement();
+            Attribute r = row.getAttributeByName(R);
+            rowNum = r != null ? Integer.parseInt(r.getValue()) - 1 : rowNum + 1;
+            while (next < patch.size() && patch.getRow(next) < rowNum) {
+                next = writeRow(writer, sheetData, patch, next);
+            }
+            if (next < patch.size() && patch.getRow(next) == rowNum) {
+                next = patchRow(reader, writer, row, rowNum, patch, next);
+            } else {
+                writer.add(row);
+                copyElement(reader, writer);
+            }
+        }
+    }
+
+    /**
+     * Copies the cells of a row, up to its end element included, inserting
+     * the new cells and replacing the values of the written ones. The spans
+     * of the row are dropped, since they may no longer be right.
+     *
+     * @param first Index in the patch of the first cell of the row.
+     * @return The index of the first cell of the next rows.
+     */
+    private static int patchRow(XMLEventReader reader, XMLEventWriter writer, StartElement row, int rowNum,
+            SheetPatch patch, int first) throws XMLStreamException {
+        writer.add(EVENTS.createStartElement(row.getName(), withoutAttributes(row, SPANS).iterator(), row.getNamespaces()));
+
+        int end = patch.endOfRow(first);
+        int next = first;
+        int col = -1;
+
+        while (true) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isEndElement()) {
+                for (; next < end; next++) {
+                    writeCell(writer, row.getName(), rowNum, patch.getCol(next), patch.getValue(next));
+                }
+                writer.add(event);
+                return end;
+            }
+            if (!event.isStartElement()) {
+                writer.add(event);
+                continue;
+            }
+
+            StartElement start = event.asStartElement();
+            if (!"c".equals(start.getName().getLocalPart())) {
+                // Only extLst may follow the cells.
+                for (; next < end; next++) {
+                    writeCell(writer, row.getName(), rowNum, patch.getCol(next), patch.getValue(next));
+                }
+                writer.add(start);
+                copyElement(reader, writer);
+                continue;
+            }
+
+            Attribute r = start.getAttributeByName(R);
+            col = r != null ? new CellReference(r.getValue()).getCol() : col + 1;
+            for (; next < end && patch.getCol(next) < col; next++) {
+                writeCell(writer, row.getName(), rowNum, patch.getCol(next), patch.getValue(next));
+            }
+            if (next < end && patch.getCol(next) == col) {
+                patchCell(reader, writer, start, patch.getValue(next));
+                next += 1;
+            } else {
+                writer.add(start);
+                copyElement(reader, writer);
+            }
+        }
+    }
+
+    /**
+     * Replaces the value of a cell, up to its end element included, keeping
+     * its style and formula. Values other than strings and numbers leave the
+     * cell untouched.
+     */
+    private static void patchCell(XMLEventReader reader, XMLEventWriter writer, StartElement cell, JsonValue value) throws XMLStreamException {
+        if (value.getValueType() != JsonValue.ValueType.STRING && value.getValueType() != JsonValue.ValueType.NUMBER) {
+            writer.add(cell);
+            copyElement(reader, writer);
+            return;
+        }
+
+        List<XMLEvent> formula = new ArrayList<>();
+        int depth = 0;
+        while (true) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth += 1;
+                if (depth == 1 && !"f".equals(event.asStartElement().getName().getLocalPart())) {
+                    skipElement(reader);
+                    depth -= 1;
+                    continue;
+                }
+            } else if (event.isEndElement()) {
+                if (depth == 0) {
+                    break;
+                }
+                depth -= 1;
+            } else if (depth == 0) {
+                continue;
+            }
+            formula.add(event);
+        }
+
+        QName name = cell.getName();
+        List<Attribute> attributes = withoutAttributes(cell, T);
+        boolean isString = value.getValueType() == JsonValue.ValueType.STRING;
+        if (isString) {
+            attributes.add(EVENTS.createAttribute(T, formula.isEmpty() ? "inlineStr" : "str"));
+        }
+        writer.add(EVENTS.createStartElement(name, attributes.iterator(), cell.getNamespaces()));
+        for (XMLEvent event : formula) {
+            writer.add(event);
+        }
+        writeValue(writer, name, value, !formula.isEmpty());
+        writer.add(EVENTS.createEndElement(name, null));
+    }
+
+    /**
+     * Writes a cell that was not in the template. Values other than strings
+     * and numbers give an empty cell.
+     */
+    private static void writeCell(XMLEventWriter writer, QName parent, int rowNum, int col, JsonValue value) throws XMLStreamException {
+        QName name = new QName(parent.getNamespaceURI(), "c", parent.getPrefix());
+        List<Attribute> attributes = new ArrayList<>(2);
+        attributes.add(EVENTS.createAttribute(R, new CellReference(rowNum, col).formatAsString()));
+        if (value.getValueType() == JsonValue.ValueType.STRING) {
+            attributes.add(EVENTS.createAttribute(T, "inlineStr"));
+        }
+        writer.add(EVENTS.createStartElement(name, attributes.iterator(), null));
+        writeValue(writer, name, value, false);
+        writer.add(EVENTS.createEndElement(name, null));
+    }
+
+    /**
+     * Writes a row that was not in the template.
+     *
+     * @param first Index in the patch of the first cell of the row.
+     * @return The index of the first cell of the next rows.
+     */
+    private static int writeRow(XMLEventWriter writer, QName sheetData, SheetPatch patch, int first) throws XMLStreamException {
+        int rowNum = patch.getRow(first);
+        int end = patch.endOfRow(first);
+        QName name = new QName(sheetData.getNamespaceURI(), "row", sheetData.getPrefix());
+        List<Attribute> attributes = new ArrayList<>(1);
+        attributes.add(EVENTS.createAttribute(R, Integer.toString(rowNum + 1)));
+        writer.add(EVENTS.createStartElement(name, attributes.iterator(), null));
+        for (int i = first; i < end; i++) {
+            writeCell(writer, name, rowNum, patch.getCol(i), patch.getValue(i));
+        }
+        writer.add(EVENTS.createEndElement(name, null));
+        return end;
+    }
+
+    /**
+     * Writes the value of a cell as POI does: strings inline, or as the
+     * cached value of a formula.
+     */
+    private static void writeValue(XMLEventWriter writer, QName cell, JsonValue value, boolean hasFormula) throws XMLStreamException {
+        String text;
+        switch (value.getValueType()) {
+            case STRING:
+                text = ((JsonString) value).getString();
+                break;
+            case NUMBER:
+                text = String.valueOf(((JsonNumber) value).doubleValue());
+                break;
+            default:
+                return;
+        }
+
+        String ns = cell.getNamespaceURI();
+        String prefix = cell.getPrefix();
+        if (value.getValueType() == JsonValue.ValueType.NUMBER || hasFormula) {
+            writer.add(EVENTS.createStartElement(prefix, ns, "v"));
+            writer.add(EVENTS.createCharacters(text));
+            writer.add(EVENTS.createEndElement(prefix, ns, "v"));
+            return;
+        }
+
+        writer.add(EVENTS.createStartElement(prefix, ns, "is"));
+        writer.add(EVENTS.createStartElement(prefix, ns, "t"));
+        if (!text.isEmpty() && (Character.isWhitespace(text.charAt(0)) || Character.isWhitespace(text.charAt(text.length() - 1)))) {
+            writer.add(EVENTS.createAttribute("xml", XMLConstants.XML_NS_URI, "space", "preserve"));
+        }
+        writer.add(EVENTS.createCharacters(text));
+        writer.add(EVENTS.createEndElement(prefix, ns, "t"));
+        writer.add(EVENTS.createEndElement(prefix, ns, "is"));
+    }
+
+    /**
+     * Copies the content of the element just read, up to its end element
+     * included.
+     */
+    private static void copyElement(XMLEventReader reader, XMLEventWriter writer) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth += 1;
+            } else if (event.isEndElement()) {
+                depth -= 1;
+            }
+            writer.add(event);
+        }
+    }
+
+    /**
+     * Skips the content of the element just read, up to its end element
+     * included.
+     */
+    private static void skipElement(XMLEventReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            XMLEvent event = reader.nextEvent();
+            if (event.isStartElement()) {
+                depth += 1;
+            } else if (event.isEndElement()) {
+                depth -= 1;
+            }
+        }
+    }
+
+    private static StartElement withAttribute(StartElement element, QName attribute, String value) {
+        List<Attribute> attributes = withoutAttributes(element, attribute);
+        attributes.add(EVENTS.createAttribute(attribute, value));
+        return EVENTS.createStartElement(element.getName(), attributes.iterator(), element.getNamespaces());
+    }
+
+    private static List<Attribute> withoutAttributes(StartElement element, QName removed) {
+        List<Attribute> attributes = new ArrayList<>();
+        for (Iterator<?> it = element.getAttributes(); it.hasNext();) {
+            Attribute attribute = (Attribute) it.next();
+            if (!attribute.getName().equals(removed)) {
+                attributes.add(attribute);
+            }
+        }
+        return attributes;
+    }
+
+    /**
+     * Values written into a sheet. The cells are kept in the order they are
+     * written, each with a key made of its row, its column and that order,
+     * and sorted once by row and column before the sheet is copied.
+     */
+    private static final class SheetPatch {
+        private static final int COL_BITS = 14;
+        private static final int ORDER_BITS = 29;
+        private static final long ORDER_MASK = (1L << ORDER_BITS) - 1;
+
+        private long[] keys = new long[64];
+        private JsonValue[] values = new JsonValue[64];
+        private int size;
+        private boolean sorted = true;
+        private int firstRow = Integer.MAX_VALUE;
+        private int firstCol = Integer.MAX_VALUE;
+        private int lastRow = -1;
+        private int lastCol = -1;
+
+        void put(int row, int col, JsonValue value) {
+            if (row < 0 || row >= SpreadsheetVersion.EXCEL2007.getMaxRows()
+                    || col < 0 || col >= SpreadsheetVersion.EXCEL2007.getMaxColumns()) {
+                throw new IllegalArgumentException("Invalid cell (" + row + ", " + col + ").");
+            }
+            if (size > ORDER_MASK) {
+                throw new IllegalArgumentException("Too many cells written into a sheet.");
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = (((long) row << COL_BITS | col) << ORDER_BITS) | size;
+            values[size] = value;
+            size += 1;
+            sorted = false;
+
+            firstRow = Math.min(firstRow, row);
+            firstCol = Math.min(firstCol, col);
+            lastRow = Math.max(lastRow, row);
+            lastCol = Math.max(lastCol, col);
+        }
+
+        /**
+         * Sorts the cells by row and column, keeping the last value written
+         * into each one.
+         */
+        void sort() {
+            if (sorted) {
+                return;
+            }
+            Arrays.sort(keys, 0, size);
+            JsonValue[] ordered = new JsonValue[size];
+            int kept = 0;
+            for (int i = 0; i < size; i++) {
+                if (i + 1 < size && keys[i + 1] >>> ORDER_BITS == keys[i] >>> ORDER_BITS) {
+                    // Overwritten by a later chunk.
+                    continue;
+                }
+                ordered[kept] = values[(int) (keys[i] & ORDER_MASK)];
+                keys[kept] = keys[i] >>> ORDER_BITS;
+                kept += 1;
+            }
+            values = ordered;
+            size = kept;
+            sorted = true;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int getRow(int index) {
+            return (int) (keys[index] >>> COL_BITS);
+        }
+
+        int getCol(int index) {
+            return (int) (keys[index] & ((1 << COL_BITS) - 1));
+        }
+
+        JsonValue getValue(int index) {
+            return values[index];
+        }
+
+        /**
+         * @return The index of the first cell after the row of a cell.
+         */
+        int endOfRow(int index) {
+            int row = getRow(index);
+            int end = index + 1;
+            while (end < size && getRow(end) == row) {
+                end += 1;
+            }
+            return end;
+        }
+
+        /**
+         * @param ref The dimension of the sheet, or null.
+         * @return The dimension grown to hold the written cells.
+         */
+        String growDimension(Attribute ref) {
+            if (lastRow < 0) {
+                return ref == null ? "A1" : ref.getValue();
+            }
+            int top = firstRow, left = firstCol, bottom = lastRow, right = lastCol;
+            if (ref != null) {
+                CellRangeAddress dimension = CellRangeAddress.valueOf(ref.getValue());
+                top = Math.min(top, dimension.getFirstRow());
+                left = Math.min(left, dimension.getFirstColumn());
+                bottom = Math.max(bottom, dimension.getLastRow());
+                right = Math.max(right, dimension.getLastColumn());
+            }
+            return new CellRangeAddress(top, bottom, left, right).formatAsString();
+        }
+    }
+
+    /**
+     * An entry of the template as its central directory describes it, to
+     * copy its compressed bytes.
+     */
+    private static final class RawEntry {
+        private static final long NO_ZIP64 = 0xFFFFFFFFL;
+
+        final int method;
+        final long crc;
+        final long compressedSize;
+        final long size;
+        final long localHeader;
+
+        private RawEntry(int method, long crc, long compressedSize, long size, long localHeader) {
+            this.method = method;
+            this.crc = crc;
+            this.compressedSize = compressedSize;
+            this.size = size;
+            this.localHeader = localHeader;
+        }
+
+        /**
+         * Reads the central directory of a zip.
+         *
+         * @return The entries that can be copied compressed, by name. Entries
+         * that are encrypted, use zip64 extensions or a method other than
+         * stored or deflated are left out, and so are all of them if the
+         * directory can not be read.
+         */
+        static Map<String, RawEntry> readAll(FileChannel file) throws IOException {
+            Map<String, RawEntry> entries = new HashMap<>();
+            long length = file.size();
+            int tail = (int) Math.min(length, 22 + 0xFFFF);
+            ByteBuffer end = read(file, length - tail, tail);
+            int eocd = tail - 22;
+            while (eocd >= 0 && end.getInt(eocd) != 0x06054b50) {
+                eocd -= 1;
+            }
+            if (eocd < 0) {
+                return entries;
+            }
+            int count = end.getShort(eocd + 10) & 0xFFFF;
+            long directorySize = end.getInt(eocd + 12) & NO_ZIP64;
+            long directoryOffset = end.getInt(eocd + 16) & NO_ZIP64;
+            if (count == 0xFFFF || directoryOffset == NO_ZIP64 || directoryOffset + directorySize > length) {
+                return entries;
+            }
+
+            ByteBuffer directory = read(file, directoryOffset, (int) directorySize);
+            int position = 0;
+            for (int i = 0; i < count && position + 46 <= directorySize; i++) {
+                if (directory.getInt(position) != 0x02014b50) {
+                    return new HashMap<>();
+                }
+                int flags = directory.getShort(position + 8) & 0xFFFF;
+                int method = directory.getShort(position + 10) & 0xFFFF;
+                long crc = directory.getInt(position + 16) & NO_ZIP64;
+                long compressedSize = directory.getInt(position + 20) & NO_ZIP64;
+                long size = directory.getInt(position + 24) & NO_ZIP64;
+                int nameLength = directory.getShort(position + 28) & 0xFFFF;
+                int extraLength = directory.getShort(position + 30) & 0xFFFF;
+                int commentLength = directory.getShort(position + 32) & 0xFFFF;
+                long localHeader = directory.getInt(position + 42) & NO_ZIP64;
+                if (position + 46 + nameLength > directorySize) {
+                    return new HashMap<>();
+                }
+                String name = new String(directory.array(), position + 46, nameLength, StandardCharsets.UTF_8);
+
+                if ((flags & 1) == 0 && (method == ZipEntry.STORED || method == ZipEntry.DEFLATED)
+                        && compressedSize != NO_ZIP64 && size != NO_ZIP64 && localHeader != NO_ZIP64
+                        && compressedSize <= Integer.MAX_VALUE - 8) {
+                    entries.put(name, new RawEntry(method, crc, compressedSize, size, localHeader));
+                }
+                position += 46 + nameLength + extraLength + commentLength;
+            }
+            return entries;
+        }
+
+        /**
+         * @return The compressed bytes of the entry.
+         */
+        byte[] read(FileChannel file) throws IOException {
+            ByteBuffer header = read(file, localHeader, 30);
+            if (header.getInt(0) != 0x04034b50) {
+                throw new IOException("The template is not a valid xlsx.");
+            }
+            long data = localHeader + 30 + (header.getShort(26) & 0xFFFF) + (header.getShort(28) & 0xFFFF);
+            return read(file, data, (int) compressedSize).array();
+        }
+
+        private static ByteBuffer read(FileChannel file, long position, int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+            while (buffer.hasRemaining()) {
+                if (file.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("The template is not a valid xlsx.");
+                }
+            }
+            return buffer;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.streaming.SXSSFSheet;
+import org.apache.poi.xssf.streaming.SXSSFWorkbook;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Writes the rows added to the data-only sheets of a compilation through a
+ * {@link SXSSFWorkbook}, so only a window of them is kept in memory and the
+ * rest are flushed to temporary files.
+ *
+ * A sheet is data-only when it holds no formulas and no formula reads it,
+ * so nothing evaluated during the compilation needs its cells. Its rows up
+ * to the last one in the DOM stay there, and it starts streaming with the
+ * first row written after them. From then on the DOM of the sheet is frozen
+ * and a streamed row can not be written again once it has left the window.
+ * The other sheets are always written in the DOM.
+ */
+final class StreamedSheets {
+    private final XSSFWorkbook workbook;
+    private final FormulaGraph graph;
+    private final int window;
+    private SXSSFWorkbook streaming;
+
+    private final BitSet checked = new BitSet();
+    private final BitSet dataOnly = new BitSet();
+    // Last row kept in the DOM of each streaming sheet.
+    private final HashMap<Integer, Integer> domLastRows = new HashMap<>();
+
+    /**
+     * @param window Rows of each sheet kept in memory.
+     */
+    StreamedSheets(XSSFWorkbook workbook, FormulaGraph graph, int window) {
+        this.workbook = workbook;
+        this.graph = graph;
+        this.window = window;
+    }
+
+    /**
+     * Returns a row to write values into, creating it if needed.
+     *
+     * @throws IllegalArgumentException if the row was already streamed to
+     * disk.
+     */
+    Row getOrCreateRow(XSSFSheet sheet, int rowNum) {
+        int index = workbook.getSheetIndex(sheet);
+        Integer domLastRow = domLastRows.get(index);
+        if (domLastRow == null) {
+            XSSFRow row = sheet.getRow(rowNum);
+            if (row != null) {
+                return row;
+            }
+            int lastRow = sheet.getPhysicalNumberOfRows() == 0 ? -1 : sheet.getLastRowNum();
+            if (rowNum < lastRow || !isDataOnly(index)) {
+                return sheet.createRow(rowNum);
+            }
+            domLastRow = lastRow;
+            domLastRows.put(index, domLastRow);
+        }
+
+        if (rowNum <= domLastRow) {
+            XSSFRow row = sheet.getRow(rowNum);
+            return row != null ? row : sheet.createRow(rowNum);
+        }
+
+        SXSSFSheet streamed = getStreaming().getSheetAt(index);
+        Row row = streamed.getRow(rowNum);
+        if (row == null) {
+            if (rowNum <= streamed.getLastFlushedRowNum()) {
+                throw new IllegalArgumentException("The row " + rowNum + " of the sheet " + sheet.getSheetName()
+                    + " has already been streamed to disk. The rows added to a streamed sheet must be written in ascending order.");
+            }
+            row = streamed.createRow(rowNum);
+        }
+        return row;
+    }
+
+    /**
+     * @return The first row streamed in a sheet, or -1 if it has not started
+     * streaming.
+     */
+    int getFirstStreamedRow(int sheet) {
+        Integer domLastRow = domLastRows.get(sheet);
+        return domLastRow == null ? -1 : domLastRow + 1;
+    }
+
+    /**
+     * @return true if some sheet has started streaming.
+     */
+    boolean isStreaming() {
+        return streaming != null;
+    }
+
+    private boolean isDataOnly(int sheet) {
+        if (!checked.get(sheet)) {
+            checked.set(sheet);
+            dataOnly.set(sheet, graph.isDataOnly(sheet));
+        }
+        return dataOnly.get(sheet);
+    }
+
+    private SXSSFWorkbook getStreaming() {
+        if (streaming == null) {
+            streaming = new SXSSFWorkbook(workbook, window, false, false);
+        }
+        return streaming;
+    }
+
+    /**
+     * Writes the workbook with the streamed rows.
+     */
+    void write(OutputStream stream) throws IOException {
+        getStreaming().write(stream);
+    }
+
+    /**
+     * Deletes the temporary files of the streamed rows.
+     */
+    void dispose() {
+        if (streaming != null) {
+            streaming.dispose();
+        }
+    }
+}
@@ -0,0 +1,342 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.json.stream.JsonParsingException;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * Reads the data array of a compilation with the JSON streaming API and
+ * writes the chunks into the template while they are parsed.
+ *
+ * The rows of a text chunk are written as soon as they are read, so the
+ * memory needed does not depend on the size of the chunk. That requires the
+ * "target" key to come before "data" in the chunk. The keys of a chunk may
+ * come in any order, so a chunk is only streamed once it is known to be a
+ * text chunk: its "type", if already read, is a text one, and its data is
+ * made of rows, which the data of the other types never is. Otherwise, and
+ * for the "styles" and "imageBase64" chunks, which are small, the chunk is
+ * built in memory and handled as in
+ * {@link XlsxTemplate#compileTemplate(JsonArray)}.
+ */
+final class StreamingChunkReader {
+    private static final JsonParserFactory PARSER_FACTORY = Json.createParserFactory(Collections.<String, Object>emptyMap());
+
+    private final XlsxTemplate template;
+    private final JsonParser parser;
+
+    StreamingChunkReader(XlsxTemplate template, InputStream jsonData) {
+        this.template = template;
+        this.parser = PARSER_FACTORY.createParser(jsonData);
+    }
+
+    /**
+     * Reads the whole data array into the template.
+     */
+    void read() throws TranscoderException, IOException {
+        try {
+            expect(JsonParser.Event.START_ARRAY);
+            JsonParser.Event event;
+            while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                if (event != JsonParser.Event.START_OBJECT) {
+                    throw new JsonParsingException("Every chunk must be a JSON object.", parser.getLocation());
+                }
+                readChunk();
+            }
+        } finally {
+            parser.close();
+        }
+    }
+
+    private void readChunk() throws TranscoderException, IOException {
+        JsonArray target = null;
+        JsonArray data = null;
+        String selectedStyle = null;
+        String chunkType = null;
+        StreamedBlock streamed = null;
+
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+            String key = parser.getString();
+            event = parser.next();
+
+            switch (key) {
+                case "target":
+                    target = readArray(event);
+                    break;
+                case "style":
+                    selectedStyle = event == JsonParser.Event.VALUE_NULL ? null : parser.getString();
+                    break;
+                case "type":
+                    chunkType = parser.getString();
+                    break;
+                case "data":
+                    if (event != JsonParser.Event.START_ARRAY) {
+                        throw new JsonParsingException("The data of a chunk must be an array.", parser.getLocation());
+                    }
+                    JsonParser.Event first = parser.next();
+                    if (first == JsonParser.Event.START_ARRAY && target != null && isTextChunk(chunkType)) {
+                        streamed = new StreamedBlock(target, selectedStyle);
+                        streamed.read(first);
+                    } else {
+                        data = readElements(first);
+                    }
+                    break;
+                default:
+                    skipValue(event);
+            }
+        }
+
+        if (streamed == null) {
+            JsonObjectBuilder chunk = Json.createObjectBuilder();
+            if (target != null) {
+                chunk.add("target", target);
+            }
+            if (data != null) {
+                chunk.add("data", data);
+            }
+            if (selectedStyle != null) {
+                chunk.add("style", selectedStyle);
+            }
+            if (chunkType != null) {
+                chunk.add("type", chunkType);
+            }
+            template.compileChunk(chunk.build());
+        } else if (!isTextChunk(chunkType)) {
+            throw new IllegalArgumentException("The data of a chunk of type " + chunkType + " can not be rows of cells.");
+        } else if (selectedStyle != null && streamed.style == null) {
+            streamed.applyStyle(selectedStyle);
+        }
+    }
+
+    private static boolean isTextChunk(String chunkType) {
+        return chunkType == null || !("styles".equals(chunkType) || "imageBase64".equals(chunkType));
+    }
+
+    /**
+     * Rows of a text chunk written while they are parsed. Only the length of
+     * each row is kept, in case the style of the chunk comes after the data.
+     */
+    private final class StreamedBlock {
+        private final XSSFSheet sheet;
+        private final int originRow;
+        private final int originCol;
+        private final XSSFCellStyle style;
+        private int[] rowLengths = new int[16];
+        private int rows;
+        private long cells;
+
+        StreamedBlock(JsonArray target, String selectedStyle) {
+            this.sheet = template.getSheetByNameOrIndex(target);
+            this.originCol = target.getJsonArray(1).getInt(0);
+            this.originRow = target.getJsonArray(1).getInt(1);
+            this.style = template.getStyle(selectedStyle);
+        }
+
+        /**
+         * @param first The event of the first row, already read.
+         */
+        void read(JsonParser.Event first) {
+            for (JsonParser.Event event = first; event != JsonParser.Event.END_ARRAY; event = parser.next()) {
+                if (event != JsonParser.Event.START_ARRAY) {
+                    throw new JsonParsingException("Each row of a text chunk must be an array.", parser.getLocation());
+                }
+                readRow();
+            }
+            template.markWritten(sheet, originRow, originCol, rows, maxRowLength());
+            template.getMetrics().addCellsWritten(cells);
+        }
+
+        private int maxRowLength() {
+            int length = 0;
+            for (int j = 0; j < rows; j++) {
+                length = Math.max(length, rowLengths[j]);
+            }
+            return length;
+        }
+
+        private void readRow() {
+            Row row = template.getOrCreateRow(sheet, originRow + rows);
+
+            int k = 0;
+            JsonParser.Event event;
+            while ((event = parser.next()) != JsonParser.Event.END_ARRAY) {
+                Cell cell = template.getOrCreateCell(row, originCol + k);
+
+                switch (event) {
+                    case VALUE_STRING:
+                        template.setStringValue(cell, parser.getString(), -1);
+                        cells += 1;
+                        break;
+                    case VALUE_NUMBER:
+                        cell.setCellValue(Double.parseDouble(parser.getString()));
+                        cells += 1;
+                        break;
+                    default:
+                        skipValue(event);
+                }
+
+                if (style != null) {
+                    cell.setCellStyle(style);
+                }
+                k += 1;
+            }
+
+            if (rows == rowLengths.length) {
+                rowLengths = Arrays.copyOf(rowLengths, rows * 2);
+            }
+            rowLengths[rows] = k;
+            rows += 1;
+        }
+
+        void applyStyle(String selectedStyle) {
+            XSSFCellStyle lateStyle = template.getStyle(selectedStyle);
+            if (lateStyle == null) {
+                return;
+            }
+            for (int j = 0; j < rows; j++) {
+                Row row = template.getOrCreateRow(sheet, originRow + j);
+                for (int k = 0; k < rowLengths[j]; k++) {
+                    template.getOrCreateCell(row, originCol + k).setCellStyle(lateStyle);
+                }
+            }
+        }
+    }
+
+    private void expect(JsonParser.Event expected) {
+        if (!parser.hasNext() || parser.next() != expected) {
+            throw new JsonParsingException("Expected " + expected + ".", parser.getLocation());
+        }
+    }
+
+    private JsonArray readArray(JsonParser.Event current) {
+        if (current != JsonParser.Event.START_ARRAY) {
+            throw new JsonParsingException("Expected an array.", parser.getLocation());
+        }
+        return readElements(parser.next());
+    }
+
+    /**
+     * Reads the rest of an array.
+     *
+     * @param first The event of its first element, already read.
+     */
+    private JsonArray readElements(JsonParser.Event first) {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (JsonParser.Event event = first; event != JsonParser.Event.END_ARRAY; event = parser.next()) {
+            switch (event) {
+                case START_ARRAY:
+                    array.add(readArray(event));
+                    break;
+                case START_OBJECT:
+                    array.add(readObject());
+                    break;
+                case VALUE_STRING:
+                    array.add(parser.getString());
+                    break;
+                case VALUE_NUMBER:
+                    array.add(parser.getBigDecimal());
+                    break;
+                case VALUE_TRUE:
+                    array.add(true);
+                    break;
+                case VALUE_FALSE:
+                    array.add(false);
+                    break;
+                default:
+                    array.addNull();
+            }
+        }
+        return array.build();
+    }
+
+    private JsonObject readObject() {
+        JsonObjectBuilder object = Json.createObjectBuilder();
+        JsonParser.Event event;
+        while ((event = parser.next()) != JsonParser.Event.END_OBJECT) {
+            String key = parser.getString();
+            event = parser.next();
+            switch (event) {
+                case START_ARRAY:
+                    object.add(key, readArray(event));
+                    break;
+                case START_OBJECT:
+                    object.add(key, readObject());
+                    break;
+                case VALUE_STRING:
+                    object.add(key, parser.getString());
+                    break;
+                case VALUE_NUMBER:
+                    object.add(key, parser.getBigDecimal());
+                    break;
+                case VALUE_TRUE:
+                    object.add(key, true);
+                    break;
+                case VALUE_FALSE:
+                    object.add(key, false);
+                    break;
+                default:
+                    object.addNull(key);
+            }
+        }
+        return object.build();
+    }
+
+    private void skipValue(JsonParser.Event current) {
+        if (current != JsonParser.Event.START_ARRAY && current != JsonParser.Event.START_OBJECT) {
+            return;
+        }
+        int depth = 1;
+        while (depth > 0) {
+            switch (parser.next()) {
+                case START_ARRAY:
+                case START_OBJECT:
+                    depth += 1;
+                    break;
+                case END_ARRAY:
+                case END_OBJECT:
+                    depth -= 1;
+                    break;
+                default:
+            }
+        }
+    }
+}
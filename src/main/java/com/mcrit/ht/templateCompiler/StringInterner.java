@@ -0,0 +1,142 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.ss.SpreadsheetVersion;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.model.SharedStringsTable;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRichTextString;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.STCellType;
+
+/**
+ * Writes the text of the chunks into the cells of one workbook, as shared
+ * strings or inline.
+ *
+ * POI serializes every string it adds to the shared strings to look it up,
+ * even when the table already holds it. Here each distinct string is added
+ * once, and the cells of the same text only take its index. POI can not
+ * remove shared strings, so a workbook that is reset for another
+ * compilation, as in a {@link TemplateBatch}, must write its text inline.
+ * The count of references of the table is not kept up to date: Excel does
+ * not need it.
+ */
+final class StringInterner {
+    private static final int MAX_TEXT_LENGTH = SpreadsheetVersion.EXCEL2007.getMaxTextLength();
+
+    private final SharedStringsTable table;
+    private final Map<String, Integer> indexes = new HashMap<>();
+
+    StringInterner(XSSFWorkbook workbook) {
+        this.table = workbook.getSharedStringSource();
+    }
+
+    /**
+     * Returns the index of a string in the shared strings, adding it if
+     * needed.
+     *
+     * @throws IllegalArgumentException if the text is longer than a cell
+     * allows.
+     */
+    int intern(String text) {
+        Integer index = indexes.get(text);
+        if (index == null) {
+            checkLength(text);
+            index = table.addEntry(new XSSFRichTextString(text).getCTRst());
+            indexes.put(text, index);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the indexes of several strings, as {@link #intern(String)}.
+     */
+    int[] intern(String[] texts) {
+        int[] result = new int[texts.length];
+        for (int i = 0; i < texts.length; i++) {
+            result[i] = intern(texts[i]);
+        }
+        return result;
+    }
+
+    /**
+     * Writes a shared string into a cell.
+     *
+     * @param index Index of the text, from {@link #intern(String)}, or -1 to
+     * look it up.
+     */
+    void setShared(Cell cell, String text, int index) {
+        CTCell ct = getPlainCell(cell);
+        if (ct == null) {
+            cell.setCellValue(text);
+            return;
+        }
+        if (ct.isSetIs()) {
+            ct.unsetIs();
+        }
+        ct.setT(STCellType.S);
+        ct.setV(Integer.toString(index >= 0 ? index : intern(text)));
+    }
+
+    /**
+     * Writes a string into a cell, without adding it to the shared strings.
+     */
+    void setInline(Cell cell, String text) {
+        CTCell ct = getPlainCell(cell);
+        if (ct == null) {
+            cell.setCellValue(text);
+            return;
+        }
+        checkLength(text);
+        if (ct.isSetV()) {
+            ct.unsetV();
+        }
+        ct.setT(STCellType.INLINE_STR);
+        ct.setIs(new XSSFRichTextString(text).getCTRst());
+    }
+
+    /**
+     * @return The XML of a cell that holds no formula, or null if its value
+     * must be set through POI.
+     */
+    private static CTCell getPlainCell(Cell cell) {
+        if (!(cell instanceof XSSFCell)) {
+            return null;
+        }
+        CTCell ct = ((XSSFCell) cell).getCTCell();
+        return ct.isSetF() ? null : ct;
+    }
+
+    private static void checkLength(String text) {
+        if (text.length() > MAX_TEXT_LENGTH) {
+            throw new IllegalArgumentException("The maximum length of cell contents (text) is 32,767 characters");
+        }
+    }
+}
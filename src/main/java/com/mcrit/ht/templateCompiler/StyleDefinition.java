@@ -0,0 +1,276 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.Arrays;
+
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.ss.usermodel.FontUnderline;
+import org.apache.poi.ss.usermodel.HorizontalAlignment;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFColor;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+
+/**
+ * A style of the styles object, validated and normalized.
+ *
+ * Two JSON styles that render the same, whatever their key order or the
+ * shorthand used for the borders, have the same canonical key, which
+ * {@link StyleInterner} uses to share the workbook entries. Definitions do
+ * not depend on any workbook, so they are kept in a process-wide cache and
+ * parsed once for all the compilations that send the same style.
+ */
+final class StyleDefinition {
+    private static final int TOP = 0;
+    private static final int RIGHT = 1;
+    private static final int BOTTOM = 2;
+    private static final int LEFT = 3;
+
+    private static final LruCache<JsonObject, StyleDefinition> CACHE = new LruCache<>(4096, definition -> 1, null);
+
+    private Short fontSize;
+    private java.awt.Color fontColor;
+    private Boolean fontBold;
+    private Boolean fontItalic;
+    private FontUnderline fontUnderline;
+    private java.awt.Color backgroundColor;
+    private final java.awt.Color[] borderColors = new java.awt.Color[4];
+    private final BorderStyle[] borderStyles = new BorderStyle[4];
+    private HorizontalAlignment align;
+    private String key;
+
+    private StyleDefinition() {
+    }
+
+    /**
+     * Returns the definition of a style, from the cache when the same style
+     * has been seen before.
+     *
+     * @param style JSON object with the keys described in
+     * {@link XlsxTemplate#parseStylesObject(JsonObject)}.
+     * @throws IllegalArgumentException on an unknown property.
+     */
+    static StyleDefinition of(JsonObject style) {
+        StyleDefinition definition = CACHE.get(style);
+        if (definition == null) {
+            definition = parse(style);
+            CACHE.put(style, definition);
+        }
+        return definition;
+    }
+
+    /**
+     * The process-wide cache of definitions, for diagnostics.
+     */
+    static LruCache<JsonObject, StyleDefinition> getCache() {
+        return CACHE;
+    }
+
+    private static StyleDefinition parse(JsonObject style) {
+        StyleDefinition definition = new StyleDefinition();
+
+        for (String styleProperty : style.keySet()) {
+            switch (styleProperty) {
+                case "fontSize":
+                    definition.fontSize = (short) style.getInt(styleProperty);
+                    break;
+                case "fontColor":
+                    definition.fontColor = rgb(style.getJsonArray(styleProperty));
+                    break;
+                case "fontBold":
+                    definition.fontBold = style.getBoolean(styleProperty);
+                    break;
+                case "fontItalic":
+                    definition.fontItalic = style.getBoolean(styleProperty);
+                    break;
+                case "fontUnderline":
+                    definition.fontUnderline = FontUnderline.valueOf(style.getString(styleProperty));
+                    break;
+                case "backgroundColor":
+                    definition.backgroundColor = rgb(style.getJsonArray(styleProperty));
+                    break;
+                case "border":
+                    definition.parseBorder(style.getJsonObject(styleProperty));
+                    break;
+                case "align":
+                    definition.align = HorizontalAlignment.valueOf(style.getString(styleProperty));
+                    break;
+                default :
+                    throw new IllegalArgumentException("Unknown property.");
+            }
+        }
+
+        definition.key = definition.buildKey();
+        return definition;
+    }
+
+    /**
+     * Expands the [up, right, down, left], [upDown, leftRight] and [all]
+     * shorthands to one value per side.
+     */
+    private void parseBorder(JsonObject borderProperties) {
+        for (String borderProperty : borderProperties.keySet()) {
+            JsonArray borderStyleProp = borderProperties.getJsonArray(borderProperty);
+
+            switch (borderProperty) {
+                case "color":
+                    java.awt.Color[] colors = new java.awt.Color[borderStyleProp.size()];
+                    for (int i = 0; i < colors.length; i += 1) {
+                        colors[i] = rgb(borderStyleProp.getJsonArray(i));
+                    }
+
+                    switch (colors.length) {
+                        case 4:
+                            borderColors[TOP] = colors[0];
+                            borderColors[RIGHT] = colors[1];
+                            borderColors[BOTTOM] = colors[2];
+                            borderColors[LEFT] = colors[3];
+                            break;
+                        case 2:
+                            borderColors[TOP] = colors[0];
+                            borderColors[BOTTOM] = colors[0];
+                            borderColors[RIGHT] = colors[1];
+                            borderColors[LEFT] = colors[1];
+                            break;
+                        default:
+                            Arrays.fill(borderColors, colors[0]);
+                    }
+                    break;
+                case "style" :
+                    BorderStyle[] styles = new BorderStyle[borderStyleProp.size()];
+                    for (int i = 0; i < styles.length; i += 1) {
+                        styles[i] = BorderStyle.valueOf(borderStyleProp.getString(i));
+                    }
+
+                    switch (styles.length) {
+                        case 4:
+                            borderStyles[TOP] = styles[0];
+                            borderStyles[RIGHT] = styles[1];
+                            borderStyles[BOTTOM] = styles[2];
+                            borderStyles[LEFT] = styles[3];
+                            break;
+                        case 2:
+                            borderStyles[TOP] = styles[0];
+                            borderStyles[BOTTOM] = styles[0];
+                            borderStyles[RIGHT] = styles[1];
+                            borderStyles[LEFT] = styles[1];
+                            break;
+                        default:
+                            Arrays.fill(borderStyles, styles[0]);
+                    }
+                    break;
+                default :
+                    throw new IllegalArgumentException("Unknown border property.");
+            }
+        }
+    }
+
+    private static java.awt.Color rgb(JsonArray rgb) {
+        return new java.awt.Color(rgb.getInt(0), rgb.getInt(1), rgb.getInt(2));
+    }
+
+    private String buildKey() {
+        StringBuilder builder = new StringBuilder();
+        builder.append(fontSize).append('|')
+            .append(fontColor).append('|')
+            .append(fontBold).append('|')
+            .append(fontItalic).append('|')
+            .append(fontUnderline).append('|')
+            .append(backgroundColor).append('|')
+            .append(Arrays.toString(borderColors)).append('|')
+            .append(Arrays.toString(borderStyles)).append('|')
+            .append(align);
+        return builder.toString();
+    }
+
+    /**
+     * Canonical representation of all the properties of the style. Equal
+     * keys mean equal styles.
+     */
+    String getKey() {
+        return key;
+    }
+
+    /**
+     * Sets the font properties of the style, in a fixed order, so equal
+     * definitions always give the same XML.
+     */
+    void applyTo(XSSFFont font) {
+        if (fontSize != null) {
+            font.setFontHeightInPoints(fontSize);
+        }
+        if (fontColor != null) {
+            font.setColor(color(fontColor));
+        }
+        if (fontBold != null) {
+            font.setBold(fontBold);
+            if (fontBold) {
+                font.setBoldweight(XSSFFont.BOLDWEIGHT_BOLD);
+            } else {
+                font.setBoldweight(XSSFFont.BOLDWEIGHT_NORMAL);
+            }
+        }
+        if (fontItalic != null) {
+            font.setItalic(fontItalic);
+        }
+        if (fontUnderline != null) {
+            font.setUnderline(fontUnderline);
+        }
+    }
+
+    /**
+     * Sets the fill, border and alignment properties of the style, in a fixed
+     * order. The font is set by the caller.
+     */
+    void applyTo(XSSFCellStyle cellStyle) {
+        if (backgroundColor != null) {
+            cellStyle.setFillBackgroundColor(color(backgroundColor));
+            cellStyle.setFillPattern(XSSFCellStyle.SOLID_FOREGROUND);
+        }
+        if (borderColors[TOP] != null) {
+            cellStyle.setBorderColor(XSSFCellBorder.BorderSide.TOP, color(borderColors[TOP]));
+            cellStyle.setBorderColor(XSSFCellBorder.BorderSide.RIGHT, color(borderColors[RIGHT]));
+            cellStyle.setBorderColor(XSSFCellBorder.BorderSide.BOTTOM, color(borderColors[BOTTOM]));
+            cellStyle.setBorderColor(XSSFCellBorder.BorderSide.LEFT, color(borderColors[LEFT]));
+        }
+        if (borderStyles[TOP] != null) {
+            cellStyle.setBorderTop(borderStyles[TOP]);
+            cellStyle.setBorderRight(borderStyles[RIGHT]);
+            cellStyle.setBorderBottom(borderStyles[BOTTOM]);
+            cellStyle.setBorderLeft(borderStyles[LEFT]);
+        }
+        if (align != null) {
+            cellStyle.setAlignment(align);
+        }
+    }
+
+    private static XSSFColor color(java.awt.Color rgb) {
+        return new XSSFColor(rgb);
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.poi.xssf.model.StylesTable;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTFont;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTXf;
+
+/**
+ * Turns style definitions into cell styles of one workbook, adding a font or
+ * a cell format only when the workbook does not have an identical one yet.
+ *
+ * Styles sent under several names share one entry, and a template that
+ * already holds a style, for instance because it was saved from an earlier
+ * compilation, keeps using it instead of growing its styles part.
+ */
+final class StyleInterner {
+    private final XSSFWorkbook workbook;
+    private final StylesTable stylesTable;
+    private final Map<String, XSSFCellStyle> byKey = new HashMap<>();
+    private Map<String, Integer> cellXfs;
+
+    StyleInterner(XSSFWorkbook workbook) {
+        this.workbook = workbook;
+        this.stylesTable = workbook.getStylesSource();
+    }
+
+    /**
+     * Returns the cell style of a definition, creating it if needed.
+     *
+     * @throws IllegalStateException if the workbook has reached the maximum
+     * number of cell styles.
+     */
+    XSSFCellStyle intern(StyleDefinition definition) {
+        XSSFCellStyle cellStyle = byKey.get(definition.getKey());
+        if (cellStyle == null) {
+            cellStyle = findOrCreate(definition);
+            byKey.put(definition.getKey(), cellStyle);
+        }
+        return cellStyle;
+    }
+
+    private XSSFCellStyle findOrCreate(StyleDefinition definition) {
+        int fontIndex = internFont(definition);
+
+        // Build the format apart, with the same defaults as
+        // StylesTable.createCellStyle, so it can be compared with the
+        // existing ones before it is added.
+        XSSFCellStyle scratch = new XSSFCellStyle(stylesTable);
+        CTXf xf = scratch.getCoreXf();
+        xf.setNumFmtId(0);
+        xf.setFontId(0);
+        xf.setFillId(0);
+        xf.setBorderId(0);
+        xf.setXfId(0);
+        definition.applyTo(scratch);
+        xf.setFontId(fontIndex);
+        xf.setApplyFont(true);
+
+        String xml = xf.toString();
+        Integer index = getCellXfs().get(xml);
+        if (index != null) {
+            return workbook.getCellStyleAt(index);
+        }
+
+        XSSFCellStyle cellStyle = workbook.createCellStyle();
+        cellStyle.getCoreXf().set(xf);
+        cellXfs.put(xml, (int) cellStyle.getIndex());
+        return cellStyle;
+    }
+
+    private int internFont(StyleDefinition definition) {
+        XSSFFont font = new XSSFFont(CTFont.Factory.newInstance());
+        font.setFontName(XSSFFont.DEFAULT_FONT_NAME);
+        font.setFontHeight((double) XSSFFont.DEFAULT_FONT_SIZE);
+        definition.applyTo(font);
+
+        int index = stylesTable.getFonts().indexOf(font);
+        if (index < 0) {
+            index = (int) font.registerTo(stylesTable);
+        }
+        return index;
+    }
+
+    /**
+     * Index of the cell formats of the workbook by their XML, built on first
+     * use. The first of several equal formats is kept.
+     */
+    private Map<String, Integer> getCellXfs() {
+        if (cellXfs == null) {
+            int count = stylesTable.getNumCellStyles();
+            cellXfs = new HashMap<>(count * 2);
+            for (int i = 0; i < count; i++) {
+                cellXfs.putIfAbsent(stylesTable.getCellXfAt(i).toString(), i);
+            }
+        }
+        return cellXfs;
+    }
+}
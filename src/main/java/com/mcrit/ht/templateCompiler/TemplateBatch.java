@@ -0,0 +1,195 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Compiles many data sets, or scenarios, against the same template and
+ * styles.
+ *
+ * The template, its formula graph and the styles are loaded once. Every
+ * thread keeps its own copy of the template; after each scenario only the
+ * cells the scenario wrote, styled or recalculated are restored from an
+ * untouched copy, so the next scenario starts from the template again
+ * without parsing it. A scenario that adds pictures can not be undone and
+ * its copy is replaced by a new one. The text of the scenarios is always
+ * written inline, since the shared strings of a copy can not be restored.
+ * The patch engine is not used: it would read the template file again for
+ * every scenario, while the copies are already parsed.
+ *
+ * At most threads scenarios run at the same time, holding one copy of the
+ * template each, and at most as many more wait for a thread before submit
+ * blocks.
+ */
+public class TemplateBatch implements AutoCloseable {
+    private final XSSFWorkbook pristine;
+    private final FormulaGraph graph;
+    private final TemplateSnapshot snapshot;
+    private final String templatePath;
+    private final JsonObject styles;
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final ConcurrentLinkedQueue<XlsxTemplate> idle = new ConcurrentLinkedQueue<>();
+
+    public TemplateBatch(String templatePath, String jsonStyles, int threads) throws IOException {
+        this(templatePath, jsonStyles, threads, TemplateCache.getDefault());
+    }
+
+    /**
+     * @param templatePath Path of the template.
+     * @param jsonStyles JSON object with the styles of every scenario.
+     * @param threads Number of scenarios compiled at the same time.
+     * @param cache Cache the template is opened from.
+     * @throws IOException if the template can not be read.
+     */
+    public TemplateBatch(String templatePath, String jsonStyles, int threads, TemplateCache cache) throws IOException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required.");
+        }
+
+        this.templatePath = templatePath;
+        this.styles = Json.createReader(new StringReader(jsonStyles)).readObject();
+        this.snapshot = cache.getSnapshot(templatePath);
+        if (snapshot != null) {
+            this.pristine = snapshot.newCopy();
+            this.graph = snapshot.getGraph(pristine);
+        } else {
+            this.pristine = readTemplate();
+            this.graph = FormulaGraph.build(pristine);
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "template-batch-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.slots = new Semaphore(2 * threads);
+    }
+
+    /**
+     * @return The number of scenarios compiled at the same time.
+     */
+    int getThreads() {
+        return threads;
+    }
+
+    /**
+     * Queues a scenario, waiting for a free slot if the queue is full.
+     *
+     * @param data The data of the scenario, as the JSON data array or in the
+     * binary format of {@link BinaryChunkReader}.
+     * @param options Options of the scenario.
+     * @return The result of the scenario.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     * @throws RejectedExecutionException if the batch has been closed.
+     */
+    public Future<byte[]> submit(byte[] data, CompileOptions options) throws InterruptedException {
+        slots.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return compile(data, options);
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    private byte[] compile(byte[] data, CompileOptions options) throws Exception {
+        XlsxTemplate template = idle.poll();
+        if (template == null) {
+            template = newTemplate();
+        }
+
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        template.compileData(new ByteArrayInputStream(data), options, result);
+
+        // A failed scenario leaves its copy half written, so it is dropped.
+        if (template.resetTo(pristine)) {
+            idle.offer(template);
+        }
+        return result.toByteArray();
+    }
+
+    private XlsxTemplate newTemplate() throws IOException {
+        XSSFWorkbook copy = snapshot != null ? snapshot.newCopy() : readTemplate();
+        XlsxTemplate template = new XlsxTemplate(copy, graph);
+        template.setInlineStrings();
+        template.parseStylesObject(styles);
+        return template;
+    }
+
+    private XSSFWorkbook readTemplate() throws IOException {
+        try (InputStream fis = new FileInputStream(templatePath)) {
+            return new XSSFWorkbook(fis);
+        }
+    }
+
+    /**
+     * Stops accepting scenarios and waits for the queued ones to finish.
+     * If interrupted, returns without waiting and keeps the interrupt status
+     * of the thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            idle.clear();
+        }
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Cache of parsed templates shared by the compilations of a long-lived
+ * process.
+ *
+ * Templates are keyed by their canonical path, modification time and size,
+ * so a template replaced on disk is read again. The cache is bounded by the
+ * size of the uncompressed packages it keeps and evicts the least recently
+ * used templates first. A template larger than the whole budget is not
+ * cached: it is parsed from the file every time.
+ *
+ * The spare copies parsed ahead of time are not part of the budget, so only
+ * {@link TemplateCompiler}, which serves many requests for the same
+ * templates, asks for them; their number per template is set with
+ * prefetchedCopies.
+ *
+ * The default instance is configured with the system properties
+ * htxlsx.templateCache.bytes and htxlsx.templateCache.prefetch.
+ */
+public class TemplateCache {
+    public static final String BUDGET_PROPERTY = "htxlsx.templateCache.bytes";
+    public static final String PREFETCH_PROPERTY = "htxlsx.templateCache.prefetch";
+
+    private static final long DEFAULT_BUDGET = 256L << 20;
+    private static final int DEFAULT_PREFETCH = 1;
+
+    private static final ExecutorService PREFETCHER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "template-prefetch");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final TemplateCache DEFAULT = new TemplateCache(
+        Long.getLong(BUDGET_PROPERTY, DEFAULT_BUDGET),
+        Integer.getInteger(PREFETCH_PROPERTY, DEFAULT_PREFETCH));
+
+    private final LruCache<Key, TemplateSnapshot> snapshots;
+    // Templates that did not fit in the budget, so they are not loaded again.
+    private final Set<Key> oversized = ConcurrentHashMap.newKeySet();
+    private final int prefetchedCopies;
+
+    /**
+     * @param byteBudget Maximum size of the cached packages, in bytes. Zero
+     * disables the cache.
+     * @param prefetchedCopies Number of copies of each template parsed ahead
+     * of time for a {@link TemplateCompiler}.
+     */
+    public TemplateCache(long byteBudget, int prefetchedCopies) {
+        this.snapshots = new LruCache<>(byteBudget, TemplateSnapshot::getSize, TemplateSnapshot::retire);
+        this.prefetchedCopies = prefetchedCopies;
+    }
+
+    public static TemplateCache getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Returns a private, mutable copy of a template.
+     *
+     * @param fileName Path of the template.
+     * @return A workbook owned by the caller.
+     * @throws IOException if the template cannot be read.
+     */
+    public XSSFWorkbook open(String fileName) throws IOException {
+        TemplateSnapshot snapshot = getSnapshot(fileName);
+        return snapshot == null ? read(fileName) : snapshot.newCopy();
+    }
+
+    /**
+     * Parses a template from its file, without the cache.
+     */
+    static XSSFWorkbook read(String fileName) throws IOException {
+        try (InputStream fis = new FileInputStream(fileName)) {
+            return new XSSFWorkbook(fis);
+        }
+    }
+
+    /**
+     * @return The snapshot of a template, or null if the cache is disabled
+     * or the template does not fit in it.
+     */
+    TemplateSnapshot getSnapshot(String fileName) throws IOException {
+        if (snapshots.getBudget() <= 0) {
+            return null;
+        }
+
+        File file = new File(fileName).getCanonicalFile();
+        Key key = new Key(file.getPath(), file.lastModified(), file.length());
+        if (oversized.contains(key)) {
+            return null;
+        }
+
+        TemplateSnapshot snapshot = snapshots.get(key);
+        if (snapshot == null) {
+            try (InputStream fis = new FileInputStream(file)) {
+                snapshot = TemplateSnapshot.load(fis, PREFETCHER);
+            }
+            // Older versions of the same file will never be requested again.
+            snapshots.removeIf(cached -> cached.path.equals(key.path));
+            oversized.removeIf(cached -> cached.path.equals(key.path));
+            if (!snapshots.put(key, snapshot)) {
+                snapshot.retire();
+                oversized.add(key);
+                return null;
+            }
+        }
+        return snapshot;
+    }
+
+    int getPrefetchedCopies() {
+        return prefetchedCopies;
+    }
+
+    public void setByteBudget(long byteBudget) {
+        snapshots.setBudget(byteBudget);
+        oversized.clear();
+    }
+
+    public long getByteBudget() {
+        return snapshots.getBudget();
+    }
+
+    /**
+     * @return Size in bytes of the cached packages.
+     */
+    public long getSize() {
+        return snapshots.getWeight();
+    }
+
+    public long getHits() {
+        return snapshots.getHits();
+    }
+
+    public long getMisses() {
+        return snapshots.getMisses();
+    }
+
+    public long getEvictions() {
+        return snapshots.getEvictions();
+    }
+
+    public void clear() {
+        snapshots.clear();
+        oversized.clear();
+    }
+
+    private static final class Key {
+        private final String path;
+        private final long lastModified;
+        private final long size;
+
+        Key(String path, long lastModified, long size) {
+            this.path = path;
+            this.lastModified = lastModified;
+            this.size = size;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key key = (Key) other;
+            return path.equals(key.path) && lastModified == key.lastModified && size == key.size;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(path, lastModified, size);
+        }
+    }
+}
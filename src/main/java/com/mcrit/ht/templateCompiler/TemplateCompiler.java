@@ -0,0 +1,170 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.StringReader;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+
+/**
+ * Thread-safe service that runs several compilations at once in the same
+ * JVM.
+ *
+ * At most threads compilations run at the same time and at most queueLimit
+ * more wait for a thread. Once that limit is reached, submit blocks the
+ * caller until a compilation finishes, so a fast producer cannot pile up
+ * requests in memory.
+ */
+public class TemplateCompiler implements AutoCloseable {
+    private final ExecutorService executor;
+    private final Semaphore slots;
+    private final TemplateCache cache;
+
+    public TemplateCompiler(int threads, int queueLimit) {
+        this(threads, queueLimit, TemplateCache.getDefault());
+    }
+
+    /**
+     * @param threads Number of compilations run in parallel.
+     * @param queueLimit Number of compilations waiting for a thread before
+     * submit blocks.
+     * @param cache Cache the templates are opened from.
+     */
+    public TemplateCompiler(int threads, int queueLimit, TemplateCache cache) {
+        if (threads < 1 || queueLimit < 0) {
+            throw new IllegalArgumentException("At least one thread and a non negative queue limit are required.");
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<>(), runnable -> {
+                Thread thread = new Thread(runnable, "template-compiler-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        this.slots = new Semaphore(threads + queueLimit);
+        this.cache = cache;
+    }
+
+    /**
+     * Queues a compilation, waiting for a free slot if the queue is full.
+     *
+     * @param templatePath Path of the template.
+     * @param jsonData JSON array with the data chunks, as in
+     * {@link XlsxTemplate#compileAndStreamTemplate(String, String, String)}.
+     * @param jsonStyles JSON object with the styles.
+     * @return The compiled xlsx.
+     * @throws InterruptedException if interrupted while waiting for a slot.
+     * @throws RejectedExecutionException if the service has been closed.
+     */
+    public Future<byte[]> submit(String templatePath, String jsonData, String jsonStyles) throws InterruptedException {
+        return submit(templatePath, jsonData, jsonStyles, new CompileOptions());
+    }
+
+    /**
+     * Same as {@link #submit(String, String, String)}, with options for this
+     * compilation.
+     */
+    public Future<byte[]> submit(String templatePath, String jsonData, String jsonStyles, CompileOptions options) throws InterruptedException {
+        return submit(() -> {
+            JsonArray data = Json.createReader(new StringReader(jsonData)).readArray();
+            JsonObject styles = Json.createReader(new StringReader(jsonStyles)).readObject();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            if (!SheetXmlPatcher.compile(templatePath, data, options, result)) {
+                new XlsxTemplate(templatePath, cache, cache.getPrefetchedCopies()).compile(data, styles, options, result);
+            }
+            return result.toByteArray();
+        });
+    }
+
+    /**
+     * Same as {@link #submit(String, String, String)}, but the data is given
+     * as UTF-8 bytes and parsed while it is written into the workbook, without
+     * building the JSON tree.
+     */
+    public Future<byte[]> submit(String templatePath, byte[] jsonData, String jsonStyles) throws InterruptedException {
+        return submit(templatePath, jsonData, jsonStyles, new CompileOptions());
+    }
+
+    /**
+     * Same as {@link #submit(String, byte[], String)}, with options for this
+     * compilation.
+     */
+    public Future<byte[]> submit(String templatePath, byte[] jsonData, String jsonStyles, CompileOptions options) throws InterruptedException {
+        return submit(() -> {
+            JsonObject styles = Json.createReader(new StringReader(jsonStyles)).readObject();
+
+            ByteArrayOutputStream result = new ByteArrayOutputStream();
+            if (!SheetXmlPatcher.compile(templatePath, jsonData, options, result)) {
+                new XlsxTemplate(templatePath, cache, cache.getPrefetchedCopies()).compile(new ByteArrayInputStream(jsonData), styles, options, result);
+            }
+            return result.toByteArray();
+        });
+    }
+
+    private <T> Future<T> submit(Callable<T> task) throws InterruptedException {
+        slots.acquire();
+        try {
+            return executor.submit(() -> {
+                try {
+                    return task.call();
+                } finally {
+                    slots.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting compilations and waits for the queued ones to finish.
+     * If interrupted, returns without waiting and keeps the interrupt status
+     * of the thread.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+
+/**
+ * Immutable in-memory image of a template, as kept by {@link TemplateCache}.
+ *
+ * The package is stored with its parts uncompressed, so making a private
+ * copy does not touch the disk nor inflate the parts again. POI offers no way
+ * to clone a parsed workbook, so every copy still parses the parts; to keep
+ * that off the request path the callers that ask for it get a few spare
+ * copies parsed in the background, which are handed out first.
+ */
+final class TemplateSnapshot {
+    private final byte[] packageBytes;
+    private final Executor prefetcher;
+
+    private final ConcurrentLinkedQueue<XSSFWorkbook> spares = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCopies = new AtomicInteger();
+    private volatile boolean retired;
+    private FormulaGraph graph;
+
+    TemplateSnapshot(byte[] packageBytes, Executor prefetcher) {
+        this.packageBytes = packageBytes;
+        this.prefetcher = prefetcher;
+    }
+
+    /**
+     * Reads a template package and keeps its parts uncompressed.
+     */
+    static TemplateSnapshot load(InputStream template, Executor prefetcher) throws IOException {
+        ByteArrayOutputStream stored = new ByteArrayOutputStream();
+        ByteArrayOutputStream part = new ByteArrayOutputStream();
+        byte[] buffer = new byte[1 << 16];
+
+        try (ZipInputStream zis = new ZipInputStream(template);
+             ZipOutputStream zos = new ZipOutputStream(stored)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                part.reset();
+                int read;
+                while ((read = zis.read(buffer)) > 0) {
+                    part.write(buffer, 0, read);
+                }
+
+                CRC32 crc = new CRC32();
+                crc.update(part.toByteArray());
+                ZipEntry copy = new ZipEntry(entry.getName());
+                copy.setMethod(ZipEntry.STORED);
+                copy.setSize(part.size());
+                copy.setCompressedSize(part.size());
+                copy.setCrc(crc.getValue());
+
+                zos.putNextEntry(copy);
+                part.writeTo(zos);
+                zos.closeEntry();
+            }
+        }
+
+        return new TemplateSnapshot(stored.toByteArray(), prefetcher);
+    }
+
+    /**
+     * @return A private, mutable workbook with the content of the template.
+     */
+    XSSFWorkbook newCopy() throws IOException {
+        return newCopy(0);
+    }
+
+    /**
+     * Same as {@link #newCopy()}, but keeps some spare copies parsed for the
+     * next calls.
+     *
+     * @param prefetchedCopies Number of spare copies to keep.
+     */
+    XSSFWorkbook newCopy(int prefetchedCopies) throws IOException {
+        XSSFWorkbook copy = spares.poll();
+        if (copy == null) {
+            copy = parse();
+        }
+        prefetch(prefetchedCopies);
+        return copy;
+    }
+
+    /**
+     * Returns the formula graph of the template, building it the first time
+     * from a copy that has not been modified yet.
+     *
+     * @param pristineCopy A copy just returned by {@link #newCopy()}.
+     */
+    synchronized FormulaGraph getGraph(XSSFWorkbook pristineCopy) {
+        if (graph == null) {
+            graph = FormulaGraph.build(pristineCopy);
+        }
+        return graph;
+    }
+
+    int getSize() {
+        return packageBytes.length;
+    }
+
+    /**
+     * Drops the spare copies once the snapshot leaves the cache.
+     */
+    void retire() {
+        retired = true;
+        spares.clear();
+    }
+
+    private XSSFWorkbook parse() throws IOException {
+        return new XSSFWorkbook(new ByteArrayInputStream(packageBytes));
+    }
+
+    private void prefetch(int prefetchedCopies) {
+        while (!retired && spares.size() + pendingCopies.get() < prefetchedCopies) {
+            pendingCopies.incrementAndGet();
+            prefetcher.execute(() -> {
+                try {
+                    if (!retired) {
+                        spares.offer(parse());
+                    }
+                } catch (IOException | RuntimeException e) {
+                    // The copy will be parsed on demand, where the error is reported.
+                } finally {
+                    pendingCopies.decrementAndGet();
+                }
+            });
+        }
+    }
+}
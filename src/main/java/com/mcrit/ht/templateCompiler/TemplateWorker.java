@@ -0,0 +1,440 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.json.Json;
+import javax.json.JsonObjectBuilder;
+
+/**
+ * Long-lived worker used by the Node.js host instead of spawning one JVM per
+ * compilation.
+ *
+ * Requests are read from stdin as three consecutive frames: the template path,
+ * the JSON data array and the JSON styles object. Every frame is a big-endian
+ * int32 with the payload length followed by the UTF-8 payload. The data frame
+ * may also hold chunks in the binary format of {@link BinaryChunkReader}. For every
+ * request a single frame with the compiled xlsx is written to stdout. A failed
+ * request produces an empty frame, so the host never loses the framing.
+ *
+ * When the worker is started with options frames, every request has a fourth
+ * frame with a JSON object of {@link CompileOptions}. An empty frame selects
+ * the defaults.
+ *
+ * In batch mode the template and the styles are given once, to a
+ * {@link TemplateBatch}, and every request is only the data frame, followed
+ * by the options frame if enabled.
+ *
+ * The status of each request is reported on stderr as one JSON object per
+ * line: {"request": n, "status": "ok", "bytes": size, "millis": time} or
+ * {"request": n, "status": "error", "message": description}. The lines
+ * of {@link CompileMetrics}, if enabled, may go to stderr too; they have a
+ * "metric" key instead of "request".
+ *
+ * Requests are compiled concurrently by a {@link TemplateCompiler}, but the
+ * responses are always written in the order the requests arrived. At most
+ * twice as many requests as threads wait for their response to be written,
+ * compiled or not; beyond that no more requests are read, so a slow request
+ * at the head does not let the finished ones pile up in memory. If the
+ * responses can not be written, no more requests are read and the pending
+ * ones are reported as errors.
+ *
+ * The loop ends when stdin reaches EOF on a request boundary.
+ * @author Cristian Lorenzo i Martínez <cristian.lorenzo.martinez@gmail.com>
+ */
+public class TemplateWorker {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+    private final PrintStream status;
+    private final int threads;
+    private final boolean optionsFrames;
+    private final TemplateBatch batch;
+
+    public TemplateWorker(InputStream in, OutputStream out, PrintStream status) {
+        this(in, out, status, 1);
+    }
+
+    /**
+     * @param threads Number of requests compiled at the same time.
+     */
+    public TemplateWorker(InputStream in, OutputStream out, PrintStream status, int threads) {
+        this(in, out, status, threads, false);
+    }
+
+    /**
+     * @param threads Number of requests compiled at the same time.
+     * @param optionsFrames true if every request has a fourth frame with its
+     * options.
+     */
+    public TemplateWorker(InputStream in, OutputStream out, PrintStream status, int threads, boolean optionsFrames) {
+        this(in, out, status, threads, optionsFrames, null);
+    }
+
+    /**
+     * Creates a worker in batch mode.
+     *
+     * @param batch Batch compiling the scenarios. It is closed by {@link #run()}.
+     * @param optionsFrames true if every scenario is followed by a frame with
+     * its options.
+     */
+    public TemplateWorker(InputStream in, OutputStream out, PrintStream status, TemplateBatch batch, boolean optionsFrames) {
+        this(in, out, status, 0, optionsFrames, batch);
+    }
+
+    private TemplateWorker(InputStream in, OutputStream out, PrintStream status, int threads, boolean optionsFrames, TemplateBatch batch) {
+        this.in = new DataInputStream(new BufferedInputStream(in, BUFFER_SIZE));
+        this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+        this.status = status;
+        this.threads = threads;
+        this.optionsFrames = optionsFrames;
+        this.batch = batch;
+    }
+
+    /**
+     * Serves requests until the input stream is exhausted.
+     *
+     * @throws IOException if the input or output channels fail. Errors in a
+     * single compilation are reported on the status channel instead.
+     */
+    public void run() throws IOException, InterruptedException {
+        int pendingLimit = 2 * (batch != null ? batch.getThreads() : threads);
+        ResponseWriter writer = new ResponseWriter(new LinkedBlockingQueue<>(pendingLimit));
+        Thread writerThread = new Thread(writer, "template-worker-writer");
+        writerThread.start();
+
+        try {
+            if (batch != null) {
+                try {
+                    serveBatch(writer);
+                } finally {
+                    batch.close();
+                }
+            } else {
+                try (TemplateCompiler compiler = new TemplateCompiler(threads, threads)) {
+                    serve(compiler, writer);
+                }
+            }
+        } finally {
+            writer.enqueue(PendingResponse.END);
+            writerThread.join();
+        }
+
+        if (writer.failure != null) {
+            throw writer.failure;
+        }
+    }
+
+    private void serve(TemplateCompiler compiler, ResponseWriter writer) throws IOException, InterruptedException {
+        long requestNumber = 0;
+        String templatePath;
+
+        while (!writer.hasFailed() && (templatePath = readFrame(true)) != null) {
+            byte[] jsonData = readBytes(false);
+            String jsonStyles = readFrame(false);
+            String jsonOptions = optionsFrames ? readFrame(false) : "";
+            requestNumber += 1;
+            if (writer.hasFailed()) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            Future<byte[]> result;
+            try {
+                result = compiler.submit(templatePath, jsonData, jsonStyles, parseOptions(jsonOptions));
+            } catch (RuntimeException e) {
+                result = failed(e);
+            }
+            writer.enqueue(new PendingResponse(requestNumber, start, result));
+        }
+    }
+
+    private void serveBatch(ResponseWriter writer) throws IOException, InterruptedException {
+        long requestNumber = 0;
+        byte[] data;
+
+        while (!writer.hasFailed() && (data = readBytes(true)) != null) {
+            String jsonOptions = optionsFrames ? readFrame(false) : "";
+            requestNumber += 1;
+            if (writer.hasFailed()) {
+                break;
+            }
+
+            long start = System.nanoTime();
+            Future<byte[]> result;
+            try {
+                result = batch.submit(data, parseOptions(jsonOptions));
+            } catch (RuntimeException e) {
+                result = failed(e);
+            }
+            writer.enqueue(new PendingResponse(requestNumber, start, result));
+        }
+    }
+
+    private static CompileOptions parseOptions(String jsonOptions) {
+        return jsonOptions.isEmpty() ?
+            new CompileOptions() :
+            CompileOptions.fromJson(Json.createReader(new StringReader(jsonOptions)).readObject());
+    }
+
+    private static Future<byte[]> failed(Exception e) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        result.completeExceptionally(e);
+        return result;
+    }
+
+    /**
+     * Reads a length-prefixed UTF-8 frame.
+     *
+     * @param allowEof true if the stream may cleanly end before this frame.
+     * @return The frame content, or null on a clean EOF.
+     */
+    private String readFrame(boolean allowEof) throws IOException {
+        byte[] payload = readBytes(allowEof);
+        return payload == null ? null : new String(payload, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Reads a length-prefixed frame.
+     *
+     * @param allowEof true if the stream may cleanly end before this frame.
+     * @return The frame content, or null on a clean EOF.
+     */
+    private byte[] readBytes(boolean allowEof) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            if (allowEof) {
+                return null;
+            }
+            throw new EOFException("Unexpected end of input in the middle of a request.");
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < 0) {
+            throw new IOException("Invalid frame length " + length + ".");
+        }
+
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return payload;
+    }
+
+    /**
+     * Writes the responses in request order as the compilations finish.
+     */
+    private final class ResponseWriter implements Runnable {
+        private final BlockingQueue<PendingResponse> responses;
+        private volatile IOException failure;
+        private volatile boolean stopped;
+
+        ResponseWriter(BlockingQueue<PendingResponse> responses) {
+            this.responses = responses;
+        }
+
+        boolean hasFailed() {
+            return failure != null;
+        }
+
+        /**
+         * Queues a response, waiting while the queue is full. If the writer
+         * has stopped, the response is cancelled instead.
+         */
+        void enqueue(PendingResponse response) throws InterruptedException {
+            while (!responses.offer(response, 100, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    response.result.cancel(true);
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            PendingResponse response = null;
+            try {
+                while ((response = responses.take()) != PendingResponse.END) {
+                    write(response);
+                }
+                out.flush();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Throwable e) {
+                failure = e instanceof IOException ? (IOException) e : new IOException("Unable to write a response.", e);
+                failPending(response);
+            } finally {
+                stopped = true;
+            }
+        }
+
+        /**
+         * Cancels the request being written and those queued after it, until
+         * the reader stops, so no compilation is left waiting for a writer.
+         */
+        private void failPending(PendingResponse current) {
+            try {
+                PendingResponse response = current;
+                while (response != PendingResponse.END) {
+                    if (response != null) {
+                        response.result.cancel(true);
+                        reportError(response.requestNumber, failure);
+                    }
+                    response = responses.take();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void write(PendingResponse response) throws IOException, InterruptedException {
+            byte[] result;
+            try {
+                result = response.result.get();
+            } catch (ExecutionException | CancellationException e) {
+                Throwable cause = e instanceof ExecutionException ? e.getCause() : e;
+                out.writeInt(0);
+                out.flush();
+                reportError(response.requestNumber, cause instanceof Exception ? (Exception) cause : e);
+                return;
+            }
+
+            out.writeInt(result.length);
+            out.write(result);
+            out.flush();
+            reportSuccess(response.requestNumber, result.length, (System.nanoTime() - response.start) / 1000000);
+        }
+    }
+
+    private static final class PendingResponse {
+        static final PendingResponse END = new PendingResponse(0, 0, null);
+
+        final long requestNumber;
+        final long start;
+        final Future<byte[]> result;
+
+        PendingResponse(long requestNumber, long start, Future<byte[]> result) {
+            this.requestNumber = requestNumber;
+            this.start = start;
+            this.result = result;
+        }
+    }
+
+    private void reportSuccess(long requestNumber, int size, long millis) {
+        JsonObjectBuilder line = Json.createObjectBuilder()
+            .add("request", requestNumber)
+            .add("status", "ok")
+            .add("bytes", size)
+            .add("millis", millis);
+        status.println(line.build().toString());
+        status.flush();
+    }
+
+    private void reportError(long requestNumber, Exception e) {
+        String message = e.getMessage() != null ? e.getMessage() : "";
+        JsonObjectBuilder line = Json.createObjectBuilder()
+            .add("request", requestNumber)
+            .add("status", "error")
+            .add("message", e.getClass().getName() + ": " + message);
+        status.println(line.build().toString());
+        status.flush();
+    }
+
+    /**
+     * Entry point of the worker mode. The raw stdout is reserved for the xlsx
+     * frames, so System.out is redirected to stderr to keep stray prints from
+     * corrupting the stream.
+     *
+     * @param args Optionally, the number of requests compiled at the same
+     * time, which defaults to the number of available processors, and
+     * --options to read an options frame with every request.
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean optionsFrames = false;
+        for (String arg : args) {
+            if ("--options".equals(arg)) {
+                optionsFrames = true;
+            } else {
+                threads = Integer.parseInt(arg);
+            }
+        }
+
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        PrintStream stderr = System.err;
+        System.setOut(stderr);
+
+        new TemplateWorker(System.in, stdout, stderr, threads, optionsFrames).run();
+    }
+
+    /**
+     * Entry point of the batch mode.
+     *
+     * @param args The template path, the path of the JSON styles file,
+     * optionally the number of scenarios compiled at the same time, and
+     * --options to read an options frame with every scenario.
+     */
+    public static void batchMain(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            throw new IllegalArgumentException("Usage: --batch template styles [threads] [--options]");
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        boolean optionsFrames = false;
+        for (int i = 2; i < args.length; i++) {
+            if ("--options".equals(args[i])) {
+                optionsFrames = true;
+            } else {
+                threads = Integer.parseInt(args[i]);
+            }
+        }
+        String styles = new String(Files.readAllBytes(Paths.get(args[1])), StandardCharsets.UTF_8);
+
+        OutputStream stdout = new FileOutputStream(FileDescriptor.out);
+        PrintStream stderr = System.err;
+        System.setOut(stderr);
+
+        TemplateBatch batch = new TemplateBatch(args[0], styles, threads);
+        new TemplateWorker(System.in, stdout, stderr, batch, optionsFrames).run();
+    }
+}
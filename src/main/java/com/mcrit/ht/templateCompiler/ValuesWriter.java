@@ -0,0 +1,285 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import javax.json.Json;
+import javax.json.stream.JsonGenerator;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.FormulaError;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+
+/**
+ * Writes the values of some regions of a compiled workbook, for the callers
+ * that only need the results and not the xlsx.
+ *
+ * As JSON, the result is an array of chunks with the same layout as the data
+ * of a compilation: {"target": [sheetName, [col, row]], "data": [[...]]},
+ * plus "name" for the regions read from a defined name. Empty cells are null
+ * and errors are strings such as "#DIV/0!".
+ *
+ * In binary, the result is one frame per region in the format read by
+ * {@link BinaryChunkReader}, in the order of the regions. Empty cells are
+ * NaN, booleans are 1 or 0 and errors are strings.
+ */
+final class ValuesWriter {
+    private final List<Region> regions = new ArrayList<>();
+
+    /**
+     * @param name Defined name the region comes from, or null.
+     * @param range Cells of the region, in the given sheet.
+     */
+    void addRegion(String name, XSSFSheet sheet, SheetRange range) {
+        regions.add(new Region(name, sheet, range));
+    }
+
+    /**
+     * @return The cells of every region.
+     */
+    List<SheetRange> getRanges() {
+        List<SheetRange> ranges = new ArrayList<>();
+        for (Region region : regions) {
+            ranges.add(region.range);
+        }
+        return ranges;
+    }
+
+    void writeJson(OutputStream stream) {
+        JsonGenerator generator = Json.createGenerator(stream);
+        generator.writeStartArray();
+        for (Region region : regions) {
+            generator.writeStartObject();
+            if (region.name != null) {
+                generator.write("name", region.name);
+            }
+            generator.writeStartArray("target")
+                .write(region.sheet.getSheetName())
+                .writeStartArray()
+                .write(region.range.firstCol)
+                .write(region.range.firstRow)
+                .writeEnd()
+                .writeEnd();
+
+            generator.writeStartArray("data");
+            for (int i = region.range.firstRow; i <= region.range.lastRow; i++) {
+                XSSFRow row = region.sheet.getRow(i);
+                generator.writeStartArray();
+                for (int j = region.range.firstCol; j <= region.range.lastCol; j++) {
+                    XSSFCell cell = row == null ? null : row.getCell(j);
+                    switch (valueType(cell)) {
+                        case Cell.CELL_TYPE_NUMERIC:
+                            generator.write(cell.getNumericCellValue());
+                            break;
+                        case Cell.CELL_TYPE_STRING:
+                            generator.write(cell.getStringCellValue());
+                            break;
+                        case Cell.CELL_TYPE_BOOLEAN:
+                            generator.write(cell.getBooleanCellValue());
+                            break;
+                        case Cell.CELL_TYPE_ERROR:
+                            generator.write(errorText(cell));
+                            break;
+                        default:
+                            generator.writeNull();
+                    }
+                }
+                generator.writeEnd();
+            }
+            generator.writeEnd();
+            generator.writeEnd();
+        }
+        generator.writeEnd();
+        generator.close();
+    }
+
+    void writeBinary(OutputStream stream) throws IOException {
+        stream.write(BinaryChunkReader.MAGIC);
+        stream.write(BinaryChunkReader.VERSION);
+
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        for (Region region : regions) {
+            writeFrame(stream, buffer, region);
+        }
+        stream.flush();
+    }
+
+    /**
+     * Writes the frame of a region row by row. The strings of the region are
+     * collected first, since they come before the values.
+     */
+    private static void writeFrame(OutputStream stream, ByteBuffer buffer, Region region) throws IOException {
+        int rows = region.range.lastRow - region.range.firstRow + 1;
+        int cols = region.range.lastCol - region.range.firstCol + 1;
+        HashMap<String, Integer> stringIndexes = new HashMap<>();
+        List<byte[]> encodedStrings = new ArrayList<>();
+        long stringsLength = 0;
+        for (int i = 0; i < rows; i++) {
+            XSSFRow row = region.sheet.getRow(region.range.firstRow + i);
+            for (int j = 0; j < cols; j++) {
+                String text = cellText(row == null ? null : row.getCell(region.range.firstCol + j));
+                if (text != null && !stringIndexes.containsKey(text)) {
+                    stringIndexes.put(text, encodedStrings.size());
+                    byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+                    encodedStrings.add(encoded);
+                    stringsLength += 4 + encoded.length;
+                }
+            }
+        }
+        boolean mixed = !encodedStrings.isEmpty();
+
+        byte[] sheetName = region.sheet.getSheetName().getBytes(StandardCharsets.UTF_8);
+        long cells = (long) rows * cols;
+        long length = 1 + 4 + sheetName.length + 16 + 1 + 4 + cells * 8;
+        if (mixed) {
+            length += 4 + stringsLength + cells * 4;
+        }
+        if (length > 0xFFFFFFFFL) {
+            throw new IOException("The region at " + region.sheet.getSheetName() + " is too large for a binary frame.");
+        }
+
+        buffer.clear();
+        put(stream, buffer, 4 + 1 + 4).putInt((int) length).put(BinaryChunkReader.TARGET_NAME).putInt(sheetName.length);
+        putBytes(stream, buffer, sheetName);
+        put(stream, buffer, 16 + 1 + 4)
+            .putInt(region.range.firstCol).putInt(region.range.firstRow).putInt(rows).putInt(cols)
+            .put(mixed ? BinaryChunkReader.TYPE_MIXED : BinaryChunkReader.TYPE_NUMERIC)
+            .putInt(0);
+        if (mixed) {
+            put(stream, buffer, 4).putInt(encodedStrings.size());
+            for (byte[] encoded : encodedStrings) {
+                put(stream, buffer, 4).putInt(encoded.length);
+                putBytes(stream, buffer, encoded);
+            }
+        }
+
+        int[] stringRefs = new int[cols];
+        for (int i = 0; i < rows; i++) {
+            XSSFRow row = region.sheet.getRow(region.range.firstRow + i);
+            for (int j = 0; j < cols; j++) {
+                XSSFCell cell = row == null ? null : row.getCell(region.range.firstCol + j);
+                double value = Double.NaN;
+                switch (valueType(cell)) {
+                    case Cell.CELL_TYPE_NUMERIC:
+                        value = cell.getNumericCellValue();
+                        break;
+                    case Cell.CELL_TYPE_BOOLEAN:
+                        value = cell.getBooleanCellValue() ? 1 : 0;
+                        break;
+                    default:
+                }
+                put(stream, buffer, 8).putDouble(value);
+                if (mixed) {
+                    String text = cellText(cell);
+                    stringRefs[j] = text == null ? -1 : stringIndexes.get(text);
+                }
+            }
+            if (mixed) {
+                for (int j = 0; j < cols; j++) {
+                    put(stream, buffer, 4).putInt(stringRefs[j]);
+                }
+            }
+        }
+        drain(stream, buffer);
+    }
+
+    /**
+     * @return The buffer, with room for some bytes, after writing out its
+     * content if needed.
+     */
+    private static ByteBuffer put(OutputStream stream, ByteBuffer buffer, int bytes) throws IOException {
+        if (buffer.remaining() < bytes) {
+            drain(stream, buffer);
+        }
+        return buffer;
+    }
+
+    private static void putBytes(OutputStream stream, ByteBuffer buffer, byte[] bytes) throws IOException {
+        if (bytes.length > buffer.remaining()) {
+            drain(stream, buffer);
+            stream.write(bytes);
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    private static void drain(OutputStream stream, ByteBuffer buffer) throws IOException {
+        stream.write(buffer.array(), 0, buffer.position());
+        buffer.clear();
+    }
+
+    /**
+     * @return The text written for a string or error cell, or null for the
+     * other values.
+     */
+    private static String cellText(XSSFCell cell) {
+        switch (valueType(cell)) {
+            case Cell.CELL_TYPE_STRING:
+                return cell.getStringCellValue();
+            case Cell.CELL_TYPE_ERROR:
+                return errorText(cell);
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return The type of the value of a cell, the cached one for formulas,
+     * or CELL_TYPE_BLANK if there is no cell.
+     */
+    private static int valueType(XSSFCell cell) {
+        if (cell == null) {
+            return Cell.CELL_TYPE_BLANK;
+        }
+        int type = cell.getCellType();
+        return type == Cell.CELL_TYPE_FORMULA ? cell.getCachedFormulaResultType() : type;
+    }
+
+    private static String errorText(XSSFCell cell) {
+        return FormulaError.forInt(cell.getErrorCellValue()).getString();
+    }
+
+    private static final class Region {
+        private final String name;
+        private final XSSFSheet sheet;
+        private final SheetRange range;
+
+        Region(String name, XSSFSheet sheet, SheetRange range) {
+            this.name = name;
+            this.sheet = sheet;
+            this.range = range;
+        }
+    }
+}
@@ -23,29 +23,38 @@
 
 package com.mcrit.ht.templateCompiler;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.StringReader;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.stream.IntStream;
-import java.util.Base64;
+import java.util.BitSet;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 
 import javax.json.Json;
 import javax.json.JsonArray;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
+import javax.json.JsonString;
 import javax.json.JsonValue;
 import org.apache.batik.transcoder.TranscoderException;
 
-import org.apache.poi.ss.formula.IStabilityClassifier;
-import org.apache.poi.ss.formula.udf.UDFFinder;
+import org.apache.poi.ss.SpreadsheetVersion;
 import org.apache.poi.ss.usermodel.Cell;
 import org.apache.poi.ss.usermodel.ClientAnchor;
 import org.apache.poi.ss.usermodel.CreationHelper;
@@ -53,23 +62,20 @@ import org.apache.poi.ss.usermodel.Drawing;
 import org.apache.poi.ss.usermodel.Picture;
 import org.apache.poi.ss.usermodel.Row;
 import org.apache.poi.ss.usermodel.Sheet;
-import org.apache.poi.ss.usermodel.Workbook;
+import org.apache.poi.ss.util.AreaReference;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.apache.poi.xssf.usermodel.XSSFCell;
-import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFPictureData;
 import org.apache.poi.xssf.usermodel.XSSFRow;
 import org.apache.poi.xssf.usermodel.XSSFSheet;
 
-import org.apache.batik.transcoder.image.PNGTranscoder;
-import org.apache.batik.transcoder.TranscoderInput;
-import org.apache.batik.transcoder.TranscoderOutput;
-import org.apache.poi.ss.usermodel.BorderStyle;
-import org.apache.poi.ss.usermodel.FontUnderline;
-import org.apache.poi.ss.usermodel.HorizontalAlignment;
 import org.apache.poi.xssf.usermodel.XSSFCellStyle;
-import org.apache.poi.xssf.usermodel.XSSFColor;
-import org.apache.poi.xssf.usermodel.XSSFFont;
-import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCell;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCols;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTRow;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTWorksheet;
 
 /**
  * Class used in the HIGH-TOOL projecto to render XLSX templates.
@@ -79,19 +85,128 @@ import org.apache.poi.xssf.usermodel.extensions.XSSFCellBorder;
  * @author Cristian Lorenzo i Martínez <cristian.lorenzo.martinez@gmail.com>
  */
 public class XlsxTemplate {
-    private static XSSFWorkbook workbook;
-    private static final boolean debug = false;
+    private final XSSFWorkbook workbook;
 
+    private FormulaGraph graph;
+    // Only a graph shared with other compilations of the template can key
+    // their memoized formulas.
+    private boolean sharedGraph;
+    // Text written inline leaves the shared strings of the template
+    // untouched, so resetTo can undo the compilation.
+    private boolean inlineStrings;
+    private CompileOptions options = new CompileOptions();
+    private ValuesWriter valuesWriter;
+    private final ArrayList<SheetRange> writtenRanges = new ArrayList<>();
+    private final ArrayList<SheetRange> styledRanges = new ArrayList<>();
+    private final HashMap<Integer, RangeStyler> rangeStylers = new HashMap<>();
+    private BitSet recalculated = new BitSet();
+    private boolean addedPictures;
+    private HashMap<String, Integer> pictureIndexes;
+    private final ImagePreparer imagePreparer = new ImagePreparer(ImageCache.getDefault());
+    private StreamedSheets streamedSheets;
+    private String templateName;
+    private CompileMetrics metrics = CompileMetrics.DISABLED;
+    private int stylesBefore;
+    private int transcodedBefore;
+
+    /**
+     * Reads a template for a single compilation, without keeping it in a
+     * cache.
+     *
+     * @param fileName Path of the template.
+     * @throws IOException
+     */
     public XlsxTemplate (String fileName) throws FileNotFoundException, IOException {
-        FileInputStream fis = new FileInputStream(fileName);
+        this(fileName, null, 0);
+    }
+
+    /**
+     * Opens a private copy of a template kept in a cache.
+     *
+     * @param fileName Path of the template.
+     * @param cache Cache used to avoid reading and parsing the template again.
+     * @throws IOException
+     */
+    public XlsxTemplate (String fileName, TemplateCache cache) throws IOException {
+        this(fileName, cache, 0);
+    }
+
+    /**
+     * @param cache Cache the template is opened from, or null to read it.
+     * @param prefetchedCopies Number of spare copies of the template the
+     * cache keeps parsed for the next compilations.
+     */
+    XlsxTemplate (String fileName, TemplateCache cache, int prefetchedCopies) throws IOException {
+        this.templateName = fileName;
+        this.metrics = CompileMetrics.start(fileName, "dom");
+        boolean loaded = false;
         try {
-	    workbook = new XSSFWorkbook(fis);
-	} finally {
-	    fis.close();
-	}
+            this.workbook = metrics.time("load", () -> open(fileName, cache, prefetchedCopies));
+            loaded = true;
+        } finally {
+            if (!loaded) {
+                metrics.finish("error");
+            }
+        }
+    }
+
+    /**
+     * @return A copy of the template, with the graph of the cached one.
+     */
+    private XSSFWorkbook open(String fileName, TemplateCache cache, int prefetchedCopies) throws IOException {
+        TemplateSnapshot snapshot = cache == null ? null : cache.getSnapshot(fileName);
+        if (snapshot == null) {
+            return TemplateCache.read(fileName);
+        }
+        XSSFWorkbook copy = snapshot.newCopy(prefetchedCopies);
+        this.graph = snapshot.getGraph(copy);
+        this.sharedGraph = true;
+        return copy;
+    }
+
+    /**
+     * Wraps a copy of a template whose formula graph is already known.
+     */
+    XlsxTemplate (XSSFWorkbook workbook, FormulaGraph graph) {
+        this.workbook = workbook;
+        this.graph = graph;
+        this.sharedGraph = true;
+    }
+
+    /**
+     * Wraps a workbook owned by the new instance. All the state of a
+     * compilation lives in the instance, so different instances can be used
+     * from different threads.
+     *
+     * @param workbook The template to compile.
+     */
+    public XlsxTemplate (XSSFWorkbook workbook) {
+        this.workbook = workbook;
     }
     
-    private XSSFSheet getSheetByNameOrIndex(JsonArray target) {
+    XSSFWorkbook getWorkbook() {
+        return workbook;
+    }
+
+    /**
+     * @return The metrics of the running compilation.
+     */
+    CompileMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Records a block of cells whose values were written, so the formulas
+     * reading it are evaluated again.
+     */
+    void markWritten(XSSFSheet sheet, int firstRow, int firstCol, int rows, int cols) {
+        if (rows > 0 && cols > 0) {
+            writtenRanges.add(new SheetRange(workbook.getSheetIndex(sheet),
+                firstRow, firstCol, firstRow + rows - 1, firstCol + cols - 1));
+        }
+    }
+
+    XSSFSheet getSheetByNameOrIndex(JsonArray target) {
         XSSFSheet sheet;
         
         switch (target.get(0).getValueType()) {
@@ -113,6 +228,8 @@ public class XlsxTemplate {
     
     private void applyStyleToSheet(JsonArray target, JsonArray data) {
         XSSFSheet sheet = getSheetByNameOrIndex(target);
+        int sheetIndex = workbook.getSheetIndex(sheet);
+        RangeStyler styler = rangeStylers.computeIfAbsent(sheetIndex, index -> new RangeStyler(sheet, index));
         
         data.forEach(it -> {
             JsonObject styleToApply = (JsonObject) it;
@@ -123,7 +240,9 @@ public class XlsxTemplate {
             }
             
             JsonArray targets = styleToApply.getJsonArray("targets");
+            List<SheetRange> ranges = new ArrayList<>(targets.size());
             
+            int firstStreamedRow = streamedSheets == null ? -1 : streamedSheets.getFirstStreamedRow(sheetIndex);
             targets.forEach(targetCells -> {
                 int[] upperLeft = {
                     ((JsonArray) targetCells).getJsonArray(0).getInt(0),
@@ -135,42 +254,115 @@ public class XlsxTemplate {
                     ((JsonArray) targetCells).getJsonArray(1).getInt(1)
                 };
                 
-                for (int i = upperLeft[1]; i <= lowerRight[1]; i+= 1) {
-                    XSSFRow row = sheet.getRow(i); 
-                    if (row == null) {
-                        sheet.createRow(i);
-                        row = sheet.getRow(i);
-                    }
-                    for (int j = upperLeft[0]; j <= lowerRight[0]; j+= 1) {
-                        XSSFCell cell = row.getCell(j, XSSFRow.CREATE_NULL_AS_BLANK);
-                        cell.setCellStyle(style);
-                    }
+                if (firstStreamedRow >= 0 && lowerRight[1] >= firstStreamedRow) {
+                    throw new IllegalArgumentException("The rows from " + firstStreamedRow + " of the sheet " + sheet.getSheetName()
+                        + " have been streamed. Their styles must come before their data.");
                 }
+                ranges.add(new SheetRange(sheetIndex, upperLeft[1], upperLeft[0], lowerRight[1], lowerRight[0]));
             });
+            styledRanges.addAll(styler.apply(style, ranges));
         });
     }
+
+    /**
+     * Returns a row to write values into, creating it if needed. In the
+     * streaming mode, the row may be streamed instead of kept in the DOM.
+     */
+    Row getOrCreateRow(XSSFSheet sheet, int rowNum) {
+        if (streamedSheets != null) {
+            return streamedSheets.getOrCreateRow(sheet, rowNum);
+        }
+        XSSFRow row = sheet.getRow(rowNum);
+        return row != null ? row : sheet.createRow(rowNum);
+    }
+
+    /**
+     * Returns a cell, creating it if needed. A new cell keeps the style its
+     * position showed because of a row or column style applied by a styles
+     * chunk.
+     */
+    Cell getOrCreateCell(Row row, int col) {
+        Cell cell = row.getCell(col);
+        if (cell == null) {
+            cell = row.createCell(col);
+            RangeStyler styler = rangeStylers.isEmpty() ? null :
+                rangeStylers.get(workbook.getSheetIndex(row.getSheet().getSheetName()));
+            if (styler != null && cell instanceof XSSFCell) {
+                styler.inheritDefault((XSSFCell) cell);
+            } else if (styler != null) {
+                styler.inheritColumnDefault(cell);
+            }
+        }
+        return cell;
+    }
+
+    /**
+     * Adds several strings to the shared strings of the workbook at once.
+     *
+     * @return The index of each string, to pass to
+     * {@link #setStringValue(Cell, String, int)}, or null if the text is
+     * written inline.
+     */
+    int[] internStrings(String[] texts) {
+        return writesInline() ? null : getStringInterner().intern(texts);
+    }
+
+    /**
+     * Writes a string into a cell, shared or inline as the options of the
+     * compilation ask.
+     *
+     * @param index Index of the text from {@link #internStrings(String[])},
+     * or -1 to look it up.
+     */
+    void setStringValue(Cell cell, String text, int index) {
+        if (writesInline()) {
+            getStringInterner().setInline(cell, text);
+        } else {
+            getStringInterner().setShared(cell, text, index);
+        }
+    }
+
+    private boolean writesInline() {
+        return inlineStrings || options.getStrings() == CompileOptions.Strings.INLINE;
+    }
+
+    /**
+     * Writes the text of every compilation inline, whatever the options
+     * say, so no text of a compilation is left in the shared strings after
+     * {@link #resetTo(XSSFWorkbook)}.
+     */
+    void setInlineStrings() {
+        this.inlineStrings = true;
+    }
+
+    private StringInterner getStringInterner() {
+        if (stringInterner == null) {
+            stringInterner = new StringInterner(workbook);
+        }
+        return stringInterner;
+    }
     
     
     private void populateTextSheet(JsonArray target, JsonArray data, String selectedStyle) {
         XSSFSheet sheet = getSheetByNameOrIndex(target);
         
         XSSFCellStyle style = stylesDict.get(selectedStyle);
+        int cols = 0;
+        long cells = 0;
 
         for (int j = 0, ln2 = data.size(); j < ln2; j++) {
-            XSSFRow row = sheet.getRow(j + target.getJsonArray(1).getInt(1));
-            if (row == null) {
-                sheet.createRow(j + target.getJsonArray(1).getInt(1));
-                row = sheet.getRow(j + target.getJsonArray(1).getInt(1));
-            }
+            Row row = getOrCreateRow(sheet, j + target.getJsonArray(1).getInt(1));
             for (int k = 0, ln3 = data.getJsonArray(j).size(); k < ln3; k++) {
-                XSSFCell cell = row.getCell(k + target.getJsonArray(1).getInt(0), XSSFRow.CREATE_NULL_AS_BLANK);
+                Cell cell = getOrCreateCell(row, k + target.getJsonArray(1).getInt(0));
 
                 switch (data.getJsonArray(j).get(k).getValueType()) {
                     case STRING:
-                        cell.setCellValue(data.getJsonArray(j).getString(k));
+                        setStringValue(cell, data.getJsonArray(j).getString(k), -1);
+                        cells += 1;
                         break;
                     case NUMBER:
                         cell.setCellValue(data.getJsonArray(j).getJsonNumber(k).doubleValue());
+                        cells += 1;
                         break;
                 }
                 
@@ -178,10 +370,24 @@ public class XlsxTemplate {
                     cell.setCellStyle(style);
                 }
             }
+            cols = Math.max(cols, data.getJsonArray(j).size());
         } 
+
+        markWritten(sheet, target.getJsonArray(1).getInt(1), target.getJsonArray(1).getInt(0), data.size(), cols);
+        metrics.addCellsWritten(cells);
     }
     
-    private final HashMap<String, XSSFCellStyle> stylesDict = new HashMap();
+    private final HashMap<String, XSSFCellStyle> stylesDict = new HashMap<>();
+    private StyleInterner styleInterner;
+    private StringInterner stringInterner;
+
+    /**
+     * @param styleName Name of a style defined in the styles object, or null.
+     * @return The style, or null if it does not exist.
+     */
+    XSSFCellStyle getStyle(String styleName) {
+        return stylesDict.get(styleName);
+    }
     
     /**
      * 
@@ -218,193 +424,31 @@ public class XlsxTemplate {
      * GENERAL, JUSTIFY, LEFT, RIGHT,
      * 
      */
-    private void parseStylesObject(JsonObject styles) {
+    void parseStylesObject(JsonObject styles) {
+        if (styleInterner == null) {
+            styleInterner = new StyleInterner(workbook);
+        }
         for (String styleName : styles.keySet()) {
-            JsonObject style = styles.getJsonObject(styleName);
-            XSSFCellStyle cellStyle = workbook.createCellStyle();
-            XSSFFont font = workbook.createFont();
-            
-            for (String styleProperty : style.keySet()) {
-                // Create color
-                XSSFColor color = null;
-
-                switch (styleProperty) {
-                    case "fontColor":
-                    case "backgroundColor":
-                        JsonArray rgb = style.getJsonArray(styleProperty);
-                        color = new XSSFColor(new java.awt.Color(
-                            rgb.getInt(0),
-                            rgb.getInt(1),
-                            rgb.getInt(2))
-                        );
-                        break;
-                }
-
-                switch (styleProperty) {
-                    case "fontSize":
-                        short ppt = (short) style.getInt(styleProperty);
-                        font.setFontHeightInPoints(ppt);
-                        break;
-                    case "fontColor":
-                        font.setColor(color);
-                        break;
-                    case "fontBold":
-                        boolean setBold = style.getBoolean(styleProperty);
-                        font.setBold(setBold);
-                        if (setBold) {
-                            font.setBoldweight(XSSFFont.BOLDWEIGHT_BOLD);
-                        } else {
-                           font.setBoldweight(XSSFFont.BOLDWEIGHT_NORMAL); 
-                        }
-
-                        break;
-                    case "fontItalic":
-                        font.setItalic(style.getBoolean(styleProperty));
-                        break;
-                    case "fontUnderline":
-                        font.setUnderline(FontUnderline.valueOf(style.getString(styleProperty)));
-                        break;
-                    case "backgroundColor":
-                        cellStyle.setFillBackgroundColor(color);
-                        cellStyle.setFillPattern(XSSFCellStyle.SOLID_FOREGROUND);
-                        break;
-                    case "border":
-                        JsonObject borderProperties = style.getJsonObject(styleProperty);
-                        for (String borderProperty : borderProperties.keySet()) {
-                            JsonArray borderStyleProp;
-                            borderStyleProp = borderProperties.getJsonArray(borderProperty);
-
-                            switch (borderProperty) {
-                                case "color":
-                                    XSSFColor[] colors = new XSSFColor[borderStyleProp.size()];
-
-                                    for (int i = 0; i < borderStyleProp.size(); i += 1) {
-                                        colors[i] = new XSSFColor(new java.awt.Color(
-                                                    borderStyleProp.getJsonArray(i).getInt(0),
-                                                    borderStyleProp.getJsonArray(i).getInt(1),
-                                                    borderStyleProp.getJsonArray(i).getInt(2))
-                                                );
-                                    }
-
-                                    if (colors != null) {
-                                        switch (colors.length) {
-                                            case 4:
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.TOP, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.RIGHT, colors[1]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.BOTTOM, colors[2]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.LEFT, colors[3]);
-                                                break;
-                                            case 2:
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.TOP, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.BOTTOM, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.RIGHT, colors[1]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.LEFT, colors[1]);
-                                                break;
-                                            default:
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.TOP, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.RIGHT, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.BOTTOM, colors[0]);
-                                                cellStyle.setBorderColor(XSSFCellBorder.BorderSide.LEFT, colors[0]);   
-                                        }
-                                    }
-                                    break;
-                                case "style" :
-                                    switch (borderStyleProp.size()) {
-                                        case 4:
-                                            cellStyle.setBorderTop(BorderStyle.valueOf(borderStyleProp.getString(0)));
-                                            cellStyle.setBorderRight(BorderStyle.valueOf(borderStyleProp.getString(1)));
-                                            cellStyle.setBorderBottom(BorderStyle.valueOf(borderStyleProp.getString(2)));
-                                            cellStyle.setBorderLeft(BorderStyle.valueOf(borderStyleProp.getString(3)));
-                                            break;
-                                        case 2:
-                                            cellStyle.setBorderTop(BorderStyle.valueOf(borderStyleProp.getString(0)));
-                                            cellStyle.setBorderBottom(BorderStyle.valueOf(borderStyleProp.getString(0)));
-                                            cellStyle.setBorderRight(BorderStyle.valueOf(borderStyleProp.getString(1)));
-                                            cellStyle.setBorderLeft(BorderStyle.valueOf(borderStyleProp.getString(1)));
-                                            break;
-                                        default:
-                                            cellStyle.setBorderTop(BorderStyle.valueOf(borderStyleProp.getString(0)));
-                                            cellStyle.setBorderRight(BorderStyle.valueOf(borderStyleProp.getString(1)));
-                                            cellStyle.setBorderBottom(BorderStyle.valueOf(borderStyleProp.getString(2)));
-                                            cellStyle.setBorderLeft(BorderStyle.valueOf(borderStyleProp.getString(3)));   
-                                    }
-                                    break;
-                                default :
-                                    throw new IllegalArgumentException("Unkown border property.");
-                            }
-                        }
-                        break;
-                    case "align":
-                        cellStyle.setAlignment(HorizontalAlignment.valueOf(style.getString(styleProperty)));
-                        break;
-                    default : 
-                        throw new IllegalArgumentException("Unkown property.");
-                }
-            }
-            
-            cellStyle.setFont(font);
-            stylesDict.put(styleName, cellStyle);
+            StyleDefinition definition = StyleDefinition.of(styles.getJsonObject(styleName));
+            stylesDict.put(styleName, styleInterner.intern(definition));
         }
     }
+
     /**
-     * Adds and resize a image encoded in base64.
+     * Adds and resize a image.
      * 
      * @param target JSON Array with the structure [
      *      (int) Target sheet number,
      *      [(int) Col1, (int) Row 1],
      *      [(int) Col2, (int) Row 2]
      *  ]
-     * @param data JSON Array with the structure [
-     *      (String) Image type,
-     *      (String) Base64 encoded image
-     *  ]
+     * @param image The picture, already decoded and rasterized.
+     * @param imageType One of the Workbook.PICTURE_TYPE_* constants.
      */
-    private void addImageBase64ToSheet(JsonArray target, JsonArray data) throws TranscoderException, IOException {
-       int imageType;
-       switch (data.getString(0).toLowerCase()) {
-           case "dib":
-               imageType = Workbook.PICTURE_TYPE_DIB;
-               break;
-            case "emf":
-               imageType = Workbook.PICTURE_TYPE_EMF;
-               break;
-            case "jpeg":
-            case "jpg":
-               imageType = Workbook.PICTURE_TYPE_JPEG;
-               break;
-            case "pict":
-               imageType = Workbook.PICTURE_TYPE_PICT;
-               break;
-            case "svg":
-            case "png":
-               imageType = Workbook.PICTURE_TYPE_PNG;
-               break;
-            case "wmf":
-               imageType = Workbook.PICTURE_TYPE_WMF;
-               break;
-           default:
-               throw new RuntimeException("The provided format type is not supported.");
-        }
-
-        final byte[] decodedImg;
-        if ("svg".equals(data.getString(0).toLowerCase())) {
-            // Use batik to transform svg to png;
-            PNGTranscoder transcoder = new PNGTranscoder();
-
-            TranscoderInput input = new TranscoderInput(new ByteArrayInputStream(Base64.getDecoder().decode(data.getString(1))));
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            TranscoderOutput output = new TranscoderOutput(bos);
-
-            transcoder.transcode(input, output);
-            bos.flush();
-            bos.close();
-            decodedImg = ((ByteArrayOutputStream) output.getOutputStream()).toByteArray();
-
-        } else {
-            decodedImg = Base64.getDecoder().decode(data.getString(1));
-        }
-
-        final int pictureIndex = workbook.addPicture(decodedImg, imageType);
+    private void addImageToSheet(JsonArray target, byte[] image, int imageType) {
+        final int pictureIndex = addPicture(image, imageType);
+        addedPictures = true;
+        metrics.addImagesAdded(1);
 
         final CreationHelper helper = workbook.getCreationHelper();
         final ClientAnchor anchor = helper.createClientAnchor();
@@ -422,51 +466,314 @@ public class XlsxTemplate {
         pict.resize();
     }
 
-    private void compileTemplate(JsonArray cellData) throws TranscoderException, IOException {
-        
+    /**
+     * Adds a picture to the workbook unless an identical one is already in
+     * it, so every image is stored once however many times it is placed.
+     *
+     * @return The index of the picture.
+     */
+    private int addPicture(byte[] image, int imageType) {
+        if (pictureIndexes == null) {
+            pictureIndexes = new HashMap<>();
+            List<XSSFPictureData> pictures = workbook.getAllPictures();
+            for (int i = 0; i < pictures.size(); i++) {
+                pictureIndexes.putIfAbsent(pictures.get(i).getPictureType() + ":" + ImageCache.digest(pictures.get(i).getData()), i);
+            }
+        }
+
+        String key = imageType + ":" + ImageCache.digest(image);
+        Integer pictureIndex = pictureIndexes.get(key);
+        if (pictureIndex == null) {
+            pictureIndex = workbook.addPicture(image, imageType);
+            pictureIndexes.put(key, pictureIndex);
+        }
+        return pictureIndex;
+    }
+
+    void compileTemplate(JsonArray cellData) throws TranscoderException, IOException {
+        // Start preparing all the images before writing the other chunks.
+        for (JsonValue chunkToInsert : cellData) {
+            if (isImageChunk((JsonObject) chunkToInsert)) {
+                compileChunk((JsonObject) chunkToInsert);
+            }
+        }
         for (JsonValue chunkToInsert : cellData) {
-            JsonArray target = ((JsonObject) chunkToInsert).getJsonArray("target");
-            JsonArray data = ((JsonObject) chunkToInsert).getJsonArray("data");
-
-            String selectedStyle = (((JsonObject) chunkToInsert).containsKey("style") ?
-                ((JsonObject) chunkToInsert).getString("style") : 
-                null);
-                    
-            String chunkType;
-            chunkType = (((JsonObject) chunkToInsert).containsKey("type") ?
-                    ((JsonObject) chunkToInsert).getString("type") : "");
-
-            switch (chunkType) {
-                case "styles":
-                    applyStyleToSheet(target, data);
-                    break;
-                case "imageBase64":
-                    addImageBase64ToSheet(target, data);
-                    break;
-                default:
-                    populateTextSheet(target, data, selectedStyle);  
+            if (!isImageChunk((JsonObject) chunkToInsert)) {
+                compileChunk((JsonObject) chunkToInsert);
             }
         }
+        addPreparedImages();
     }
 
-    private void recalculateAll() {
-        XSSFFormulaEvaluator evaluator = XSSFFormulaEvaluator.create(workbook, IStabilityClassifier.TOTALLY_IMMUTABLE, UDFFinder.DEFAULT);
-        evaluator.evaluateAll();
+    private static boolean isImageChunk(JsonObject chunk) {
+        return "imageBase64".equals(chunk.getString("type", ""));
     }
 
-    private void recalculateSheet(int index) {
-        XSSFFormulaEvaluator evaluator = XSSFFormulaEvaluator.create(workbook, IStabilityClassifier.TOTALLY_IMMUTABLE, UDFFinder.DEFAULT);
-        Sheet sheet = workbook.getSheetAt(index);
-        String sheetName = sheet.getSheetName();
-        System.out.println("Evaluating " + sheetName);
-        for (Row r : sheet) {
-            for (Cell c : r) {
-                if (c.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                    evaluator.evaluateFormulaCell(c);
+    /**
+     * Places the images of the "imageBase64" chunks, in their order, once
+     * they are ready.
+     */
+    private void addPreparedImages() throws TranscoderException, IOException {
+        for (ImagePreparer.PreparedImage image : imagePreparer.drain()) {
+            addImageToSheet(image.getTarget(), image.getImage(), image.getPictureType());
+        }
+    }
+
+    /**
+     * Same as {@link #compileTemplate(JsonArray)}, but parses the data while
+     * it is written into the workbook.
+     *
+     * @param cellData Stream with the JSON array of chunks, or with chunks in
+     * the binary format described in {@link BinaryChunkReader}.
+     */
+    private void compileTemplate(InputStream cellData) throws TranscoderException, IOException {
+        InputStream data = cellData.markSupported() ? cellData : new BufferedInputStream(cellData);
+        if (BinaryChunkReader.hasMagic(data)) {
+            new BinaryChunkReader(this, Channels.newChannel(data)).read();
+        } else {
+            new StreamingChunkReader(this, data).read();
+        }
+        addPreparedImages();
+    }
+
+    void compileChunk(JsonObject chunkToInsert) throws TranscoderException, IOException {
+        JsonArray target = chunkToInsert.getJsonArray("target");
+        JsonArray data = chunkToInsert.getJsonArray("data");
+
+        String selectedStyle = (chunkToInsert.containsKey("style") ?
+            chunkToInsert.getString("style") : 
+            null);
+                
+        String chunkType;
+        chunkType = (chunkToInsert.containsKey("type") ?
+                chunkToInsert.getString("type") : "");
+
+        switch (chunkType) {
+            case "styles":
+                applyStyleToSheet(target, data);
+                break;
+            case "imageBase64":
+                imagePreparer.submit(target, data);
+                break;
+            default:
+                populateTextSheet(target, data, selectedStyle);  
+        }
+    }
+
+    private FormulaGraph getGraph() {
+        if (graph == null) {
+            graph = FormulaGraph.build(workbook);
+        }
+        return graph;
+    }
+
+    /**
+     * Evaluates again the formulas that depend on the written cells. The
+     * other formulas keep the values cached in the template.
+     *
+     * @throws IllegalStateException if some formula can not be evaluated.
+     * Every failure is also written to the metrics.
+     */
+    void recalculateAll() {
+        FormulaRecalculator recalculator = new FormulaRecalculator(workbook, getGraph());
+        if (sharedGraph) {
+            recalculator.setMemo(FormulaMemo.getDefault(), getCalcSheets());
+        }
+        try {
+            metrics.addFormulas(recalculator, recalculate(recalculator));
+        } finally {
+            recalculated.or(recalculator.getEvaluated());
+        }
+
+        List<FormulaRecalculator.Failure> failures = recalculator.getFailures();
+        failures.forEach(metrics::failure);
+        if (!failures.isEmpty()) {
+            StringBuilder message = new StringBuilder(failures.size() + " formulas could not be evaluated:");
+            for (FormulaRecalculator.Failure failure : failures.subList(0, Math.min(failures.size(), 10))) {
+                message.append("\n").append(failure);
+            }
+            throw new IllegalStateException(message.toString(), failures.get(0).getCause());
+        }
+    }
+
+    /**
+     * @return The number of formulas evaluated.
+     */
+    private int recalculate(FormulaRecalculator recalculator) {
+        if (options.getEvaluation() == CompileOptions.Evaluation.DEMAND) {
+            BitSet roots = valuesWriter != null ? getFormulasIn(valuesWriter.getRanges()) : getOutputFormulas();
+            int evaluated = recalculator.recalculate(writtenRanges, roots);
+            if (recalculator.getSkipped() > 0) {
+                // Let Excel evaluate the formulas nobody reads here.
+                workbook.setForceFormulaRecalculation(true);
+            }
+            return evaluated;
+        }
+        return recalculator.recalculate(writtenRanges);
+    }
+
+    /**
+     * Undoes a compilation, so the instance can compile another data set
+     * with the same styles. Only the cells written or styled by the
+     * compilation and the formulas evaluated again are restored.
+     *
+     * @param pristine An untouched copy of the same template.
+     * @return false if the compilation made changes that can not be undone,
+     * such as adding pictures or shared strings. The instance must then be
+     * discarded.
+     */
+    boolean resetTo(XSSFWorkbook pristine) {
+        if (addedPictures || streamedSheets != null && streamedSheets.isStreaming()) {
+            return false;
+        }
+        if (workbook.getSharedStringSource().getUniqueCount() != pristine.getSharedStringSource().getUniqueCount()) {
+            return false;
+        }
+
+        for (SheetRange range : writtenRanges) {
+            if (!restore(pristine, range)) {
+                return false;
+            }
+        }
+        for (SheetRange range : styledRanges) {
+            if (!restore(pristine, range)) {
+                return false;
+            }
+        }
+        for (int node = recalculated.nextSetBit(0); node >= 0; node = recalculated.nextSetBit(node + 1)) {
+            if (!restore(pristine, new SheetRange(graph.getSheet(node), graph.getRow(node), graph.getCol(node), graph.getRow(node), graph.getCol(node)))) {
+                return false;
+            }
+        }
+        for (Map.Entry<Integer, RangeStyler> styled : rangeStylers.entrySet()) {
+            if (styled.getValue().hasStyledColumns()) {
+                CTWorksheet original = pristine.getSheetAt(styled.getKey()).getCTWorksheet();
+                workbook.getSheetAt(styled.getKey()).getCTWorksheet().setColsArray(0,
+                    original.sizeOfColsArray() == 0 ? CTCols.Factory.newInstance() : original.getColsArray(0));
+            }
+        }
+        if (workbook.getCalculationChain() != null && pristine.getCalculationChain() != null) {
+            workbook.getCalculationChain().getCTCalcChain().set(pristine.getCalculationChain().getCTCalcChain());
+        }
+        // getForceFormulaRecalculation does not tell how the flag was set,
+        // so the calculation properties are copied as they are.
+        CTWorkbook original = pristine.getCTWorkbook();
+        if (original.isSetCalcPr()) {
+            workbook.getCTWorkbook().setCalcPr(original.getCalcPr());
+        } else if (workbook.getCTWorkbook().isSetCalcPr()) {
+            workbook.getCTWorkbook().unsetCalcPr();
+        }
+
+        writtenRanges.clear();
+        styledRanges.clear();
+        rangeStylers.clear();
+        recalculated.clear();
+        valuesWriter = null;
+        return true;
+    }
+
+    /**
+     * Copies the cells of a range from the pristine template, removing the
+     * cells and rows that were not in it. The default style of the rows is
+     * restored too when the range spans all the columns.
+     *
+     * @return false if a row could not be restored.
+     */
+    private boolean restore(XSSFWorkbook pristine, SheetRange range) {
+        XSSFSheet sheet = workbook.getSheetAt(range.sheet);
+        XSSFSheet original = pristine.getSheetAt(range.sheet);
+        int lastRow = Math.min(range.lastRow, sheet.getLastRowNum());
+
+        for (int i = range.firstRow; i <= lastRow; i++) {
+            XSSFRow row = sheet.getRow(i);
+            if (row == null) {
+                continue;
+            }
+            XSSFRow originalRow = original.getRow(i);
+            if (originalRow == null) {
+                sheet.removeRow(row);
+                continue;
+            }
+            if (range.firstCol == 0 && range.lastCol == RangeStyler.LAST_COL) {
+                CTRow ctRow = row.getCTRow();
+                CTRow originalCtRow = originalRow.getCTRow();
+                if (originalCtRow.isSetS()) {
+                    ctRow.setS(originalCtRow.getS());
+                } else if (ctRow.isSetS()) {
+                    ctRow.unsetS();
                 }
+                if (originalCtRow.isSetCustomFormat()) {
+                    ctRow.setCustomFormat(originalCtRow.getCustomFormat());
+                } else if (ctRow.isSetCustomFormat()) {
+                    ctRow.unsetCustomFormat();
+                }
+            }
+
+            int lastCol = Math.min(range.lastCol, row.getLastCellNum() - 1);
+            if (!restoreCells(row, originalRow, range.firstCol, lastCol) && !rebuildRow(sheet, row, originalRow)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies some cells of a row from the pristine template, if that leaves
+     * the row consistent.
+     *
+     * When its cells are out of order, POI writes a row by copying its XML
+     * into the document, and the cells keep pointing to the replaced XML
+     * from then on. Removing cells has the same effect on the next write.
+     * Both cases need the whole row to be rebuilt.
+     *
+     * @return false if the row must be rebuilt.
+     */
+    private static boolean restoreCells(XSSFRow row, XSSFRow originalRow, int firstCol, int lastCol) {
+        CTRow ctRow = row.getCTRow();
+        if (ctRow.sizeOfCArray() != row.getPhysicalNumberOfCells()) {
+            return false;
+        }
+        int k = 0;
+        for (Iterator<Cell> it = row.cellIterator(); it.hasNext(); k++) {
+            XSSFCell cell = (XSSFCell) it.next();
+            if (cell.getCTCell() != ctRow.getCArray(k)
+                    || (cell.getColumnIndex() >= firstCol && cell.getColumnIndex() <= lastCol
+                        && originalRow.getCell(cell.getColumnIndex()) == null)) {
+                return false;
+            }
+        }
+
+        for (int j = firstCol; j <= lastCol; j++) {
+            XSSFCell cell = row.getCell(j);
+            if (cell != null) {
+                cell.getCTCell().set(originalRow.getCell(j).getCTCell());
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces a row with a copy of the pristine one.
+     *
+     * @return false if the row holds part of an array formula, which can
+     * not be removed cell by cell.
+     */
+    private static boolean rebuildRow(XSSFSheet sheet, XSSFRow row, XSSFRow originalRow) {
+        for (Iterator<Cell> it = row.cellIterator(); it.hasNext();) {
+            if (it.next().isPartOfArrayFormulaGroup()) {
+                return false;
             }
         }
-        System.out.println("Done " + sheetName);
+
+        XSSFRow rebuilt = sheet.createRow(row.getRowNum());
+        CTRow attributes = (CTRow) originalRow.getCTRow().copy();
+        attributes.setCArray(new CTCell[0]);
+        rebuilt.getCTRow().set(attributes);
+        for (Iterator<Cell> it = originalRow.cellIterator(); it.hasNext();) {
+            XSSFCell originalCell = (XSSFCell) it.next();
+            rebuilt.createCell(originalCell.getColumnIndex()).getCTCell().set(originalCell.getCTCell());
+        }
+        return true;
     }
 
     private boolean isCalcSheet(int index) {
@@ -475,17 +782,155 @@ public class XlsxTemplate {
         return sheetName.contains("Calc");
     }
 
+    private BitSet getCalcSheets() {
+        BitSet calcSheets = new BitSet();
+        for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+            if (isCalcSheet(i)) {
+                calcSheets.set(i);
+            }
+        }
+        return calcSheets;
+    }
+
     private boolean isOutputSheet(int index) {
         Sheet sheet = workbook.getSheetAt(index);
         String sheetName = sheet.getSheetName();
-        return sheetName.contains("Output");
+        return options.getOutputSheets().matcher(sheetName).find();
     }
 
-    private void streamWorkbook(OutputStream stream) throws IOException {
-        workbook.write(stream);
+    /**
+     * @return The nodes of the formulas placed in some ranges.
+     */
+    private BitSet getFormulasIn(List<SheetRange> ranges) {
+        IntList nodes = new IntList();
+        for (SheetRange range : ranges) {
+            getGraph().nodesIn(range.sheet, range.firstRow, range.firstCol, range.lastRow, range.lastCol, nodes);
+        }
+
+        BitSet formulas = new BitSet(graph.size());
+        for (int i = 0; i < nodes.size(); i++) {
+            formulas.set(nodes.get(i));
+        }
+        return formulas;
+    }
+
+    /**
+     * @return The nodes of the formulas placed in output sheets.
+     */
+    private BitSet getOutputFormulas() {
+        boolean[] outputSheets = new boolean[workbook.getNumberOfSheets()];
+        for (int i = 0; i < outputSheets.length; i++) {
+            outputSheets[i] = isOutputSheet(i);
+        }
+
+        BitSet formulas = new BitSet(graph.size());
+        for (int node = 0; node < graph.size(); node++) {
+            if (outputSheets[graph.getSheet(node)]) {
+                formulas.set(node);
+            }
+        }
+        return formulas;
+    }
+
+    /**
+     * Writes the workbook at the compression level of the options. The parts
+     * are compressed in parallel, except when rows have been streamed, since
+     * SXSSF writes its own zip.
+     */
+    void streamWorkbook(OutputStream stream) throws IOException {
+        if (streamedSheets != null && streamedSheets.isStreaming()) {
+            OutputStream buffered = new BufferedOutputStream(stream, 1 << 16);
+            streamedSheets.write(buffered);
+            buffered.close();
+        } else {
+            workbook.write(new ParallelZipOutputStream(stream, options.getCompressionLevel()));
+        }
         stream.close();
     }
 
+    /**
+     * Resolves the regions of a values result, once the data is written.
+     */
+    private void prepareResult() {
+        if (options.getResult() == CompileOptions.Result.XLSX) {
+            return;
+        }
+
+        valuesWriter = new ValuesWriter();
+        JsonArray regions = options.getRegions();
+        if (regions == null) {
+            for (int i = 0; i < workbook.getNumberOfSheets(); i++) {
+                if (isOutputSheet(i)) {
+                    addValuesRegion(null, workbook.getSheetAt(i), 0, 0, Integer.MAX_VALUE, Integer.MAX_VALUE);
+                }
+            }
+            return;
+        }
+
+        for (JsonValue region : regions) {
+            if (region.getValueType() == JsonValue.ValueType.STRING) {
+                String name = ((JsonString) region).getString();
+                XSSFName definedName = workbook.getName(name);
+                if (definedName == null) {
+                    throw new IllegalArgumentException("The name " + name + " does not exist.");
+                }
+                AreaReference area = new AreaReference(definedName.getRefersToFormula(), SpreadsheetVersion.EXCEL2007);
+                XSSFSheet sheet = workbook.getSheet(area.getFirstCell().getSheetName());
+                if (sheet == null) {
+                    throw new IllegalArgumentException("The name " + name + " does not refer to a sheet of the workbook.");
+                }
+                addValuesRegion(name, sheet,
+                    area.getFirstCell().getRow(), area.getFirstCell().getCol(),
+                    area.getLastCell().getRow(), area.getLastCell().getCol());
+            } else {
+                JsonArray target = (JsonArray) region;
+                addValuesRegion(null, getSheetByNameOrIndex(target),
+                    target.getJsonArray(1).getInt(1), target.getJsonArray(1).getInt(0),
+                    target.getJsonArray(2).getInt(1), target.getJsonArray(2).getInt(0));
+            }
+        }
+    }
+
+    /**
+     * Adds a region to the values result, clipped to the used range of its
+     * sheet, so whole rows or columns can be asked for.
+     */
+    private void addValuesRegion(String name, XSSFSheet sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        int usedLastCol = -1;
+        for (int i = sheet.getFirstRowNum(); i <= sheet.getLastRowNum(); i++) {
+            XSSFRow row = sheet.getRow(i);
+            if (row != null) {
+                usedLastCol = Math.max(usedLastCol, row.getLastCellNum() - 1);
+            }
+        }
+        if (sheet.getPhysicalNumberOfRows() == 0 || usedLastCol < 0) {
+            return;
+        }
+
+        lastRow = Math.min(lastRow, sheet.getLastRowNum());
+        lastCol = Math.min(lastCol, usedLastCol);
+        if (firstRow <= lastRow && firstCol <= lastCol) {
+            valuesWriter.addRegion(name, sheet, new SheetRange(workbook.getSheetIndex(sheet), firstRow, firstCol, lastRow, lastCol));
+        }
+    }
+
+    private void writeResult(OutputStream stream) throws IOException {
+        switch (options.getResult()) {
+            case JSON:
+                stream = new BufferedOutputStream(stream, 1 << 16);
+                valuesWriter.writeJson(stream);
+                stream.close();
+                break;
+            case BINARY:
+                stream = new BufferedOutputStream(stream, 1 << 16);
+                valuesWriter.writeBinary(stream);
+                stream.close();
+                break;
+            default:
+                streamWorkbook(stream);
+        }
+    }
+
     /**
      *
      * @param templatePath: URL of the template
@@ -505,47 +950,251 @@ public class XlsxTemplate {
      * @throws org.apache.batik.transcoder.TranscoderException
      */
     static public void compileAndStreamTemplate(String templatePath, String JsonArrayData, String JsonObjectStyles) throws IOException, TranscoderException {
+        compileAndStreamTemplate(templatePath, JsonArrayData, JsonObjectStyles, System.out);
+    }
+
+    /**
+     * Same as {@link #compileAndStreamTemplate(String, String, String)}, but
+     * writes the compiled workbook to the given stream. The stream is closed
+     * once the workbook has been written.
+     *
+     * @param templatePath: URL of the template
+     * @param JsonArrayData: A JSON string Array with the new data.
+     * @param JsonObjectStyles : A JSON string object with the styles.
+     * @param stream : Destination of the compiled workbook.
+     * @throws IOException
+     * @throws org.apache.batik.transcoder.TranscoderException
+     */
+    static public void compileAndStreamTemplate(String templatePath, String JsonArrayData, String JsonObjectStyles, OutputStream stream) throws IOException, TranscoderException {
         JsonArray data = Json.createReader(new StringReader(JsonArrayData)).readArray();
         JsonObject styles = Json.createReader(new StringReader(JsonObjectStyles)).readObject();
         
         
         XlsxTemplate instance = new XlsxTemplate(templatePath);
-        instance.parseStylesObject(styles);
-        instance.compileTemplate(data);
-        instance.recalculateAll();
-        instance.streamWorkbook(System.out);
+        instance.compile(data, styles, stream);
+    }
+
+    /**
+     * Runs the whole pipeline on this instance: styles, data, recalculation
+     * and serialization.
+     */
+    void compile(JsonArray data, JsonObject styles, OutputStream stream) throws IOException, TranscoderException {
+        compile(data, styles, new CompileOptions(), stream);
+    }
+
+    void compile(JsonArray data, JsonObject styles, CompileOptions options, OutputStream stream) throws IOException, TranscoderException {
+        compile(styles, () -> compileTemplate(data), options, stream);
+    }
+
+    /**
+     * Same as {@link #compile(JsonArray, JsonObject, OutputStream)}, but the
+     * data is parsed while it is written into the workbook.
+     */
+    void compile(InputStream data, JsonObject styles, OutputStream stream) throws IOException, TranscoderException {
+        compile(data, styles, new CompileOptions(), stream);
+    }
+
+    void compile(InputStream data, JsonObject styles, CompileOptions options, OutputStream stream) throws IOException, TranscoderException {
+        compile(styles, () -> compileTemplate(data), options, stream);
+    }
+
+    /**
+     * Runs the pipeline after the styles have been parsed: data,
+     * recalculation and serialization.
+     */
+    void compileData(InputStream data, CompileOptions options, OutputStream stream) throws IOException, TranscoderException {
+        compile(null, () -> compileTemplate(data), options, stream);
+    }
+
+    /**
+     * Writes the data chunks of a compilation into the workbook.
+     */
+    private interface DataCompiler {
+        void compile() throws TranscoderException, IOException;
+    }
+
+    /**
+     * Runs the pipeline, measuring each phase in the metrics.
+     *
+     * @param styles The styles to parse first, or null if they already are.
+     */
+    private void compile(JsonObject styles, DataCompiler data, CompileOptions options, OutputStream stream) throws IOException, TranscoderException {
+        beginMetrics();
+        String status = "error";
+        setOptions(options);
+        try {
+            if (styles != null) {
+                metrics.time("styles", () -> parseStylesObject(styles));
+            }
+            metrics.<TranscoderException, IOException>time("data", data::compile);
+            metrics.time("result", this::prepareResult);
+            metrics.time("recalculate", this::recalculateAll);
+            metrics.time("write", () -> writeResult(stream));
+            status = "ok";
+        } finally {
+            disposeStreamedSheets();
+            endMetrics(status);
+        }
+    }
+
+    /**
+     * Starts the metrics of a compilation. The first compilation of an
+     * instance opened from a file keeps those started when it was loaded.
+     */
+    private void beginMetrics() {
+        if (metrics.isFinished()) {
+            metrics = CompileMetrics.start(templateName, "dom");
+        }
+        stylesBefore = workbook.getNumCellStyles();
+        transcodedBefore = imagePreparer.getTranscoded();
+    }
+
+    private void endMetrics(String status) {
+        metrics.addStylesCreated(workbook.getNumCellStyles() - stylesBefore);
+        metrics.addImagesTranscoded(imagePreparer.getTranscoded() - transcodedBefore);
+        metrics.finish(status);
+    }
+
+    private void setOptions(CompileOptions options) {
+        this.options = options;
+        this.streamedSheets = options.getStreamingWindow() > 0 && options.getResult() == CompileOptions.Result.XLSX ?
+            new StreamedSheets(workbook, getGraph(), options.getStreamingWindow()) :
+            null;
+    }
+
+    private void disposeStreamedSheets() {
+        if (streamedSheets != null) {
+            streamedSheets.dispose();
+        }
+    }
+
+    /**
+     * Same as {@link #compileAndStreamTemplate(String, String, String, OutputStream)},
+     * but reads the data from a stream. The chunks are written into the
+     * template while they are parsed, so the whole payload is never held in
+     * memory. To stream the rows of a chunk, its "target" must come before
+     * its "data". The stream may also hold chunks in the binary format
+     * described in {@link BinaryChunkReader}, which is detected by its magic.
+     *
+     * @param templatePath: URL of the template
+     * @param JsonArrayData: Stream with the JSON Array of data chunks.
+     * @param JsonObjectStyles : A JSON string object with the styles.
+     * @param stream : Destination of the compiled workbook.
+     * @throws IOException
+     * @throws org.apache.batik.transcoder.TranscoderException
+     */
+    static public void compileAndStreamTemplate(String templatePath, InputStream JsonArrayData, String JsonObjectStyles, OutputStream stream) throws IOException, TranscoderException {
+        compileAndStreamTemplate(templatePath, JsonArrayData, JsonObjectStyles, new CompileOptions(), stream);
+    }
+
+    /**
+     * Same as {@link #compileAndStreamTemplate(String, InputStream, String, OutputStream)},
+     * with options for this compilation.
+     *
+     * @param options : Options of the compilation.
+     */
+    static public void compileAndStreamTemplate(String templatePath, InputStream JsonArrayData, String JsonObjectStyles, CompileOptions options, OutputStream stream) throws IOException, TranscoderException {
+        JsonObject styles = Json.createReader(new StringReader(JsonObjectStyles)).readObject();
+
+        InputStream data = JsonArrayData;
+        if (options.getEngine() == CompileOptions.Engine.PATCH) {
+            // The patch engine needs the whole data array.
+            data = data.markSupported() ? data : new BufferedInputStream(data);
+            if (!BinaryChunkReader.hasMagic(data)) {
+                JsonArray chunks = Json.createReader(data).readArray();
+                if (!SheetXmlPatcher.compile(templatePath, chunks, options, stream)) {
+                    new XlsxTemplate(templatePath).compile(chunks, styles, options, stream);
+                }
+                return;
+            }
+        }
+
+        XlsxTemplate instance = new XlsxTemplate(templatePath);
+        instance.compile(data, styles, options, stream);
     }
 
-    public static void main(String[] args) throws IOException {
+    /**
+     * Command line entry point.
+     *
+     * --worker [threads] [--options]: runs a {@link TemplateWorker}.
+     * --batch template styles [threads] [--options]: runs a
+     * {@link TemplateWorker} in batch mode, compiling every data frame read
+     * from stdin against the same template and styles.
+     * template data [styles [options [output]]]: compiles the template with
+     * the data read from a file, or from stdin if data is "-", and the styles
+     * and {@link CompileOptions} read from JSON files. The workbook is written
+     * to the output file, or to stdout if it is missing or "-".
+     */
+    public static void main(String[] args) throws IOException, InterruptedException, TranscoderException {
+        if (args.length > 0 && "--worker".equals(args[0])) {
+            TemplateWorker.main(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        if (args.length > 0 && "--batch".equals(args[0])) {
+            TemplateWorker.batchMain(Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+
+        if (args.length > 1) {
+            String styles = args.length > 2 ?
+                new String(Files.readAllBytes(Paths.get(args[2])), StandardCharsets.UTF_8) :
+                "{}";
+            CompileOptions options = args.length > 3 ?
+                CompileOptions.fromJson(Json.createReader(new StringReader(
+                    new String(Files.readAllBytes(Paths.get(args[3])), StandardCharsets.UTF_8))).readObject()) :
+                new CompileOptions();
+            // The result is written through the channel of the file, or buffered.
+            OutputStream output = args.length > 4 && !"-".equals(args[4]) ?
+                new FileOutputStream(args[4]) :
+                new FileOutputStream(FileDescriptor.out);
+            InputStream data = "-".equals(args[1]) ? System.in : new FileInputStream(args[1]);
+            try {
+                compileAndStreamTemplate(args[0], new BufferedInputStream(data), styles, options, output);
+            } finally {
+                data.close();
+            }
+            return;
+        }
+
+        // This mode only reports, so its metrics go to stderr unless they
+        // are sent elsewhere.
+        if (!CompileMetrics.isConfigured()) {
+            CompileMetrics.setSink(System.err);
+        }
         XlsxTemplate instance = new XlsxTemplate(args[0]);
-        System.out.println("Loaded");
-        XlsxTemplate.recalculateSAF(workbook);
-        System.out.println("DONE");
-        //instance.streamWorkbook(System.out);   
+        instance.recalculateSAF();
     }
 
+    /**
+     * Evaluates every formula of a workbook in parallel.
+     *
+     * @param wb The workbook, which must not be used by another thread
+     * meanwhile.
+     * @deprecated Use {@link #recalculateSAF()} on an instance wrapping the
+     * workbook.
+     */
+    @Deprecated
     public static void recalculateSAF(XSSFWorkbook wb) {
-        XSSFFormulaEvaluator evaluator = XSSFFormulaEvaluator.create(wb, IStabilityClassifier.TOTALLY_IMMUTABLE, UDFFinder.DEFAULT);
-        for (Sheet sheet : wb) {
-            System.out.println(sheet.getSheetName());
-            IntStream rows = Arrays.stream(IntStream.range(0, sheet.getLastRowNum() + 1).toArray());
-            rows.filter(rowNum -> sheet.getRow(rowNum) != null)
-                .parallel()
-                .forEach(rowNum -> {
-                    Row r = sheet.getRow(rowNum);                    
-                    for (Cell c : r) {
-                        if (c.getCellType() == Cell.CELL_TYPE_FORMULA) {
-                            try {
-                                evaluator.evaluateInCell(c);
-                            } 
-                            catch (Exception e) {
-                              if (debug) {
-                                  System.out.println("Failed at: " + sheet.getSheetName() + " r:" + rowNum + " c:" + c.getColumnIndex() + " F:" + c.getCellFormula());
-                              }  
-                            }
-                        }
-                    }
-                });
+        new XlsxTemplate(wb).recalculateSAF();
+    }
+
+    /**
+     * Evaluates every formula of the workbook in parallel. The formulas that
+     * fail keep their cached value and are reported in the metrics, as
+     * described in {@link CompileMetrics}.
+     */
+    public void recalculateSAF() {
+        beginMetrics();
+        String status = "error";
+        try {
+            metrics.time("recalculate", () -> {
+                FormulaRecalculator recalculator = new FormulaRecalculator(workbook, getGraph());
+                metrics.addFormulas(recalculator, recalculator.recalculateAll());
+                recalculator.getFailures().forEach(metrics::failure);
+            });
+            status = "ok";
+        } finally {
+            endMetrics(status);
         }
     }
 }
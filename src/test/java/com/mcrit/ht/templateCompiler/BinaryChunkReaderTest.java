@@ -0,0 +1,135 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+public class BinaryChunkReaderTest {
+    private XSSFWorkbook workbook;
+
+    @Before
+    public void createWorkbook() {
+        workbook = new XSSFWorkbook();
+        workbook.createSheet("Data");
+    }
+
+    @Test
+    public void writesNumbersAndStrings() throws IOException {
+        read(frame(2, 1, 1, 2, new String[] {"a"}, new double[] {1.5, Double.NaN}, new int[] {-1, 0}));
+
+        XSSFSheet sheet = workbook.getSheet("Data");
+        assertEquals(1.5, sheet.getRow(1).getCell(2).getNumericCellValue(), 0);
+        assertEquals("a", sheet.getRow(1).getCell(3).getStringCellValue());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANegativeNumberOfStrings() throws IOException {
+        ByteBuffer frame = frame(0, 0, 1, 1, new String[0], new double[] {1}, new int[] {-1});
+        // The count of strings follows the header, which ends with the empty style.
+        frame.putInt(headerLength(), -1);
+        read(frame);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAStringReferencePastTheStrings() throws IOException {
+        read(frame(0, 0, 1, 2, new String[] {"a"}, new double[] {0, 0}, new int[] {0, 1}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAStringReferenceWithoutStrings() throws IOException {
+        read(frame(0, 0, 1, 1, new String[0], new double[] {0}, new int[] {0}));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANegativeRow() throws IOException {
+        read(frame(0, -1, 1, 1, null, new double[] {1}, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsANegativeColumn() throws IOException {
+        read(frame(-1, 0, 1, 1, null, new double[] {1}, null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAChunkPastTheLastRow() throws IOException {
+        read(frame(0, 1048575, 2, 1, null, new double[] {1, 2}, null));
+    }
+
+    private void read(ByteBuffer frame) throws IOException {
+        ByteArrayOutputStream data = new ByteArrayOutputStream();
+        data.write(BinaryChunkReader.MAGIC);
+        data.write(BinaryChunkReader.VERSION);
+        data.write(frame.array(), 0, frame.limit());
+        new BinaryChunkReader(new XlsxTemplate(workbook), Channels.newChannel(new ByteArrayInputStream(data.toByteArray()))).read();
+    }
+
+    private static int headerLength() {
+        return 4 + 1 + 4 + 16 + 1 + 4;
+    }
+
+    /**
+     * Builds a frame targeting the sheet 0, numeric if strings is null.
+     */
+    private static ByteBuffer frame(int col, int row, int rows, int cols, String[] strings, double[] values, int[] refs) {
+        ByteBuffer frame = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+        frame.putInt(0).put(BinaryChunkReader.TARGET_INDEX).putInt(0);
+        frame.putInt(col).putInt(row).putInt(rows).putInt(cols);
+        frame.put(strings == null ? BinaryChunkReader.TYPE_NUMERIC : BinaryChunkReader.TYPE_MIXED);
+        frame.putInt(0);
+        if (strings != null) {
+            frame.putInt(strings.length);
+            for (String text : strings) {
+                byte[] encoded = text.getBytes(StandardCharsets.UTF_8);
+                frame.putInt(encoded.length).put(encoded);
+            }
+        }
+        for (int i = 0; i < rows; i++) {
+            for (int j = 0; j < cols; j++) {
+                frame.putDouble(values[i * cols + j]);
+            }
+            if (strings != null) {
+                for (int j = 0; j < cols; j++) {
+                    frame.putInt(refs[i * cols + j]);
+                }
+            }
+        }
+        frame.putInt(0, frame.position() - 4);
+        frame.flip();
+        return frame;
+    }
+}
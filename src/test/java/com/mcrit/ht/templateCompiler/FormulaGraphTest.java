@@ -0,0 +1,214 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FormulaGraphTest {
+    private static final int DATA = 0;
+    private static final int CALC = 1;
+
+    private XSSFWorkbook workbook;
+    private XSSFSheet data;
+    private XSSFSheet calc;
+
+    @Before
+    public void createWorkbook() {
+        workbook = new XSSFWorkbook();
+        data = workbook.createSheet("Data");
+        calc = workbook.createSheet("Calc");
+        for (int i = 0; i < 10; i++) {
+            data.createRow(i).createCell(0).setCellValue(i);
+        }
+    }
+
+    @Test
+    public void findsTheReadersOfAWrittenCellAndTheirReaders() {
+        setFormula(0, 0, "Data!A5*2");
+        setFormula(1, 0, "A1+1");
+        setFormula(2, 0, "Data!A6");
+        FormulaGraph graph = build();
+
+        BitSet dirty = graph.dependentsOf(written(DATA, 4, 0, 4, 0));
+
+        assertEquals(nodes(graph, 0, 1), dirty);
+    }
+
+    @Test
+    public void findsTheFormulasOfAWrittenRange() {
+        setFormula(0, 0, "Data!A1");
+        setFormula(1, 0, "A1+1");
+        setFormula(0, 1, "Data!A2");
+        FormulaGraph graph = build();
+
+        // Writing over a formula only replaces its cached value.
+        BitSet dirty = graph.dependentsOf(written(CALC, 0, 0, 0, 0));
+
+        assertEquals(nodes(graph, 0, 1), dirty);
+    }
+
+    @Test
+    public void findsTheReadersOfAnAreaByBandsOfRows() {
+        // Spans two bands of 64 rows.
+        setFormula(0, 0, "SUM(Data!A60:C70)");
+        FormulaGraph graph = build();
+
+        assertEquals(nodes(graph, 0), graph.dependentsOf(written(DATA, 64, 1, 64, 1)));
+        assertEquals(nodes(graph, 0), graph.dependentsOf(written(DATA, 59, 2, 59, 2)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 70, 1, 70, 1)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 64, 3, 64, 3)));
+        assertEquals(nodes(graph, 0), graph.dependentsOf(written(DATA, 0, 0, 100, 10)));
+    }
+
+    @Test
+    public void findsTheReadersOfATallAreaByBandsOfColumns() {
+        setFormula(0, 0, "SUM(Data!E1:E10000)");
+        FormulaGraph graph = build();
+
+        assertEquals(nodes(graph, 0), graph.dependentsOf(written(DATA, 9000, 4, 9000, 4)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 9000, 5, 9000, 5)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 10000, 4, 10000, 4)));
+    }
+
+    @Test
+    public void findsTheReadersOfAnAreaBothTallAndWide() {
+        setFormula(0, 0, "SUM(Data!A1:XX10000)");
+        FormulaGraph graph = build();
+
+        assertEquals(nodes(graph, 0), graph.dependentsOf(written(DATA, 5000, 600, 5000, 600)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 10000, 600, 10000, 600)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(DATA, 5000, 650, 5000, 650)));
+        assertEquals(new BitSet(), graph.dependentsOf(written(CALC, 5000, 600, 5000, 600)));
+    }
+
+    @Test
+    public void keepsTheVolatileDynamicAndUncachedFormulasDirty() {
+        setFormula(0, 0, "TODAY()");
+        setFormula(1, 0, "INDIRECT(\"Data!A1\")");
+        setFormula(2, 0, "Data!A1");
+        setFormula(3, 0, "A2+1");
+        setFormula(4, 0, "Data!A2");
+        Workbooks.evaluateAll(workbook);
+        // A formula added after the evaluation has no cached value.
+        setFormula(5, 0, "Data!A3");
+        FormulaGraph graph = FormulaGraph.build(workbook);
+
+        assertTrue(graph.hasFlag(0, FormulaGraph.VOLATILE));
+        assertTrue(graph.hasFlag(1, FormulaGraph.DYNAMIC));
+        assertTrue(graph.hasFlag(5, FormulaGraph.UNCACHED));
+        assertFalse(graph.hasFlag(2, (byte) (FormulaGraph.VOLATILE | FormulaGraph.DYNAMIC | FormulaGraph.UNCACHED)));
+        assertEquals(nodes(graph, 0, 1, 3, 5), graph.dependentsOf(Collections.<SheetRange>emptyList()));
+    }
+
+    @Test
+    public void followsNamesUpToTheDepthLimit() {
+        // Eight names are read through; the cell of a ninth is unknown.
+        addNameChain("Deep", 8, "Data!$A$1");
+        addNameChain("Deeper", 9, "Data!$A$2");
+        setFormula(0, 0, "Deep1*2");
+        setFormula(1, 0, "Deeper1*2");
+        FormulaGraph graph = build();
+
+        assertFalse(graph.hasFlag(0, FormulaGraph.DYNAMIC));
+        assertTrue(graph.hasFlag(1, FormulaGraph.DYNAMIC));
+        assertTrue(graph.dependentsOf(written(DATA, 0, 0, 0, 0)).get(0));
+    }
+
+    @Test
+    public void findsThePrecedentsOfSomeRoots() {
+        setFormula(0, 0, "Data!A1");
+        setFormula(1, 0, "A1+1");
+        setFormula(2, 0, "SUM(A1:A2)");
+        setFormula(3, 0, "Data!A2");
+        FormulaGraph graph = build();
+
+        assertEquals(nodes(graph, 0, 1, 2), graph.precedentsOf(nodes(graph, 2)));
+        assertEquals(nodes(graph, 3), graph.precedentsOf(nodes(graph, 3)));
+    }
+
+    @Test
+    public void tellsTheSheetsNoFormulaReads() {
+        setFormula(0, 0, "SUM(Data!A1:A3)");
+        XSSFSheet notes = workbook.createSheet("Notes");
+        notes.createRow(0).createCell(0).setCellValue("text");
+
+        assertFalse(build().isDataOnly(DATA));
+        assertFalse(build().isDataOnly(CALC));
+        assertTrue(build().isDataOnly(2));
+    }
+
+    /**
+     * Evaluates the workbook first, so no formula is dirty for lack of a
+     * cached value.
+     */
+    private FormulaGraph build() {
+        Workbooks.evaluateAll(workbook);
+        return FormulaGraph.build(workbook);
+    }
+
+    private void setFormula(int row, int col, String formula) {
+        XSSFRow calcRow = calc.getRow(row) != null ? calc.getRow(row) : calc.createRow(row);
+        calcRow.createCell(col).setCellFormula(formula);
+    }
+
+    /**
+     * Adds names prefix1 to prefixN, each one reading the next and the last
+     * one a reference.
+     */
+    private void addNameChain(String prefix, int length, String reference) {
+        for (int i = length; i >= 1; i--) {
+            XSSFName name = workbook.createName();
+            name.setNameName(prefix + i);
+            name.setRefersToFormula(i == length ? reference : prefix + (i + 1));
+        }
+    }
+
+    private static Iterable<SheetRange> written(int sheet, int firstRow, int firstCol, int lastRow, int lastCol) {
+        return Collections.singletonList(new SheetRange(sheet, firstRow, firstCol, lastRow, lastCol));
+    }
+
+    /**
+     * @return The nodes of some rows of the first column of the Calc sheet.
+     */
+    private static BitSet nodes(FormulaGraph graph, int... rows) {
+        BitSet nodes = new BitSet();
+        for (int row : rows) {
+            nodes.set(graph.nodeAt(CALC, row, 0));
+        }
+        return nodes;
+    }
+}
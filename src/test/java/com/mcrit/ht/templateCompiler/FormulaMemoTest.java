@@ -0,0 +1,182 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+public class FormulaMemoTest {
+    private static final int ROWS = 20;
+    private static final int CALC = 2;
+
+    private XSSFWorkbook template;
+    private FormulaGraph graph;
+    private FormulaMemo memo;
+
+    /**
+     * Builds a template whose Calc sheet reads the Input sheet directly and
+     * through the formulas of a Mid sheet, as a snapshot of the cache does,
+     * with a graph shared by all the copies.
+     */
+    @Before
+    public void createTemplate() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet input = workbook.createSheet("Input");
+        XSSFSheet mid = workbook.createSheet("Mid");
+        XSSFSheet calc = workbook.createSheet("Calc");
+        for (int i = 0; i < ROWS; i++) {
+            int r = i + 1;
+            input.createRow(i).createCell(0).setCellValue(i);
+            mid.createRow(i).createCell(0).setCellFormula("Input!A" + r + "*2");
+            XSSFRow row = calc.createRow(i);
+            row.createCell(0).setCellFormula("Mid!A" + r + "+Input!A" + r);
+            row.createCell(1).setCellFormula("IF(A" + r + ">10,\"big\",\"small\")");
+        }
+        calc.getRow(0).createCell(2).setCellFormula("SUM(A1:A" + ROWS + ")");
+        Workbooks.evaluateAll(workbook);
+
+        template = Workbooks.copy(workbook);
+        graph = FormulaGraph.build(template);
+        memo = new FormulaMemo(1 << 20);
+    }
+
+    @Test
+    public void reusesTheResultsOfEqualInputs() throws IOException {
+        XSSFWorkbook first = compile(5, 7);
+        XSSFWorkbook second = write(5, 7);
+        FormulaRecalculator recalculator = recalculate(second);
+
+        assertEquals(1, memo.getHits());
+        assertEquals(recalculator.getEvaluated().cardinality() - countMidFormulas(recalculator),
+            recalculator.getReused());
+        Workbooks.assertSameFormulaResults(first, second);
+        Workbooks.assertSameFormulaResults(evaluateWithPoi(5, 7), second);
+    }
+
+    @Test
+    public void evaluatesAgainOnceAPrecedentChanges() throws IOException {
+        compile(5, 7);
+        XSSFWorkbook second = write(5, 8);
+        FormulaRecalculator recalculator = recalculate(second);
+
+        assertEquals(0, memo.getHits());
+        assertEquals(2, memo.getMisses());
+        assertEquals(0, recalculator.getReused());
+        Workbooks.assertSameFormulaResults(evaluateWithPoi(5, 8), second);
+    }
+
+    @Test
+    public void neverSharesTheRegionsOfAnotherGraph() throws IOException {
+        compile(5, 7);
+        XSSFWorkbook second = write(5, 7);
+        second.getSheet("Mid").getRow(1).getCell(0).setCellFormula("Input!A2*3");
+        FormulaGraph changed = FormulaGraph.build(second);
+        FormulaRecalculator recalculator = new FormulaRecalculator(second, changed);
+        recalculator.setMemo(memo, calcSheet());
+        recalculator.recalculate(Collections.singletonList(new SheetRange(0, 0, 0, 1, 0)));
+
+        assertEquals(0, memo.getHits());
+    }
+
+    @Test
+    public void neverKeepsTheRegionsReadingVolatileFormulas() throws IOException {
+        template.getSheet("Mid").getRow(0).createCell(1).setCellFormula("TODAY()");
+        template.getSheet("Calc").getRow(1).createCell(2).setCellFormula("Mid!B1");
+        graph = FormulaGraph.build(template);
+
+        compile(5, 7);
+        compile(5, 7);
+
+        assertEquals(0, memo.getHits());
+        assertEquals(0, memo.getSize());
+    }
+
+    @Test
+    public void isDisabledWithoutABudget() throws IOException {
+        memo = new FormulaMemo(0);
+
+        compile(5, 7);
+        FormulaRecalculator recalculator = recalculate(write(5, 7));
+
+        assertEquals(0, recalculator.getReused());
+        assertEquals(0, memo.getHits() + memo.getMisses());
+    }
+
+    /**
+     * Writes the first two cells of the Input sheet of a new copy and
+     * recalculates it.
+     */
+    private XSSFWorkbook compile(double a1, double a2) throws IOException {
+        XSSFWorkbook workbook = write(a1, a2);
+        recalculate(workbook);
+        return workbook;
+    }
+
+    private XSSFWorkbook write(double a1, double a2) throws IOException {
+        XSSFWorkbook workbook = Workbooks.copy(template);
+        workbook.getSheet("Input").getRow(0).getCell(0).setCellValue(a1);
+        workbook.getSheet("Input").getRow(1).getCell(0).setCellValue(a2);
+        return workbook;
+    }
+
+    private FormulaRecalculator recalculate(XSSFWorkbook workbook) {
+        FormulaRecalculator recalculator = new FormulaRecalculator(workbook, graph);
+        recalculator.setMemo(memo, calcSheet());
+        recalculator.recalculate(Collections.singletonList(new SheetRange(0, 0, 0, 1, 0)));
+        return recalculator;
+    }
+
+    private XSSFWorkbook evaluateWithPoi(double a1, double a2) throws IOException {
+        XSSFWorkbook workbook = write(a1, a2);
+        Workbooks.evaluateAll(workbook);
+        return workbook;
+    }
+
+    private int countMidFormulas(FormulaRecalculator recalculator) {
+        BitSet evaluated = recalculator.getEvaluated();
+        int count = 0;
+        for (int node = evaluated.nextSetBit(0); node >= 0; node = evaluated.nextSetBit(node + 1)) {
+            if (graph.getSheet(node) != CALC) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private static BitSet calcSheet() {
+        BitSet sheets = new BitSet();
+        sheets.set(CALC);
+        return sheets;
+    }
+}
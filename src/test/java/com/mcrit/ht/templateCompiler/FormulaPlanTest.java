@@ -0,0 +1,172 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+
+import org.apache.poi.ss.formula.eval.ErrorEval;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+public class FormulaPlanTest {
+    /**
+     * Operands of the copies: a left and a right value for each row. Null
+     * is a blank cell, an ErrorEval an error cell and a String a text cell.
+     */
+    private static final Object[][] OPERANDS = {
+        {2.0, 3.0},
+        {-8.0, 1.0 / 3},
+        {-2.0, 3.0},
+        {-2.0, 0.5},
+        {0.0, -1.0},
+        {5.0, 0.0},
+        {5.0, null},
+        {null, 4.0},
+        {-0.0, 0.0},
+        {-3.0, 0.0},
+        {0.0, 0.0},
+        {1e300, 1e300},
+        {-1e300, 1e10},
+        {1e-300, 1e300},
+        {Double.MAX_VALUE, 2.0},
+        {ErrorEval.NA, 1.0},
+        {1.0, ErrorEval.REF_INVALID},
+        {ErrorEval.NAME_INVALID, ErrorEval.NA},
+        {"7", 2.0},
+        {"text", 2.0},
+        {10.0, 4.0},
+        {-0.5, -2.0},
+        {3.0, 3.0},
+        {1.0, -1.0},
+    };
+
+    private static final String[] FORMULAS = {
+        "A%1$d+B%1$d",
+        "A%1$d-B%1$d",
+        "A%1$d*B%1$d",
+        "A%1$d/B%1$d",
+        "A%1$d^B%1$d",
+        "-A%1$d",
+        "A%1$d%%",
+        "-A%1$d+B%1$d%%",
+        "(A%1$d+1)*B%1$d-2",
+        "A%1$d*0",
+        "0-A%1$d*0",
+        "A%1$d/B%1$d*B%1$d",
+        "A%1$d^2-B%1$d^0.5",
+        "Data!A%1$d*2+$B$1",
+    };
+
+    @Test
+    public void evaluatesCopiesAsPoiDoes() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+
+        Workbooks.evaluateAll(expected);
+        FormulaRecalculator recalculator = new FormulaRecalculator(actual, FormulaGraph.build(actual));
+        recalculator.recalculateAll();
+
+        Workbooks.assertSameFormulaResults(expected, actual);
+        assertTrue(recalculator.getFailures().isEmpty());
+        // The text operands are left to POI.
+        assertTrue(recalculator.getPlanned() >= FORMULAS.length * (OPERANDS.length - 2));
+    }
+
+    @Test
+    public void mapsTheSpecialResultsToTheErrorsOfPoi() throws IOException {
+        XSSFWorkbook workbook = createWorkbook();
+        new FormulaRecalculator(workbook, FormulaGraph.build(workbook)).recalculateAll();
+        XSSFSheet sheet = workbook.getSheet("Data");
+
+        // Power of a negative base with a fraction is #NUM!.
+        assertError(ErrorEval.NUM_ERROR, sheet, 1, "A2^B2");
+        // Division by zero and by a blank cell is #DIV/0!.
+        assertError(ErrorEval.DIV_ZERO, sheet, 5, "A6/B6");
+        assertError(ErrorEval.DIV_ZERO, sheet, 6, "A7/B7");
+        // An overflow is #NUM!.
+        assertError(ErrorEval.NUM_ERROR, sheet, 11, "A12*B12");
+        // The error of the left operand wins.
+        assertError(ErrorEval.NAME_INVALID, sheet, 17, "A18+B18");
+        // -0 becomes +0, except for a subtraction.
+        assertEquals(Double.doubleToLongBits(0.0), Double.doubleToLongBits(value(sheet, 9, "A10*0")));
+        assertEquals(Double.doubleToLongBits(-0.0), Double.doubleToLongBits(value(sheet, 8, "A9-B9")));
+    }
+
+    private static void assertError(ErrorEval error, XSSFSheet sheet, int row, String formula) {
+        Cell cell = findFormula(sheet, row, formula);
+        assertEquals(formula + " type", Cell.CELL_TYPE_ERROR, cell.getCachedFormulaResultType());
+        assertEquals(formula, error.getErrorCode(), cell.getErrorCellValue());
+    }
+
+    private static double value(XSSFSheet sheet, int row, String formula) {
+        Cell cell = findFormula(sheet, row, formula);
+        assertEquals(formula + " type", Cell.CELL_TYPE_NUMERIC, cell.getCachedFormulaResultType());
+        return cell.getNumericCellValue();
+    }
+
+    private static Cell findFormula(XSSFSheet sheet, int row, String formula) {
+        for (Cell cell : sheet.getRow(row)) {
+            if (cell.getCellType() == Cell.CELL_TYPE_FORMULA && cell.getCellFormula().equals(formula)) {
+                return cell;
+            }
+        }
+        throw new AssertionError("No formula " + formula + " in row " + (row + 1));
+    }
+
+    /**
+     * Builds a Data sheet with the operands in A and B, and every formula
+     * copied down its own column, so each column shares a plan.
+     */
+    private static XSSFWorkbook createWorkbook() {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet sheet = workbook.createSheet("Data");
+        for (int i = 0; i < OPERANDS.length; i++) {
+            XSSFRow row = sheet.createRow(i);
+            setOperand(row, 0, OPERANDS[i][0]);
+            setOperand(row, 1, OPERANDS[i][1]);
+            for (int j = 0; j < FORMULAS.length; j++) {
+                row.createCell(2 + j).setCellFormula(String.format(FORMULAS[j], i + 1));
+            }
+        }
+        return workbook;
+    }
+
+    private static void setOperand(XSSFRow row, int col, Object value) {
+        if (value instanceof Double) {
+            row.createCell(col).setCellValue((Double) value);
+        } else if (value instanceof ErrorEval) {
+            row.createCell(col).setCellErrorValue((byte) ((ErrorEval) value).getErrorCode());
+        } else if (value instanceof String) {
+            row.createCell(col).setCellValue((String) value);
+        }
+    }
+}
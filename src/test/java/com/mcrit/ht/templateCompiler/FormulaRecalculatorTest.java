@@ -0,0 +1,241 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.AfterClass;
+import org.junit.Test;
+
+public class FormulaRecalculatorTest {
+    private static final int ROWS = 600;
+    private static final int DYNAMIC_ROWS = 50;
+
+    private static final ForkJoinPool POOL = new ForkJoinPool(4);
+
+    @AfterClass
+    public static void shutdownPool() {
+        POOL.shutdown();
+    }
+
+    @Test
+    public void evaluatesEveryFormulaAsASingleEvaluator() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+
+        Workbooks.evaluateAll(expected);
+        FormulaRecalculator recalculator = new FormulaRecalculator(actual, FormulaGraph.build(actual), POOL);
+        int evaluated = recalculator.recalculateAll();
+
+        Workbooks.assertSameFormulaResults(expected, actual);
+        assertEquals(recalculator.getEvaluated().cardinality(), evaluated);
+        assertTrue(recalculator.getFailures().isEmpty());
+        assertTrue(recalculator.getPlanned() > 0);
+    }
+
+    @Test
+    public void givesTheSameResultsWithOneThread() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        XSSFWorkbook parallel = Workbooks.copy(template);
+        XSSFWorkbook serial = Workbooks.copy(template);
+        ForkJoinPool single = new ForkJoinPool(1);
+        try {
+            new FormulaRecalculator(parallel, FormulaGraph.build(parallel), POOL).recalculateAll();
+            new FormulaRecalculator(serial, FormulaGraph.build(serial), single).recalculateAll();
+        } finally {
+            single.shutdown();
+        }
+
+        Workbooks.assertSameFormulaResults(serial, parallel);
+    }
+
+    @Test
+    public void evaluatesTheFormulasDownstreamOfTheWrittenCells() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        Workbooks.evaluateAll(template);
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+        FormulaGraph graph = FormulaGraph.build(actual);
+
+        expected.getSheet("Input").getRow(9).getCell(0).setCellValue(1234);
+        actual.getSheet("Input").getRow(9).getCell(0).setCellValue(1234);
+        Workbooks.evaluateAll(expected);
+        FormulaRecalculator recalculator = new FormulaRecalculator(actual, graph, POOL);
+        int evaluated = recalculator.recalculate(Collections.singletonList(new SheetRange(0, 9, 0, 9, 0)));
+
+        Workbooks.assertSameFormulaResults(expected, actual);
+        // Only the rows of the Calc sheet after the written one are dirty,
+        // besides the dynamic and volatile formulas and their readers.
+        assertTrue(evaluated < graph.size() / 2);
+        assertTrue(recalculator.getEvaluated().get(graph.nodeAt(1, 9, 0)));
+        assertTrue(!recalculator.getEvaluated().get(graph.nodeAt(1, 8, 0)));
+    }
+
+    @Test
+    public void evaluatesTheReadersOfANameWhoseCellChanged() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        Workbooks.evaluateAll(template);
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+
+        expected.getSheet("Input").getRow(0).getCell(2).setCellValue(-2.5);
+        actual.getSheet("Input").getRow(0).getCell(2).setCellValue(-2.5);
+        Workbooks.evaluateAll(expected);
+        new FormulaRecalculator(actual, FormulaGraph.build(actual), POOL)
+            .recalculate(Collections.singletonList(new SheetRange(0, 0, 2, 0, 2)));
+
+        Workbooks.assertSameFormulaResults(expected, actual);
+    }
+
+    @Test
+    public void keepsTheCachedValueOfTheFormulasThatAreNotDirty() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        Workbooks.evaluateAll(template);
+        XSSFWorkbook workbook = Workbooks.copy(template);
+        // A stale value no recalculation of the written cell may touch.
+        workbook.getSheet("Calc").getRow(0).getCell(0).setCellValue(-1);
+
+        new FormulaRecalculator(workbook, FormulaGraph.build(workbook), POOL)
+            .recalculate(Collections.singletonList(new SheetRange(0, ROWS - 1, 0, ROWS - 1, 0)));
+
+        assertEquals(-1, workbook.getSheet("Calc").getRow(0).getCell(0).getNumericCellValue(), 0);
+    }
+
+    @Test
+    public void evaluatesOnDemandOnlyTheDirtyFormulasTheRootsRead() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        Workbooks.evaluateAll(template);
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+        FormulaGraph graph = FormulaGraph.build(actual);
+
+        expected.getSheet("Input").getRow(9).getCell(0).setCellValue(1234);
+        actual.getSheet("Input").getRow(9).getCell(0).setCellValue(1234);
+        Workbooks.evaluateAll(expected);
+        BitSet roots = new BitSet();
+        roots.set(graph.nodeAt(2, 0, 0));
+        FormulaRecalculator recalculator = new FormulaRecalculator(actual, graph, POOL);
+        int evaluated = recalculator.recalculate(Collections.singletonList(new SheetRange(0, 9, 0, 9, 0)), roots);
+
+        // Out!A1 sums Calc!A, which reads the written cell.
+        assertEquals(2, evaluated);
+        assertSameValue(expected, actual, "Out", 0, 0);
+        assertSameValue(expected, actual, "Calc", 9, 0);
+        assertTrue(recalculator.getSkipped() > 0);
+        // Calc!B10 is dirty, but no root reads it.
+        assertEquals(template.getSheet("Calc").getRow(9).getCell(1).getNumericCellValue(),
+            actual.getSheet("Calc").getRow(9).getCell(1).getNumericCellValue(), 0);
+    }
+
+    @Test
+    public void evaluatesOnDemandTheDynamicFormulasTheRootsRead() throws IOException {
+        XSSFWorkbook template = createWorkbook();
+        Workbooks.evaluateAll(template);
+        XSSFWorkbook expected = Workbooks.copy(template);
+        XSSFWorkbook actual = Workbooks.copy(template);
+        FormulaGraph graph = FormulaGraph.build(actual);
+
+        expected.getSheet("Input").getRow(0).getCell(0).setCellValue(-40);
+        actual.getSheet("Input").getRow(0).getCell(0).setCellValue(-40);
+        Workbooks.evaluateAll(expected);
+        BitSet roots = new BitSet();
+        roots.set(graph.nodeAt(2, 1, 2));
+        FormulaRecalculator recalculator = new FormulaRecalculator(actual, graph, POOL);
+        recalculator.recalculate(Collections.singletonList(new SheetRange(0, 0, 0, 0, 0)), roots);
+
+        // Out!C2 sums Calc!F, which reads INDIRECT and OFFSET formulas.
+        assertSameValue(expected, actual, "Out", 1, 2);
+        assertTrue(recalculator.getFailures().isEmpty());
+    }
+
+    private static void assertSameValue(XSSFWorkbook expected, XSSFWorkbook actual, String sheet, int row, int col) {
+        assertEquals(sheet + " " + row + " " + col,
+            expected.getSheet(sheet).getRow(row).getCell(col).getNumericCellValue(),
+            actual.getSheet(sheet).getRow(row).getCell(col).getNumericCellValue(), 0);
+    }
+
+    /**
+     * Builds a workbook with an Input sheet of values, a Calc sheet with a
+     * wide level read through names, relative copies of a formula, a long
+     * chain and dynamic formulas, and an Out sheet summing the Calc sheet.
+     * No formula has a cached value.
+     */
+    static XSSFWorkbook createWorkbook() {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet input = workbook.createSheet("Input");
+        XSSFSheet calc = workbook.createSheet("Calc");
+        XSSFSheet out = workbook.createSheet("Out");
+
+        for (int i = 0; i < ROWS; i++) {
+            XSSFRow row = input.createRow(i);
+            row.createCell(0).setCellValue(i % 11 == 0 ? -i : i + 0.25);
+            row.createCell(1).setCellValue(i % 7 - 3);
+        }
+        input.getRow(0).createCell(2).setCellValue(1.5);
+
+        XSSFName rate = workbook.createName();
+        rate.setNameName("Rate");
+        rate.setRefersToFormula("Input!$C$1");
+        XSSFName twice = workbook.createName();
+        twice.setNameName("Twice");
+        twice.setRefersToFormula("Rate*2");
+
+        for (int i = 0; i < ROWS; i++) {
+            int r = i + 1;
+            XSSFRow row = calc.createRow(i);
+            row.createCell(0).setCellFormula("Input!A" + r + "*Input!B" + r + "+Rate");
+            row.createCell(1).setCellFormula("A" + r + "*2-Input!B" + r);
+            row.createCell(2).setCellFormula(i == 0 ? "B1" : "C" + i + "+B" + r);
+            if (i < DYNAMIC_ROWS) {
+                row.createCell(3).setCellFormula("INDIRECT(\"Input!A\"&ROW())*2");
+                row.createCell(4).setCellFormula("SUM(OFFSET(Input!A1,ROW()-1,0,2,1))");
+                row.createCell(5).setCellFormula("D" + r + "+E" + r + "+Twice");
+            }
+        }
+
+        XSSFRow first = out.createRow(0);
+        first.createCell(0).setCellFormula("SUM(Calc!A1:A" + ROWS + ")");
+        first.createCell(1).setCellFormula("AVERAGE(Calc!B1:B" + ROWS + ")");
+        first.createCell(2).setCellFormula("MAX(Calc!C1:C" + ROWS + ")");
+        first.createCell(3).setCellFormula("IF(A1>0,\"positive\",\"negative\")");
+        XSSFRow second = out.createRow(1);
+        second.createCell(0).setCellFormula("TODAY()-TODAY()");
+        second.createCell(1).setCellFormula("Calc!F1/0");
+        second.createCell(2).setCellFormula("SUM(Calc!F1:F" + DYNAMIC_ROWS + ")");
+        second.createCell(3).setCellFormula("Calc!C" + ROWS + ">Out!A1");
+        return workbook;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ParallelZipOutputStreamTest {
+    private static final int THRESHOLD = 1 << 16;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void writesEntriesAroundTheParallelThreshold() throws IOException {
+        Map<String, byte[]> entries = createEntries();
+        for (int level : new int[] {Deflater.DEFAULT_COMPRESSION, 0, 1, 9}) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (ParallelZipOutputStream zip = new ParallelZipOutputStream(out, level)) {
+                write(zip, entries);
+            }
+
+            assertSameEntries(entries, readAll(new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        }
+    }
+
+    @Test
+    public void writesThroughTheChannelOfAFile() throws IOException {
+        Map<String, byte[]> entries = createEntries();
+        File archive = folder.newFile("archive.zip");
+        try (ParallelZipOutputStream zip = new ParallelZipOutputStream(new FileOutputStream(archive), 6)) {
+            write(zip, entries);
+        }
+
+        try (InputStream in = new FileInputStream(archive)) {
+            assertSameEntries(entries, readAll(new ZipInputStream(in)));
+        }
+        // The central directory agrees with the local headers.
+        try (ZipFile zip = new ZipFile(archive)) {
+            assertEquals(entries.size(), zip.size());
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                assertEquals(entry.getValue().length, zip.getEntry(entry.getKey()).getSize());
+            }
+        }
+    }
+
+    @Test
+    public void addsCompressedEntriesInOrder() throws IOException {
+        byte[] text = "copied as it is".getBytes(StandardCharsets.UTF_8);
+        CRC32 crc = new CRC32();
+        crc.update(text);
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        deflater.setInput(text);
+        deflater.finish();
+        byte[] buffer = new byte[256];
+        byte[] deflated = Arrays.copyOf(buffer, deflater.deflate(buffer));
+        deflater.end();
+        byte[] large = createData(THRESHOLD * 2, new Random(1));
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (ParallelZipOutputStream zip = new ParallelZipOutputStream(out, 6)) {
+            zip.putNextEntry(new ZipEntry("large"));
+            zip.write(large);
+            zip.putCompressedEntry("stored", ZipEntry.STORED, crc.getValue(), text.length, text);
+            zip.putCompressedEntry("deflated", ZipEntry.DEFLATED, crc.getValue(), text.length, deflated);
+        }
+
+        Map<String, byte[]> expected = new LinkedHashMap<>();
+        expected.put("large", large);
+        expected.put("stored", text);
+        expected.put("deflated", text);
+        Map<String, byte[]> actual = readAll(new ZipInputStream(new ByteArrayInputStream(out.toByteArray())));
+        assertSameEntries(expected, actual);
+    }
+
+    @Test
+    public void waitsForTheEntriesOverTheLimit() throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        Random random = new Random(2);
+        for (int i = 0; i < 16; i++) {
+            entries.put("entry" + i, createData(THRESHOLD * 4, random));
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        long limit = THRESHOLD * 8;
+        try (ParallelZipOutputStream zip = new ParallelZipOutputStream(out, 6, limit)) {
+            for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zip.putNextEntry(new ZipEntry(entry.getKey()));
+                zip.write(entry.getValue());
+                zip.closeEntry();
+                assertTrue(zip.getPendingBytes() <= limit);
+            }
+        }
+
+        assertSameEntries(entries, readAll(new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))));
+    }
+
+    @Test
+    public void rejectsMoreEntriesThanAZipWithoutExtensionsHolds() throws IOException {
+        ParallelZipOutputStream zip = new ParallelZipOutputStream(new ByteArrayOutputStream(), 0);
+        try {
+            for (int i = 0; i <= 0xFFFF; i++) {
+                zip.putNextEntry(new ZipEntry(Integer.toString(i)));
+            }
+            zip.finish();
+            fail("A zip64 archive was written.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("zip64"));
+        }
+    }
+
+    @Test
+    public void rejectsCompressedEntriesOfMoreThan4Gb() throws IOException {
+        try (ParallelZipOutputStream zip = new ParallelZipOutputStream(new ByteArrayOutputStream(), 0)) {
+            zip.putCompressedEntry("huge", ZipEntry.DEFLATED, 0, 1L << 32, new byte[0]);
+            fail("A zip64 entry was written.");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("zip64"));
+        }
+    }
+
+    /**
+     * Entries empty, small, just below and above the size compressed on
+     * the pool, and large, with text and random bytes.
+     */
+    private static Map<String, byte[]> createEntries() {
+        Random random = new Random(0);
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        for (int size : new int[] {0, 1, 100, THRESHOLD - 1, THRESHOLD, THRESHOLD + 1, 1 << 20}) {
+            entries.put("text/" + size + ".xml", createText(size));
+            entries.put("random/" + size + ".bin", createData(size, random));
+        }
+        return entries;
+    }
+
+    private static byte[] createText(int size) {
+        StringBuilder text = new StringBuilder(size);
+        for (int i = 0; text.length() < size; i++) {
+            text.append("<c r=\"A").append(i).append("\"><v>").append(i % 97).append("</v></c>");
+        }
+        return text.substring(0, size).getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static byte[] createData(int size, Random random) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(ParallelZipOutputStream zip, Map<String, byte[]> entries) throws IOException {
+        for (Map.Entry<String, byte[]> entry : entries.entrySet()) {
+            zip.putNextEntry(new ZipEntry(entry.getKey()));
+            // Written in pieces, as POI does.
+            byte[] data = entry.getValue();
+            for (int off = 0; off < data.length; off += 4096) {
+                zip.write(data, off, Math.min(4096, data.length - off));
+            }
+        }
+    }
+
+    private static void assertSameEntries(Map<String, byte[]> expected, Map<String, byte[]> actual) {
+        assertEquals(expected.keySet().toString(), actual.keySet().toString());
+        for (Map.Entry<String, byte[]> entry : expected.entrySet()) {
+            assertArrayEquals(entry.getKey(), entry.getValue(), actual.get(entry.getKey()));
+        }
+    }
+
+    /**
+     * Reads the entries of an archive, in order.
+     */
+    private static Map<String, byte[]> readAll(ZipInputStream zip) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        ZipEntry entry;
+        byte[] buffer = new byte[8192];
+        while ((entry = zip.getNextEntry()) != null) {
+            ByteArrayOutputStream data = new ByteArrayOutputStream();
+            int read;
+            while ((read = zip.read(buffer)) > 0) {
+                data.write(buffer, 0, read);
+            }
+            assertNull(entries.put(entry.getName(), data.toByteArray()));
+        }
+        return entries;
+    }
+}
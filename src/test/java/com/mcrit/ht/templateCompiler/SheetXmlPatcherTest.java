@@ -0,0 +1,355 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Enumeration;
+import java.util.function.UnaryOperator;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFFont;
+import org.apache.poi.xssf.usermodel.XSSFName;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SheetXmlPatcherTest {
+    private static final String DATA = "["
+        + "{\"target\": [\"Data\", [0, 3]], \"data\": [[\"new row\", 3]]},"
+        + "{\"target\": [\"Data\", [0, 5]], \"data\": [[\"a\", 50, \"c\", 7, \" e \"]]},"
+        + "{\"target\": [0, [2, 20]], \"data\": [[1.5, null, \"last\"]]},"
+        + "{\"target\": [\"Data\", [0, 3]], \"data\": [[\"overwritten\"]]}"
+        + "]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private short boldStyle;
+
+    @Test
+    public void mergesTheValuesIntoTheRowsOfTheSheet() throws IOException {
+        XSSFWorkbook result = patch(writeTemplate(createTemplate()), DATA);
+        XSSFSheet sheet = result.getSheet("Data");
+
+        assertEquals("header", sheet.getRow(0).getCell(0).getStringCellValue());
+        assertEquals("overwritten", sheet.getRow(3).getCell(0).getStringCellValue());
+        assertEquals(3, sheet.getRow(3).getCell(1).getNumericCellValue(), 0);
+        assertEquals("a", sheet.getRow(5).getCell(0).getStringCellValue());
+        assertEquals(50, sheet.getRow(5).getCell(1).getNumericCellValue(), 0);
+        assertEquals("c", sheet.getRow(5).getCell(2).getStringCellValue());
+        assertEquals(" e ", sheet.getRow(5).getCell(4).getStringCellValue());
+        assertEquals("keep", sheet.getRow(5).getCell(6).getStringCellValue());
+        assertEquals("below", sheet.getRow(10).getCell(0).getStringCellValue());
+        assertEquals(1.5, sheet.getRow(20).getCell(2).getNumericCellValue(), 0);
+        assertEquals("last", sheet.getRow(20).getCell(4).getStringCellValue());
+        assertEquals("untouched", result.getSheet("Other").getRow(0).getCell(0).getStringCellValue());
+    }
+
+    @Test
+    public void keepsTheStylesAndFormulasOfTheWrittenCells() throws IOException {
+        XSSFWorkbook result = patch(writeTemplate(createTemplate()), DATA);
+        XSSFSheet sheet = result.getSheet("Data");
+
+        assertEquals(boldStyle, sheet.getRow(0).getCell(0).getCellStyle().getIndex());
+        assertEquals(boldStyle, sheet.getRow(5).getCell(1).getCellStyle().getIndex());
+        XSSFCell formula = sheet.getRow(5).getCell(3);
+        assertEquals(Cell.CELL_TYPE_FORMULA, formula.getCellType());
+        assertEquals("B6*2", formula.getCellFormula());
+        assertEquals(7, formula.getNumericCellValue(), 0);
+        assertEquals("Other!A1", result.getSheet("Data").getRow(10).getCell(1).getCellFormula());
+    }
+
+    @Test
+    public void marksTheWorkbookToBeRecalculated() throws IOException {
+        XSSFWorkbook template = createTemplate();
+        template.setForceFormulaRecalculation(true);
+        template.getCTWorkbook().getCalcPr().setFullCalcOnLoad(false);
+
+        XSSFWorkbook result = patch(writeTemplate(template), DATA);
+
+        assertTrue(result.getCTWorkbook().getCalcPr().getFullCalcOnLoad());
+    }
+
+    @Test
+    public void addsTheCalculationPropertiesInTheirPlace() throws IOException {
+        XSSFWorkbook template = createTemplate();
+        if (template.getCTWorkbook().isSetCalcPr()) {
+            template.getCTWorkbook().unsetCalcPr();
+        }
+        String templatePath = rewriteEntry(writeTemplate(template), "xl/workbook.xml",
+            xml -> xml.replace("</workbook>", "<extLst><ext uri=\"{00000000-0000-0000-0000-000000000000}\"/></extLst></workbook>"));
+        File patched = folder.newFile("patched.xlsx");
+        try (OutputStream out = new FileOutputStream(patched)) {
+            assertTrue(SheetXmlPatcher.compile(templatePath, parse(DATA), patchOptions(), out));
+        }
+
+        String workbookXml = readEntry(patched, "xl/workbook.xml");
+        int calcPr = workbookXml.indexOf("<calcPr");
+        assertTrue(workbookXml, calcPr > workbookXml.indexOf("</definedNames>"));
+        assertTrue(workbookXml, calcPr < workbookXml.indexOf("<extLst"));
+        assertTrue(new XSSFWorkbook(patched.getPath()).getCTWorkbook().getCalcPr().getFullCalcOnLoad());
+    }
+
+    @Test
+    public void copiesTheUntouchedEntriesAsTheyAre() throws IOException {
+        String templatePath = writeTemplate(createTemplate());
+        File patched = folder.newFile("patched.xlsx");
+        try (OutputStream out = new FileOutputStream(patched)) {
+            assertTrue(SheetXmlPatcher.compile(templatePath, parse(DATA), patchOptions(), out));
+        }
+
+        try (ZipFile before = new ZipFile(templatePath); ZipFile after = new ZipFile(patched)) {
+            Enumeration<? extends ZipEntry> entries = before.entries();
+            int copied = 0;
+            while (entries.hasMoreElements()) {
+                ZipEntry entry = entries.nextElement();
+                ZipEntry copy = after.getEntry(entry.getName());
+                if (entry.getName().equals("xl/workbook.xml") || entry.getName().equals("xl/worksheets/sheet1.xml")) {
+                    continue;
+                }
+                assertEquals(entry.getName(), entry.getCrc(), copy.getCrc());
+                assertEquals(entry.getName(), entry.getCompressedSize(), copy.getCompressedSize());
+                assertEquals(entry.getName(), entry.getMethod(), copy.getMethod());
+                assertArrayEquals(entry.getName(), readAll(before.getInputStream(entry)), readAll(after.getInputStream(copy)));
+                copied += 1;
+            }
+            assertTrue(copied > 5);
+        }
+    }
+
+    @Test
+    public void patchesATemplateWithStoredEntries() throws IOException {
+        String templatePath = writeTemplate(createTemplate());
+        String stored = copyEntries(templatePath, ZipEntry.STORED, null, null);
+
+        XSSFWorkbook result = patch(stored, DATA);
+
+        assertEquals("a", result.getSheet("Data").getRow(5).getCell(0).getStringCellValue());
+        assertEquals("untouched", result.getSheet("Other").getRow(0).getCell(0).getStringCellValue());
+    }
+
+    @Test
+    public void writesTheSameCellsAsTheDomEngine() throws IOException, TranscoderException {
+        String templatePath = writeTemplate(createTemplate());
+        XSSFWorkbook patched = patch(templatePath, DATA);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XlsxTemplate.compileAndStreamTemplate(templatePath,
+            new ByteArrayInputStream(DATA.getBytes(StandardCharsets.UTF_8)), "{}", new CompileOptions(), out);
+        XSSFWorkbook compiled = new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
+
+        for (int i = 0; i < compiled.getNumberOfSheets(); i++) {
+            XSSFSheet expected = compiled.getSheetAt(i);
+            XSSFSheet actual = patched.getSheetAt(i);
+            for (Row row : expected) {
+                for (Cell cell : row) {
+                    assertSameCell(cell, actual.getRow(row.getRowNum()).getCell(cell.getColumnIndex()));
+                }
+            }
+            for (Row row : actual) {
+                for (Cell cell : row) {
+                    assertEquals(expected.getSheetName() + " " + row.getRowNum() + " " + cell.getColumnIndex(),
+                        cell.getCellType() != Cell.CELL_TYPE_BLANK,
+                        expected.getRow(row.getRowNum()) != null && expected.getRow(row.getRowNum()).getCell(cell.getColumnIndex()) != null
+                            && expected.getRow(row.getRowNum()).getCell(cell.getColumnIndex()).getCellType() != Cell.CELL_TYPE_BLANK);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void leavesToTheDomEngineWhatItCanNotPatch() throws IOException {
+        String templatePath = writeTemplate(createTemplate());
+        OutputStream out = new ByteArrayOutputStream();
+
+        assertFalse(SheetXmlPatcher.compile(templatePath, parse(DATA), new CompileOptions(), out));
+        assertFalse(SheetXmlPatcher.compile(templatePath, parse(DATA),
+            patchOptions().setResult(CompileOptions.Result.JSON), out));
+        assertFalse(SheetXmlPatcher.compile(templatePath,
+            parse("[{\"target\": [\"Data\", [0, 0]], \"data\": [[1]], \"style\": \"bold\"}]"), patchOptions(), out));
+        assertFalse(SheetXmlPatcher.compile(templatePath,
+            parse("[{\"target\": [\"Data\"], \"data\": [], \"type\": \"styles\"}]"), patchOptions(), out));
+        assertFalse(SheetXmlPatcher.compile(templatePath,
+            new byte[] {'H', 'T', 'X', 'B', 1}, patchOptions(), out));
+    }
+
+    private static void assertSameCell(Cell expected, Cell actual) {
+        String where = expected.getSheet().getSheetName() + " " + expected.getRowIndex() + " " + expected.getColumnIndex();
+        assertEquals(where, expected.getCellType(), actual.getCellType());
+        assertEquals(where, expected.getCellStyle().getIndex(), actual.getCellStyle().getIndex());
+        switch (expected.getCellType()) {
+            case Cell.CELL_TYPE_FORMULA:
+                // The DOM engine evaluates the formula; the patch one leaves it to Excel.
+                assertEquals(where, expected.getCellFormula(), actual.getCellFormula());
+                break;
+            case Cell.CELL_TYPE_NUMERIC:
+                assertEquals(where, expected.getNumericCellValue(), actual.getNumericCellValue(), 0);
+                break;
+            case Cell.CELL_TYPE_STRING:
+                assertEquals(where, expected.getStringCellValue(), actual.getStringCellValue());
+                break;
+            default:
+        }
+    }
+
+    /**
+     * Builds a template with a Data sheet holding a styled header, a row
+     * with styled values and a formula between the written cells, and a
+     * formula below them, plus another sheet and a defined name.
+     */
+    private XSSFWorkbook createTemplate() {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFFont bold = workbook.createFont();
+        bold.setBold(true);
+        XSSFCellStyle style = workbook.createCellStyle();
+        style.setFont(bold);
+        boldStyle = style.getIndex();
+
+        XSSFSheet data = workbook.createSheet("Data");
+        XSSFRow header = data.createRow(0);
+        header.createCell(0).setCellValue("header");
+        header.getCell(0).setCellStyle(style);
+        header.createCell(1).setCellValue(1);
+        XSSFRow values = data.createRow(5);
+        values.createCell(1).setCellValue(5);
+        values.getCell(1).setCellStyle(style);
+        values.createCell(3).setCellFormula("B6*2");
+        values.createCell(6).setCellValue("keep");
+        XSSFRow below = data.createRow(10);
+        below.createCell(0).setCellValue("below");
+        below.createCell(1).setCellFormula("Other!A1");
+
+        XSSFSheet other = workbook.createSheet("Other");
+        other.createRow(0).createCell(0).setCellValue("untouched");
+        other.getRow(0).createCell(1).setCellFormula("LEN(A1)");
+        XSSFName name = workbook.createName();
+        name.setNameName("Header");
+        name.setRefersToFormula("Data!$A$1");
+        Workbooks.evaluateAll(workbook);
+        return workbook;
+    }
+
+    private String writeTemplate(XSSFWorkbook workbook) throws IOException {
+        File template = folder.newFile();
+        try (OutputStream out = new FileOutputStream(template)) {
+            workbook.write(out);
+        }
+        return template.getPath();
+    }
+
+    private String rewriteEntry(String templatePath, String name, UnaryOperator<String> rewrite) throws IOException {
+        return copyEntries(templatePath, ZipEntry.DEFLATED, name, rewrite);
+    }
+
+    /**
+     * Copies the entries of a package with the given method, rewriting the
+     * text of the named entry on the way.
+     */
+    private String copyEntries(String templatePath, int method, String name, UnaryOperator<String> rewrite)
+            throws IOException {
+        File copy = folder.newFile();
+        try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(Files.readAllBytes(new File(templatePath).toPath())));
+                ZipOutputStream out = new ZipOutputStream(new FileOutputStream(copy))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                byte[] content = readAll(in);
+                if (entry.getName().equals(name)) {
+                    content = rewrite.apply(new String(content, StandardCharsets.UTF_8)).getBytes(StandardCharsets.UTF_8);
+                }
+                ZipEntry target = new ZipEntry(entry.getName());
+                target.setMethod(method);
+                if (method == ZipEntry.STORED) {
+                    CRC32 crc = new CRC32();
+                    crc.update(content);
+                    target.setSize(content.length);
+                    target.setCrc(crc.getValue());
+                }
+                out.putNextEntry(target);
+                out.write(content);
+                out.closeEntry();
+            }
+        }
+        return copy.getPath();
+    }
+
+    private static XSSFWorkbook patch(String templatePath, String data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(SheetXmlPatcher.compile(templatePath, parse(data), patchOptions(), out));
+        return new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
+    }
+
+    private static CompileOptions patchOptions() {
+        return new CompileOptions().setEngine(CompileOptions.Engine.PATCH);
+    }
+
+    private static JsonArray parse(String data) {
+        return Json.createReader(new StringReader(data)).readArray();
+    }
+
+    private static String readEntry(File zip, String name) throws IOException {
+        try (ZipFile file = new ZipFile(zip)) {
+            return new String(readAll(file.getInputStream(file.getEntry(name))), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = in.read(buffer)) >= 0) {
+            bytes.write(buffer, 0, count);
+        }
+        return bytes.toByteArray();
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+
+import javax.json.Json;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StreamingChunkReaderTest {
+    private XSSFWorkbook workbook;
+    private XlsxTemplate template;
+
+    @Before
+    public void createTemplate() {
+        workbook = new XSSFWorkbook();
+        workbook.createSheet("Data");
+        template = new XlsxTemplate(workbook);
+        template.parseStylesObject(Json.createReader(new StringReader("{\"bold\": {\"fontBold\": true}}")).readObject());
+    }
+
+    @Test
+    public void writesTheRowsOfATextChunk() throws IOException, TranscoderException {
+        read("[{\"target\": [\"Data\", [1, 2]], \"data\": [[\"a\", 1.5], [null, 2]], \"style\": \"bold\"}]");
+
+        XSSFSheet sheet = workbook.getSheet("Data");
+        assertEquals("a", sheet.getRow(2).getCell(1).getStringCellValue());
+        assertEquals(1.5, sheet.getRow(2).getCell(2).getNumericCellValue(), 0);
+        assertEquals(2, sheet.getRow(3).getCell(2).getNumericCellValue(), 0);
+        // The style comes after the data, so it is applied to the written cells.
+        assertTrue(workbook.getFontAt(sheet.getRow(3).getCell(1).getCellStyle().getFontIndex()).getBold());
+    }
+
+    @Test
+    public void appliesAStylesChunkWhoseTypeComesLast() throws IOException, TranscoderException {
+        read("[{\"target\": [\"Data\"], \"data\": [{\"style\": \"bold\", \"targets\": [[[0, 0], [1, 1]]]}],"
+            + " \"type\": \"styles\"}]");
+
+        XSSFSheet sheet = workbook.getSheet("Data");
+        assertTrue(workbook.getFontAt(sheet.getRow(1).getCell(1).getCellStyle().getFontIndex()).getBold());
+        // No text was written.
+        assertEquals(Cell.CELL_TYPE_BLANK, sheet.getRow(1).getCell(1).getCellType());
+    }
+
+    @Test
+    public void writesTheChunksWhoseTargetComesLast() throws IOException, TranscoderException {
+        read("[{\"data\": [[\"late\"]], \"target\": [0, [0, 0]]}]");
+
+        assertEquals("late", workbook.getSheet("Data").getRow(0).getCell(0).getStringCellValue());
+    }
+
+    @Test
+    public void readsAnEmptyChunkOfAnyType() throws IOException, TranscoderException {
+        read("[{\"target\": [\"Data\"], \"data\": [], \"type\": \"styles\"}]");
+
+        assertNull(workbook.getSheet("Data").getRow(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsRowsInAChunkOfAnotherType() throws IOException, TranscoderException {
+        read("[{\"target\": [\"Data\", [0, 0]], \"data\": [[\"a\"]], \"type\": \"styles\"}]");
+    }
+
+    private void read(String data) throws IOException, TranscoderException {
+        new StreamingChunkReader(template, new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8))).read();
+    }
+}
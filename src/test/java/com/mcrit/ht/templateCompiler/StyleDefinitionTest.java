@@ -0,0 +1,84 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringReader;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+
+import org.apache.poi.ss.usermodel.BorderStyle;
+import org.apache.poi.xssf.usermodel.XSSFCellStyle;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Test;
+
+public class StyleDefinitionTest {
+    @Test
+    public void fillsEverySideWithASingleBorderStyle() {
+        XSSFCellStyle style = apply("{\"border\": {\"style\": [\"THIN\"]}}");
+
+        assertBorders(style, BorderStyle.THIN, BorderStyle.THIN, BorderStyle.THIN, BorderStyle.THIN);
+    }
+
+    @Test
+    public void expandsTheBorderStyleShorthands() {
+        assertBorders(apply("{\"border\": {\"style\": [\"THIN\", \"THICK\"]}}"),
+            BorderStyle.THIN, BorderStyle.THICK, BorderStyle.THIN, BorderStyle.THICK);
+        assertBorders(apply("{\"border\": {\"style\": [\"THIN\", \"THICK\", \"DOTTED\", \"DASHED\"]}}"),
+            BorderStyle.THIN, BorderStyle.THICK, BorderStyle.DOTTED, BorderStyle.DASHED);
+    }
+
+    @Test
+    public void givesTheSameKeyToEqualBorders() {
+        assertEquals(definition("{\"border\": {\"style\": [\"THIN\"]}}").getKey(),
+            definition("{\"border\": {\"style\": [\"THIN\", \"THIN\", \"THIN\", \"THIN\"]}}").getKey());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnUnknownBorderProperty() {
+        definition("{\"border\": {\"width\": [1]}}");
+    }
+
+    private static StyleDefinition definition(String json) {
+        JsonObject style = Json.createReader(new StringReader(json)).readObject();
+        return StyleDefinition.of(style);
+    }
+
+    private static XSSFCellStyle apply(String json) {
+        XSSFCellStyle style = new XSSFWorkbook().createCellStyle();
+        definition(json).applyTo(style);
+        return style;
+    }
+
+    private static void assertBorders(XSSFCellStyle style, BorderStyle top, BorderStyle right, BorderStyle bottom, BorderStyle left) {
+        // In POI 3.13 the codes of the border styles are their ordinals.
+        assertEquals((short) top.ordinal(), style.getBorderTop());
+        assertEquals((short) right.ordinal(), style.getBorderRight());
+        assertEquals((short) bottom.ordinal(), style.getBorderBottom());
+        assertEquals((short) left.ordinal(), style.getBorderLeft());
+    }
+}
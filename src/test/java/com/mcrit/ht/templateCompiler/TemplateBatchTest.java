@@ -0,0 +1,160 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutionException;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateBatchTest {
+    private static final String STYLES = "{\"bold\": {\"fontBold\": true}}";
+
+    // Writes and styles the first rows, adds a row and a cell, and leaves
+    // Calc!B unevaluated, so the workbook is marked for recalculation.
+    private static final String FIRST = "["
+        + "{\"target\": [\"Input\", [0, 0]], \"data\": [[100, 10], [200, 20], [300, 30]]},"
+        + "{\"target\": [\"Input\"], \"type\": \"styles\","
+        + " \"data\": [{\"style\": \"bold\", \"targets\": [[[0, 0], [1, 2]]]}]},"
+        + "{\"target\": [\"Input\", [3, 0]], \"data\": [[\"note\"]], \"style\": \"bold\"},"
+        + "{\"target\": [\"Input\", [0, 20]], \"data\": [[\"extra\"]]}"
+        + "]";
+    private static final String SECOND = "[{\"target\": [\"Input\", [1, 4]], \"data\": [[50]]}]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String templatePath;
+
+    /**
+     * Writes a template with an Input sheet, a Calc sheet reading it and an
+     * Output sheet reading only the first column of the Calc sheet.
+     */
+    @Before
+    public void writeTemplate() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet input = workbook.createSheet("Input");
+        XSSFSheet calc = workbook.createSheet("Calc");
+        XSSFSheet output = workbook.createSheet("Output");
+        for (int i = 0; i < 10; i++) {
+            XSSFRow row = input.createRow(i);
+            row.createCell(0).setCellValue(i);
+            row.createCell(1).setCellValue(1);
+            XSSFRow calcRow = calc.createRow(i);
+            calcRow.createCell(0).setCellFormula("Input!A" + (i + 1) + "*2");
+            calcRow.createCell(1).setCellFormula("Input!B" + (i + 1) + "*3");
+        }
+        output.createRow(0).createCell(0).setCellFormula("SUM(Calc!A1:A10)");
+        Workbooks.evaluateAll(workbook);
+
+        File template = folder.newFile("template.xlsx");
+        try (OutputStream out = new FileOutputStream(template)) {
+            workbook.write(out);
+        }
+        templatePath = template.getPath();
+    }
+
+    @Test
+    public void startsEveryScenarioFromTheTemplate() throws Exception {
+        XSSFWorkbook first;
+        XSSFWorkbook second;
+        // A single thread compiles both scenarios on the same copy.
+        try (TemplateBatch batch = new TemplateBatch(templatePath, STYLES, 1, new TemplateCache(64L << 20, 0))) {
+            first = submit(batch, FIRST, new CompileOptions().setEvaluation(CompileOptions.Evaluation.DEMAND));
+            second = submit(batch, SECOND, new CompileOptions());
+        }
+        XSSFWorkbook alone;
+        try (TemplateBatch batch = new TemplateBatch(templatePath, STYLES, 1, new TemplateCache(0, 0))) {
+            alone = submit(batch, SECOND, new CompileOptions());
+        }
+
+        XSSFSheet firstInput = first.getSheet("Input");
+        assertEquals(300, firstInput.getRow(2).getCell(0).getNumericCellValue(), 0);
+        assertTrue(firstInput.getRow(2).getCell(1).getCellStyle().getFont().getBold());
+        assertEquals("extra", firstInput.getRow(20).getCell(0).getStringCellValue());
+        assertTrue(Workbooks.isMarkedForRecalculation(first));
+
+        XSSFSheet input = second.getSheet("Input");
+        assertEquals(0, input.getRow(0).getCell(0).getNumericCellValue(), 0);
+        assertEquals(2, input.getRow(2).getCell(0).getNumericCellValue(), 0);
+        assertNull(input.getRow(0).getCell(3));
+        assertNull(input.getRow(20));
+        assertEquals(3, second.getSheet("Calc").getRow(2).getCell(1).getNumericCellValue(), 0);
+        assertEquals(150, second.getSheet("Calc").getRow(4).getCell(1).getNumericCellValue(), 0);
+        assertSameWorkbook(alone, second);
+    }
+
+    private static XSSFWorkbook submit(TemplateBatch batch, String data, CompileOptions options)
+            throws InterruptedException, ExecutionException, IOException {
+        byte[] result = batch.submit(data.getBytes(StandardCharsets.UTF_8), options).get();
+        return new XSSFWorkbook(new ByteArrayInputStream(result));
+    }
+
+    /**
+     * Compares the cells, their values and fonts, and the recalculation
+     * mark of two workbooks.
+     */
+    private static void assertSameWorkbook(XSSFWorkbook expected, XSSFWorkbook actual) {
+        assertEquals(Workbooks.isMarkedForRecalculation(expected), Workbooks.isMarkedForRecalculation(actual));
+        Workbooks.assertSameFormulaResults(expected, actual);
+        for (int i = 0; i < expected.getNumberOfSheets(); i++) {
+            XSSFSheet expectedSheet = expected.getSheetAt(i);
+            XSSFSheet actualSheet = actual.getSheetAt(i);
+            assertEquals(expectedSheet.getSheetName(), expectedSheet.getLastRowNum(), actualSheet.getLastRowNum());
+            for (Row row : expectedSheet) {
+                Row actualRow = actualSheet.getRow(row.getRowNum());
+                assertEquals(row.getLastCellNum(), actualRow.getLastCellNum());
+                for (Cell cell : row) {
+                    Cell actualCell = actualRow.getCell(cell.getColumnIndex());
+                    String where = expectedSheet.getSheetName() + " " + row.getRowNum() + " " + cell.getColumnIndex();
+                    assertEquals(where, cell.getCellType(), actualCell.getCellType());
+                    assertEquals(where, ((XSSFCell) cell).getCellStyle().getFont().getBold(),
+                        ((XSSFCell) actualCell).getCellStyle().getFont().getBold());
+                    if (cell.getCellType() == Cell.CELL_TYPE_NUMERIC) {
+                        assertEquals(where, cell.getNumericCellValue(), actualCell.getNumericCellValue(), 0);
+                    }
+                }
+            }
+        }
+    }
+}
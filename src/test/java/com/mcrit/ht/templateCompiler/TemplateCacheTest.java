@@ -0,0 +1,108 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateCacheTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String templatePath;
+
+    @Before
+    public void writeTemplate() throws IOException {
+        File template = folder.newFile("template.xlsx");
+        try (XSSFWorkbook workbook = new XSSFWorkbook(); OutputStream out = new FileOutputStream(template)) {
+            workbook.createSheet("Data").createRow(0).createCell(0).setCellValue("value");
+            workbook.write(out);
+        }
+        templatePath = template.getPath();
+    }
+
+    @Test
+    public void keepsTheSnapshotOfATemplateThatFits() throws IOException {
+        TemplateCache cache = new TemplateCache(64L << 20, 0);
+
+        TemplateSnapshot snapshot = cache.getSnapshot(templatePath);
+
+        assertNotNull(snapshot);
+        assertSame(snapshot, cache.getSnapshot(templatePath));
+        assertEquals(snapshot.getSize(), cache.getSize());
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void parsesATemplateLargerThanTheBudgetWithoutCachingIt() throws IOException {
+        TemplateCache cache = new TemplateCache(1024, 1);
+
+        assertNull(cache.getSnapshot(templatePath));
+        XSSFWorkbook first = cache.open(templatePath);
+        XSSFWorkbook second = cache.open(templatePath);
+
+        assertEquals("value", first.getSheet("Data").getRow(0).getCell(0).getStringCellValue());
+        assertNotSame(first, second);
+        assertEquals(0, cache.getSize());
+        // The template is only loaded into a snapshot the first time.
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void triesAgainOnceTheBudgetGrows() throws IOException {
+        TemplateCache cache = new TemplateCache(1024, 0);
+        assertNull(cache.getSnapshot(templatePath));
+
+        cache.setByteBudget(64L << 20);
+
+        assertNotNull(cache.getSnapshot(templatePath));
+    }
+
+    @Test
+    public void leavesTheSingleCompilationsOutOfTheDefaultCache() throws IOException {
+        TemplateCache cache = TemplateCache.getDefault();
+        long misses = cache.getMisses();
+        long hits = cache.getHits();
+
+        new XlsxTemplate(templatePath);
+
+        assertEquals(misses, cache.getMisses());
+        assertEquals(hits, cache.getHits());
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TemplateWorkerTest {
+    private static final int REQUESTS = 20;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private byte[] requests;
+    private final ByteArrayOutputStream status = new ByteArrayOutputStream();
+
+    /**
+     * Writes a template and more requests for it than the worker keeps
+     * pending.
+     */
+    @Before
+    public void writeRequests() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        workbook.createSheet("Data").createRow(0).createCell(0).setCellValue("template");
+        File template = folder.newFile("template.xlsx");
+        try (OutputStream out = new FileOutputStream(template)) {
+            workbook.write(out);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream frames = new DataOutputStream(bytes);
+        for (int i = 0; i < REQUESTS; i++) {
+            writeFrame(frames, template.getPath());
+            writeFrame(frames, "[{\"target\": [\"Data\", [0, 1]], \"data\": [[" + i + "]]}]");
+            writeFrame(frames, "{}");
+        }
+        requests = bytes.toByteArray();
+    }
+
+    @Test(timeout = 60000)
+    public void writesTheResponsesInOrder() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        newWorker(out).run();
+
+        DataInputStream responses = new DataInputStream(new ByteArrayInputStream(out.toByteArray()));
+        for (int i = 0; i < REQUESTS; i++) {
+            byte[] result = new byte[responses.readInt()];
+            responses.readFully(result);
+            XSSFWorkbook workbook = new XSSFWorkbook(new ByteArrayInputStream(result));
+            assertEquals(i, workbook.getSheet("Data").getRow(1).getCell(0).getNumericCellValue(), 0);
+        }
+        assertEquals(-1, responses.read());
+        assertEquals(REQUESTS, countStatus("\"ok\""));
+    }
+
+    @Test(timeout = 60000)
+    public void reportsThePendingRequestsOnceTheOutputFails() throws Exception {
+        try {
+            newWorker(new FailingStream(new IOException("closed"))).run();
+            fail("The failure of the output was not reported.");
+        } catch (IOException e) {
+            assertEquals("closed", e.getMessage());
+        }
+        assertTrue(countStatus("\"error\"") > 0);
+    }
+
+    @Test(timeout = 60000)
+    public void stopsOnAnyFailureOfTheWriter() throws Exception {
+        IllegalStateException cause = new IllegalStateException("broken");
+        try {
+            newWorker(new FailingStream(cause)).run();
+            fail("The failure of the output was not reported.");
+        } catch (IOException e) {
+            assertEquals(cause, e.getCause());
+        }
+    }
+
+    private TemplateWorker newWorker(OutputStream out) {
+        return new TemplateWorker(new ByteArrayInputStream(requests), out,
+            new PrintStream(status, true), 2);
+    }
+
+    private int countStatus(String value) {
+        int count = 0;
+        for (String line : new String(status.toByteArray(), StandardCharsets.UTF_8).split("\n")) {
+            if (line.contains("\"request\"") && line.contains(value)) {
+                count += 1;
+            }
+        }
+        return count;
+    }
+
+    private static void writeFrame(DataOutputStream frames, String text) throws IOException {
+        byte[] bytes = text.getBytes(StandardCharsets.UTF_8);
+        frames.writeInt(bytes.length);
+        frames.write(bytes);
+    }
+
+    /**
+     * Output that fails once the first response has been written.
+     */
+    private static final class FailingStream extends OutputStream {
+        private final Exception failure;
+        private int written;
+
+        FailingStream(Exception failure) {
+            this.failure = failure;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            written += len;
+            if (written > 1000) {
+                if (failure instanceof IOException) {
+                    throw (IOException) failure;
+                }
+                throw (RuntimeException) failure;
+            }
+        }
+    }
+}
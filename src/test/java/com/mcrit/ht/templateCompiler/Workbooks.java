@@ -0,0 +1,116 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.apache.poi.ss.usermodel.Cell;
+import org.apache.poi.ss.usermodel.Row;
+import org.apache.poi.ss.util.CellReference;
+import org.apache.poi.xssf.usermodel.XSSFCell;
+import org.apache.poi.xssf.usermodel.XSSFFormulaEvaluator;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.openxmlformats.schemas.spreadsheetml.x2006.main.CTCalcPr;
+
+/**
+ * Helpers of the tests that check the formulas evaluated by the compiler
+ * against POI's own evaluator.
+ */
+final class Workbooks {
+    private Workbooks() {
+    }
+
+    /**
+     * @return A copy of a workbook, written and read back.
+     */
+    static XSSFWorkbook copy(XSSFWorkbook workbook) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        workbook.write(bytes);
+        return new XSSFWorkbook(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    /**
+     * Evaluates every formula with a single POI evaluator.
+     */
+    static void evaluateAll(XSSFWorkbook workbook) {
+        XSSFFormulaEvaluator.evaluateAllFormulaCells(workbook);
+    }
+
+    /**
+     * Tells whether Excel evaluates every formula when the workbook is
+     * opened. XSSFWorkbook.getForceFormulaRecalculation() tells the opposite
+     * in this version of POI.
+     */
+    static boolean isMarkedForRecalculation(XSSFWorkbook workbook) {
+        CTCalcPr calcPr = workbook.getCTWorkbook().getCalcPr();
+        return calcPr != null && (calcPr.getCalcId() == 0 || calcPr.getFullCalcOnLoad());
+    }
+
+    /**
+     * Checks that every formula of two copies of a workbook has the same
+     * cached value. Numbers must have the same bits, so -0 and +0 differ.
+     */
+    static void assertSameFormulaResults(XSSFWorkbook expected, XSSFWorkbook actual) {
+        for (int sheetIndex = 0; sheetIndex < expected.getNumberOfSheets(); sheetIndex++) {
+            XSSFSheet expectedSheet = expected.getSheetAt(sheetIndex);
+            XSSFSheet actualSheet = actual.getSheetAt(sheetIndex);
+            for (Row row : expectedSheet) {
+                for (Cell expectedCell : row) {
+                    if (expectedCell.getCellType() != Cell.CELL_TYPE_FORMULA) {
+                        continue;
+                    }
+                    XSSFCell actualCell = actualSheet.getRow(row.getRowNum()).getCell(expectedCell.getColumnIndex());
+                    String where = expectedSheet.getSheetName() + "!"
+                        + new CellReference(row.getRowNum(), expectedCell.getColumnIndex()).formatAsString();
+                    assertSameResult(where, (XSSFCell) expectedCell, actualCell);
+                }
+            }
+        }
+    }
+
+    private static void assertSameResult(String where, XSSFCell expected, XSSFCell actual) {
+        assertEquals(where + " formula", expected.getCellFormula(), actual.getCellFormula());
+        assertEquals(where + " type", expected.getCachedFormulaResultType(), actual.getCachedFormulaResultType());
+        switch (expected.getCachedFormulaResultType()) {
+            case Cell.CELL_TYPE_NUMERIC:
+                assertEquals(where + " value", Double.doubleToLongBits(expected.getNumericCellValue()),
+                    Double.doubleToLongBits(actual.getNumericCellValue()));
+                break;
+            case Cell.CELL_TYPE_STRING:
+                assertEquals(where + " value", expected.getStringCellValue(), actual.getStringCellValue());
+                break;
+            case Cell.CELL_TYPE_BOOLEAN:
+                assertEquals(where + " value", expected.getBooleanCellValue(), actual.getBooleanCellValue());
+                break;
+            default:
+                assertEquals(where + " error", expected.getErrorCellValue(), actual.getErrorCellValue());
+        }
+    }
+}
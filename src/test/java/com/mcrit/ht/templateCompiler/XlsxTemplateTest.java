@@ -0,0 +1,122 @@
+/*
+ * COPYRIGHT (c) 2016 MCRIT - Cristian Lorenzo Martinez <cristian.lorenzo.martinez@gmail.com>
+ * MIT License
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including
+ * without limitation the rights to use, copy, modify, merge, publish,
+ * distribute, sublicense, and/or sell copies of the Software, and to
+ * permit persons to whom the Software is furnished to do so, subject to
+ * the following conditions:
+
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT. IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT HOLDERS BE
+ * LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY, WHETHER IN AN ACTION
+ * OF CONTRACT, TORT OR OTHERWISE, ARISING FROM, OUT OF OR IN CONNECTION
+ * WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE SOFTWARE.
+ */
+
+
+package com.mcrit.ht.templateCompiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.batik.transcoder.TranscoderException;
+import org.apache.poi.xssf.usermodel.XSSFRow;
+import org.apache.poi.xssf.usermodel.XSSFSheet;
+import org.apache.poi.xssf.usermodel.XSSFWorkbook;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class XlsxTemplateTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String templatePath;
+
+    /**
+     * Writes a template with an Input sheet, a Calc sheet reading it and an
+     * Output sheet reading only the first column of the Calc sheet.
+     */
+    @Before
+    public void writeTemplate() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook();
+        XSSFSheet input = workbook.createSheet("Input");
+        XSSFSheet calc = workbook.createSheet("Calc");
+        XSSFSheet output = workbook.createSheet("Output");
+        for (int i = 0; i < 10; i++) {
+            XSSFRow row = input.createRow(i);
+            row.createCell(0).setCellValue(i);
+            row.createCell(1).setCellValue(1);
+            XSSFRow calcRow = calc.createRow(i);
+            calcRow.createCell(0).setCellFormula("Input!A" + (i + 1) + "*2");
+            calcRow.createCell(1).setCellFormula("Input!B" + (i + 1) + "*3");
+        }
+        output.createRow(0).createCell(0).setCellFormula("SUM(Calc!A1:A10)");
+        Workbooks.evaluateAll(workbook);
+
+        File template = folder.newFile("template.xlsx");
+        try (OutputStream out = new FileOutputStream(template)) {
+            workbook.write(out);
+        }
+        templatePath = template.getPath();
+    }
+
+    @Test
+    public void evaluatesOnDemandTheFormulasOfTheOutputSheets() throws IOException, TranscoderException {
+        XSSFWorkbook result = compile("[{\"target\": [\"Input\", [0, 0]], \"data\": [[100, 10]]}]",
+            new CompileOptions().setEvaluation(CompileOptions.Evaluation.DEMAND));
+
+        assertEquals(290, result.getSheet("Output").getRow(0).getCell(0).getNumericCellValue(), 0);
+        assertEquals(200, result.getSheet("Calc").getRow(0).getCell(0).getNumericCellValue(), 0);
+        // Nothing reads Calc!B1, so it keeps its value until Excel evaluates it.
+        assertEquals(3, result.getSheet("Calc").getRow(0).getCell(1).getNumericCellValue(), 0);
+        assertTrue(Workbooks.isMarkedForRecalculation(result));
+    }
+
+    @Test
+    public void evaluatesEveryDirtyFormulaByDefault() throws IOException, TranscoderException {
+        XSSFWorkbook result = compile("[{\"target\": [\"Input\", [0, 0]], \"data\": [[100, 10]]}]",
+            new CompileOptions());
+
+        assertEquals(290, result.getSheet("Output").getRow(0).getCell(0).getNumericCellValue(), 0);
+        assertEquals(30, result.getSheet("Calc").getRow(0).getCell(1).getNumericCellValue(), 0);
+        assertFalse(Workbooks.isMarkedForRecalculation(result));
+    }
+
+    @Test
+    @SuppressWarnings("deprecation")
+    public void recalculatesAWorkbookThroughTheStaticMethod() throws IOException {
+        XSSFWorkbook workbook = new XSSFWorkbook(templatePath);
+        workbook.getSheet("Input").getRow(3).getCell(0).setCellValue(100);
+
+        XlsxTemplate.recalculateSAF(workbook);
+
+        assertEquals(200, workbook.getSheet("Calc").getRow(3).getCell(0).getNumericCellValue(), 0);
+        assertEquals(2 * (45 - 3 + 100), workbook.getSheet("Output").getRow(0).getCell(0).getNumericCellValue(), 0);
+    }
+
+    private XSSFWorkbook compile(String data, CompileOptions options) throws IOException, TranscoderException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        XlsxTemplate.compileAndStreamTemplate(templatePath,
+            new ByteArrayInputStream(data.getBytes(StandardCharsets.UTF_8)), "{}", options, out);
+        return new XSSFWorkbook(new ByteArrayInputStream(out.toByteArray()));
+    }
+}